@@ -0,0 +1,284 @@
+package loci.formats;
+
+/*-
+ * #%L
+ * Implementation of Bio-Formats readers for the next-generation file formats
+ * %%
+ * Copyright (C) 2020 - 2022 Open Microscopy Environment
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Stream;
+
+import com.bc.zarr.storage.Store;
+
+/**
+ * A store which coalesces concurrent reads of the same object, so that when several readers
+ * in the JVM request one chunk at the same moment only a single request is made to the
+ * underlying store and its result is shared by all of them.
+ * Reads are buffered fully so that the result can be handed to every waiting reader.
+ * <p>
+ * The fetches in flight are shared by every store in the JVM with the same scope and are
+ * identified by the location of the object within that scope. Stores whose reads may not be
+ * shared, such as those using a client with different credentials, must use different scopes.
+ */
+public class CoalescingStore implements BatchStore {
+
+  // The fetches in flight across all stores, by the scope and location of the object
+  private static final ConcurrentHashMap<InFlightKey, CompletableFuture<byte[]>> IN_FLIGHT =
+      new ConcurrentHashMap<InFlightKey, CompletableFuture<byte[]>>();
+
+  private final Store store;
+  private final String location;
+  private final Object scope;
+  private final AtomicLong fetches = new AtomicLong();
+  private final AtomicLong coalesced = new AtomicLong();
+
+  /**
+   * Creates a store which shares reads with every store in the JVM using the same location.
+   * @param store the underlying store
+   * @param location the location of the root of the underlying store, identifying its objects across stores
+   */
+  public CoalescingStore(Store store, String location) {
+    this(store, location, null);
+  }
+
+  /**
+   * @param store the underlying store
+   * @param location the location of the root of the underlying store, identifying its objects across stores
+   * @param scope only stores with the identical scope share reads, such as the client used by the underlying store
+   */
+  public CoalescingStore(Store store, String location, Object scope) {
+    this.store = store;
+    this.location = location.endsWith("/") ? location : location + "/";
+    this.scope = scope;
+  }
+
+  public Store getStore() {
+    return store;
+  }
+
+  @Override
+  public InputStream getInputStream(String key) throws IOException {
+    InFlightKey id = new InFlightKey(scope, location + key);
+    CompletableFuture<byte[]> future = new CompletableFuture<byte[]>();
+    CompletableFuture<byte[]> existing = IN_FLIGHT.putIfAbsent(id, future);
+    if (existing != null) {
+      coalesced.incrementAndGet();
+      return toStream(join(existing));
+    }
+    fetches.incrementAndGet();
+    try {
+      byte[] bytes;
+      try (InputStream is = store.getInputStream(key)) {
+        bytes = is == null ? null : BatchStore.readFully(is);
+      }
+      future.complete(bytes);
+      return toStream(bytes);
+    }
+    catch (Throwable e) {
+      // Including errors, so that the readers waiting on this fetch are never left hanging
+      future.completeExceptionally(e);
+      throw e;
+    }
+    finally {
+      IN_FLIGHT.remove(id, future);
+    }
+  }
+
+  /**
+   * Fetches the keys not already in flight with a single batch request if the underlying store
+   * supports it, and waits for the others to be fetched by the readers which requested them first.
+   */
+  @Override
+  public Map<String, byte[]> getBytes(Collection<String> keys) throws IOException {
+    Map<String, CompletableFuture<byte[]>> owned = new HashMap<String, CompletableFuture<byte[]>>();
+    Map<String, CompletableFuture<byte[]>> joined = new HashMap<String, CompletableFuture<byte[]>>();
+    for (String key : keys) {
+      CompletableFuture<byte[]> future = new CompletableFuture<byte[]>();
+      CompletableFuture<byte[]> existing = IN_FLIGHT.putIfAbsent(new InFlightKey(scope, location + key), future);
+      if (existing != null) {
+        joined.put(key, existing);
+      }
+      else {
+        owned.put(key, future);
+      }
+    }
+    fetches.addAndGet(owned.size());
+    coalesced.addAndGet(joined.size());
+
+    Map<String, byte[]> result = new HashMap<String, byte[]>();
+    try {
+      if (!owned.isEmpty()) {
+        result.putAll(fetch(new ArrayList<String>(owned.keySet())));
+      }
+      for (Map.Entry<String, CompletableFuture<byte[]>> entry : owned.entrySet()) {
+        entry.getValue().complete(result.get(entry.getKey()));
+      }
+    }
+    catch (Throwable e) {
+      for (CompletableFuture<byte[]> future : owned.values()) {
+        future.completeExceptionally(e);
+      }
+      throw e;
+    }
+    finally {
+      for (Map.Entry<String, CompletableFuture<byte[]>> entry : owned.entrySet()) {
+        IN_FLIGHT.remove(new InFlightKey(scope, location + entry.getKey()), entry.getValue());
+      }
+    }
+    for (Map.Entry<String, CompletableFuture<byte[]>> entry : joined.entrySet()) {
+      byte[] bytes = join(entry.getValue());
+      if (bytes != null) {
+        result.put(entry.getKey(), bytes);
+      }
+    }
+    return result;
+  }
+
+  private Map<String, byte[]> fetch(List<String> keys) throws IOException {
+    if (store instanceof BatchStore) {
+      return ((BatchStore) store).getBytes(keys);
+    }
+    Map<String, byte[]> fetched = new HashMap<String, byte[]>();
+    for (String key : keys) {
+      try (InputStream is = store.getInputStream(key)) {
+        if (is != null) {
+          fetched.put(key, BatchStore.readFully(is));
+        }
+      }
+    }
+    return fetched;
+  }
+
+  @Override
+  public OutputStream getOutputStream(String key) throws IOException {
+    return store.getOutputStream(key);
+  }
+
+  @Override
+  public void delete(String key) throws IOException {
+    store.delete(key);
+  }
+
+  @Override
+  public TreeSet<String> getArrayKeys() throws IOException {
+    return store.getArrayKeys();
+  }
+
+  @Override
+  public TreeSet<String> getGroupKeys() throws IOException {
+    return store.getGroupKeys();
+  }
+
+  @Override
+  public TreeSet<String> getKeysEndingWith(String suffix) throws IOException {
+    return store.getKeysEndingWith(suffix);
+  }
+
+  @Override
+  public Stream<String> getRelativeLeafKeys(String key) throws IOException {
+    return store.getRelativeLeafKeys(key);
+  }
+
+  /**
+   * @return the number of objects this store requested from the underlying store
+   */
+  public long getFetchCount() {
+    return fetches.get();
+  }
+
+  /**
+   * @return the number of reads which shared a request already in flight
+   */
+  public long getCoalescedCount() {
+    return coalesced.get();
+  }
+
+  /**
+   * Waits for a fetch made by another reader.
+   * @return the fetched object or null if it does not exist
+   */
+  private static byte[] join(CompletableFuture<byte[]> future) throws IOException {
+    try {
+      return future.get();
+    }
+    catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IOException("Interrupted while waiting for a concurrent read", e);
+    }
+    catch (ExecutionException e) {
+      Throwable cause = e.getCause();
+      if (cause instanceof IOException) throw (IOException) cause;
+      if (cause instanceof RuntimeException) throw (RuntimeException) cause;
+      if (cause instanceof Error) throw (Error) cause;
+      throw new IOException(cause);
+    }
+  }
+
+  private static InputStream toStream(byte[] bytes) {
+    return bytes == null ? null : new ByteArrayInputStream(bytes);
+  }
+
+  /**
+   * Identifies an object in flight, scopes are compared by identity.
+   */
+  private static final class InFlightKey {
+    private final Object scope;
+    private final String location;
+
+    InFlightKey(Object scope, String location) {
+      this.scope = scope;
+      this.location = location;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+      if (!(o instanceof InFlightKey)) {
+        return false;
+      }
+      InFlightKey other = (InFlightKey) o;
+      return scope == other.scope && location.equals(other.location);
+    }
+
+    @Override
+    public int hashCode() {
+      return 31 * System.identityHashCode(scope) + location.hashCode();
+    }
+  }
+}
@@ -0,0 +1,225 @@
+package loci.formats;
+
+/*-
+ * #%L
+ * Implementation of Bio-Formats readers for the next-generation file formats
+ * %%
+ * Copyright (C) 2020 - 2022 Open Microscopy Environment
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+import java.util.stream.Stream;
+
+import com.bc.zarr.storage.Store;
+
+import loci.formats.services.ZarrDiskCache;
+
+/**
+ * A store which keeps the chunks read from a remote store, such as {@link S3FileSystemStore},
+ * in a {@link ZarrDiskCache} so that later reads, including those of other processes or after
+ * a restart, are served from local disk.
+ * If the remote store is a {@link VersionedStore} each cached chunk is validated against the
+ * version of the remote object before it is used, which costs a round trip but no transfer,
+ * otherwise the remote objects are assumed not to change once written.
+ * Metadata keys such as .zarray and .zattrs are always read from the remote store.
+ * Missing chunks are not cached, as they may be written later.
+ */
+public class DiskCachingStore implements BatchStore {
+
+  private final Store store;
+  private final String location;
+  private final ZarrDiskCache cache;
+
+  /**
+   * @param store the remote store
+   * @param location the location of the root of the remote store, identifying its objects in the cache
+   * @param cache the cache shared by all stores
+   */
+  public DiskCachingStore(Store store, String location, ZarrDiskCache cache) {
+    this.store = store;
+    this.location = location.endsWith("/") ? location : location + "/";
+    this.cache = cache;
+  }
+
+  public Store getStore() {
+    return store;
+  }
+
+  public ZarrDiskCache getCache() {
+    return cache;
+  }
+
+  @Override
+  public InputStream getInputStream(String key) throws IOException {
+    if (isMetadata(key)) {
+      return store.getInputStream(key);
+    }
+    byte[] bytes = getBytes(Collections.singletonList(key)).get(key);
+    return bytes == null ? null : new ByteArrayInputStream(bytes);
+  }
+
+  /**
+   * Reads the cached keys from disk and fetches the others from the remote store,
+   * with a single batch request if the remote store supports it.
+   */
+  @Override
+  public Map<String, byte[]> getBytes(Collection<String> keys) throws IOException {
+    if (store instanceof VersionedStore) {
+      return getValidatedBytes(keys);
+    }
+    Map<String, byte[]> result = new HashMap<String, byte[]>();
+    List<String> missing = new ArrayList<String>();
+    for (String key : keys) {
+      byte[] bytes = isMetadata(key) ? null : cache.get(location + key);
+      if (bytes != null) {
+        result.put(key, bytes);
+      }
+      else {
+        missing.add(key);
+      }
+    }
+    if (missing.isEmpty()) {
+      return result;
+    }
+    Map<String, byte[]> fetched;
+    if (store instanceof BatchStore) {
+      fetched = ((BatchStore) store).getBytes(missing);
+    }
+    else {
+      fetched = new HashMap<String, byte[]>();
+      for (String key : missing) {
+        try (InputStream is = store.getInputStream(key)) {
+          if (is != null) {
+            fetched.put(key, BatchStore.readFully(is));
+          }
+        }
+      }
+    }
+    for (Map.Entry<String, byte[]> entry : fetched.entrySet()) {
+      if (!isMetadata(entry.getKey())) {
+        cache.put(location + entry.getKey(), entry.getValue());
+      }
+      result.put(entry.getKey(), entry.getValue());
+    }
+    return result;
+  }
+
+  /**
+   * Fetches every key with a single conditional batch request, passing the version of each cached
+   * copy so that only the keys which changed or are not cached are transferred.
+   */
+  private Map<String, byte[]> getValidatedBytes(Collection<String> keys) throws IOException {
+    Map<String, ZarrDiskCache.Entry> cached = new HashMap<String, ZarrDiskCache.Entry>();
+    Map<String, String> versions = new HashMap<String, String>();
+    for (String key : keys) {
+      ZarrDiskCache.Entry entry = isMetadata(key) ? null : cache.getEntry(location + key);
+      if (entry != null) {
+        cached.put(key, entry);
+      }
+      // Copies cached without a version cannot be validated and are fetched again
+      versions.put(key, entry == null ? null : entry.version);
+    }
+    Map<String, byte[]> result = new HashMap<String, byte[]>();
+    if (versions.isEmpty()) {
+      return result;
+    }
+    Map<String, VersionedStore.VersionedBytes> fetched = ((VersionedStore) store).getBytesIfChanged(versions);
+    for (String key : versions.keySet()) {
+      VersionedStore.VersionedBytes current = fetched.get(key);
+      if (current == null) {
+        // Deleted since it was cached
+        if (cached.containsKey(key)) {
+          cache.recordStale();
+          cache.remove(location + key);
+        }
+      }
+      else if (current.bytes == null) {
+        ZarrDiskCache.Entry entry = cached.get(key);
+        if (entry != null) {
+          result.put(key, entry.bytes);
+        }
+      }
+      else {
+        if (cached.containsKey(key)) {
+          cache.recordStale();
+        }
+        if (!isMetadata(key)) {
+          cache.put(location + key, current.version, current.bytes);
+        }
+        result.put(key, current.bytes);
+      }
+    }
+    return result;
+  }
+
+  @Override
+  public OutputStream getOutputStream(String key) throws IOException {
+    cache.remove(location + key);
+    return store.getOutputStream(key);
+  }
+
+  @Override
+  public void delete(String key) throws IOException {
+    cache.remove(location + key);
+    store.delete(key);
+  }
+
+  @Override
+  public TreeSet<String> getArrayKeys() throws IOException {
+    return store.getArrayKeys();
+  }
+
+  @Override
+  public TreeSet<String> getGroupKeys() throws IOException {
+    return store.getGroupKeys();
+  }
+
+  @Override
+  public TreeSet<String> getKeysEndingWith(String suffix) throws IOException {
+    return store.getKeysEndingWith(suffix);
+  }
+
+  @Override
+  public Stream<String> getRelativeLeafKeys(String key) throws IOException {
+    return store.getRelativeLeafKeys(key);
+  }
+
+  /**
+   * @return true if the key is a metadata file such as .zarray, which may change and is not cached
+   */
+  private static boolean isMetadata(String key) {
+    return key.startsWith(".") || key.contains("/.");
+  }
+}
@@ -0,0 +1,201 @@
+package loci.formats;
+
+/*-
+ * #%L
+ * Implementation of Bio-Formats readers for the next-generation file formats
+ * %%
+ * Copyright (C) 2020 - 2022 Open Microscopy Environment
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+
+
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.amazonaws.ClientConfiguration;
+import com.amazonaws.auth.AWSStaticCredentialsProvider;
+import com.amazonaws.auth.AnonymousAWSCredentials;
+import com.amazonaws.client.builder.AwsClientBuilder;
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.AmazonS3ClientBuilder;
+
+/**
+ * JVM wide registry of S3 clients shared between stores, keyed by endpoint and client configuration.
+ * Clients are reference counted and kept for a short time after their last store is closed,
+ * so that readers which are repeatedly opened and closed reuse warm connections.
+ */
+public final class S3ClientRegistry {
+
+  private static final Logger LOGGER = LoggerFactory.getLogger(S3ClientRegistry.class);
+
+  public static final int DEFAULT_MAX_CONNECTIONS = ClientConfiguration.DEFAULT_MAX_CONNECTIONS;
+  public static final int DEFAULT_SOCKET_TIMEOUT = ClientConfiguration.DEFAULT_SOCKET_TIMEOUT;
+  public static final int DEFAULT_REQUEST_TIMEOUT = ClientConfiguration.DEFAULT_REQUEST_TIMEOUT;
+  public static final long DEFAULT_IDLE_TIMEOUT = 60000;
+
+  private static final Map<String, Entry> clients = new HashMap<String, Entry>();
+  private static final Map<AmazonS3, Entry> entries = new IdentityHashMap<AmazonS3, Entry>();
+  private static long idleTimeout = DEFAULT_IDLE_TIMEOUT;
+  private static ScheduledExecutorService reaper;
+
+  private static class Entry {
+    final String key;
+    final AmazonS3 client;
+    int references = 0;
+    // Incremented on every acquire so that a pending idle shutdown can tell if the client was reused
+    long generation = 0;
+
+    Entry(String key, AmazonS3 client) {
+      this.key = key;
+      this.client = client;
+    }
+  }
+
+  private S3ClientRegistry() {
+  }
+
+  /**
+   * @param maxConnections the maximum number of open HTTP connections
+   * @param socketTimeout the socket timeout in milliseconds
+   * @param requestTimeout the timeout of a whole request in milliseconds, 0 to disable
+   * @return the configuration with TCP keep alive enabled
+   */
+  public static ClientConfiguration getConfiguration(int maxConnections, int socketTimeout, int requestTimeout) {
+    return new ClientConfiguration()
+        .withMaxConnections(maxConnections)
+        .withSocketTimeout(socketTimeout)
+        .withRequestTimeout(requestTimeout)
+        .withTcpKeepAlive(true);
+  }
+
+  /**
+   * @return the configuration used by stores which do not specify one
+   */
+  public static ClientConfiguration getDefaultConfiguration() {
+    return getConfiguration(DEFAULT_MAX_CONNECTIONS, DEFAULT_SOCKET_TIMEOUT, DEFAULT_REQUEST_TIMEOUT);
+  }
+
+  /**
+   * Returns the client for the endpoint and configuration, creating it if needed.
+   * Each call must be matched by a call to {@link #release(AmazonS3)}.
+   * @param endpoint the https endpoint of the S3 service
+   * @param configuration the client configuration
+   * @return the shared client
+   */
+  public static synchronized AmazonS3 acquire(String endpoint, ClientConfiguration configuration) {
+    String key = endpoint + "|" + configuration.getMaxConnections() + "|" + configuration.getSocketTimeout() +
+        "|" + configuration.getRequestTimeout() + "|" + configuration.useTcpKeepAlive();
+    Entry entry = clients.get(key);
+    if (entry == null) {
+      LOGGER.debug("Creating S3 client for {}", key);
+      AmazonS3 client = AmazonS3ClientBuilder.standard()
+          .withEndpointConfiguration(new AwsClientBuilder.EndpointConfiguration(endpoint, "auto"))
+          .withPathStyleAccessEnabled(true)
+          .withClientConfiguration(configuration)
+          .withCredentials(new AWSStaticCredentialsProvider(new AnonymousAWSCredentials())).build();
+      entry = new Entry(key, client);
+      clients.put(key, entry);
+      entries.put(client, entry);
+    }
+    entry.references++;
+    entry.generation++;
+    return entry.client;
+  }
+
+  /**
+   * Releases a client returned by {@link #acquire(String, ClientConfiguration)}.
+   * The client is shut down once it has been unused for the idle timeout.
+   * @param client the client to release
+   */
+  public static synchronized void release(AmazonS3 client) {
+    Entry entry = entries.get(client);
+    if (entry == null || entry.references == 0) {
+      LOGGER.warn("Released an S3 client which was not acquired");
+      return;
+    }
+    entry.references--;
+    if (entry.references > 0) {
+      return;
+    }
+    if (idleTimeout <= 0) {
+      shutdown(entry);
+      return;
+    }
+    long generation = entry.generation;
+    getReaper().schedule(() -> {
+      synchronized (S3ClientRegistry.class) {
+        if (entry.references == 0 && entry.generation == generation) {
+          shutdown(entry);
+        }
+      }
+    }, idleTimeout, TimeUnit.MILLISECONDS);
+  }
+
+  /**
+   * @param timeout the time in milliseconds an unused client is kept before it is shut down, 0 to shut down immediately
+   */
+  public static synchronized void setIdleTimeout(long timeout) {
+    idleTimeout = timeout;
+  }
+
+  /**
+   * @return the number of clients currently held, including idle clients
+   */
+  public static synchronized int getClientCount() {
+    return clients.size();
+  }
+
+  /**
+   * @return the number of stores using the client, or 0 if it is not held by the registry
+   */
+  public static synchronized int getReferenceCount(AmazonS3 client) {
+    Entry entry = entries.get(client);
+    return entry == null ? 0 : entry.references;
+  }
+
+  private static void shutdown(Entry entry) {
+    LOGGER.debug("Shutting down S3 client for {}", entry.key);
+    clients.remove(entry.key);
+    entries.remove(entry.client);
+    entry.client.shutdown();
+  }
+
+  private static ScheduledExecutorService getReaper() {
+    if (reaper == null) {
+      reaper = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "S3ClientRegistry");
+        thread.setDaemon(true);
+        return thread;
+      });
+    }
+    return reaper;
+  }
+}
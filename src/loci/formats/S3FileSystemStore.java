@@ -31,20 +31,31 @@ package loci.formats;
 
 import com.bc.zarr.ZarrConstants;
 import com.bc.zarr.ZarrUtils;
-import com.bc.zarr.storage.Store;
 
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.nio.file.FileSystem;
 import java.nio.file.Files;
-import java.nio.file.LinkOption;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
-import java.util.ListIterator;
+import java.util.Map;
 import java.util.TreeSet;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 import java.util.stream.Collectors;
 import java.util.stream.Stream;
 
@@ -52,21 +63,34 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import com.amazonaws.services.s3.AmazonS3;
-import com.amazonaws.services.s3.AmazonS3ClientBuilder;
+import com.amazonaws.services.s3.model.AmazonS3Exception;
+import com.amazonaws.services.s3.model.GetObjectRequest;
 import com.amazonaws.services.s3.model.ListObjectsRequest;
+import com.amazonaws.services.s3.model.ListObjectsV2Request;
+import com.amazonaws.services.s3.model.ListObjectsV2Result;
 import com.amazonaws.services.s3.model.ObjectListing;
 import com.amazonaws.services.s3.model.S3Object;
 import com.amazonaws.services.s3.model.S3ObjectInputStream;
 import com.amazonaws.services.s3.model.S3ObjectSummary;
-import com.amazonaws.auth.AWSStaticCredentialsProvider;
-import com.amazonaws.auth.AnonymousAWSCredentials;
-import com.amazonaws.client.builder.AwsClientBuilder;
+import com.amazonaws.ClientConfiguration;
 
-public class S3FileSystemStore implements Store {
+public class S3FileSystemStore implements VersionedStore {
 
     private Path root;
     AmazonS3 client;
+    private boolean ownsClient = true;
     public static final String ENDPOINT_PROTOCOL= "https://";
+    // The size of the first page when listing a prefix to find out whether it is an array,
+    // the metadata keys sort before any chunk keys so they are always on this page
+    private static final int CLASSIFY_PAGE_KEYS = 16;
+    public static final int DEFAULT_MAX_CONCURRENT_REQUESTS = 16;
+    // Shared with the stores created by forPath so that the bound applies to all of them
+    private Semaphore requestPermits = new Semaphore(DEFAULT_MAX_CONCURRENT_REQUESTS);
+    private int maxConcurrentRequests = DEFAULT_MAX_CONCURRENT_REQUESTS;
+    // Runs the concurrent GET and list requests, shared with the stores created by forPath
+    // and shut down when the store which created it is closed
+    private ThreadPoolExecutor requestExecutor = createExecutor(DEFAULT_MAX_CONCURRENT_REQUESTS);
+    private boolean ownsExecutor = true;
     protected static final Logger LOGGER =
         LoggerFactory.getLogger(S3FileSystemStore.class);
 
@@ -76,7 +100,7 @@ public class S3FileSystemStore implements Store {
         } else {
             root = fileSystem.getPath(path);
         }
-        setupClient();
+        setupClient(S3ClientRegistry.getDefaultConfiguration());
     }
     
     public void updateRoot(String path) {
@@ -87,14 +111,11 @@ public class S3FileSystemStore implements Store {
       return root.toString();
     }
 
-    private void setupClient() {
+    private void setupClient(ClientConfiguration configuration) {
       String[] pathSplit = root.toString().split(File.separator);
       String endpoint = ENDPOINT_PROTOCOL + pathSplit[1] + File.separator;
       try {   
-        client = AmazonS3ClientBuilder.standard()
-          .withEndpointConfiguration(new AwsClientBuilder.EndpointConfiguration(endpoint, "auto"))
-          .withPathStyleAccessEnabled(true)
-          .withCredentials(new AWSStaticCredentialsProvider(new AnonymousAWSCredentials())).build();
+        client = S3ClientRegistry.acquire(endpoint, configuration);
       } catch (Exception e) {
         LOGGER.info("Exception caught while constructing S3 client", e);
       } 
@@ -102,14 +123,99 @@ public class S3FileSystemStore implements Store {
     }
     
     public void close() {
-      if (client != null) {
-        client.shutdown();
+      if (ownsExecutor) {
+        requestExecutor.shutdown();
+      }
+      if (client != null && ownsClient) {
+        S3ClientRegistry.release(client);
+        client = null;
       }
     }
 
     public S3FileSystemStore(Path rootPath) {
+        this(rootPath, S3ClientRegistry.getDefaultConfiguration());
+    }
+
+    /**
+     * Creates a store using the shared client of the endpoint with the given configuration.
+     * @param rootPath the root path of the store
+     * @param configuration the configuration of the client
+     */
+    public S3FileSystemStore(Path rootPath, ClientConfiguration configuration) {
+        root = rootPath;
+        setupClient(configuration);
+    }
+
+    /**
+     * Creates a store using the given client, which is not shut down when the store is closed.
+     * @param rootPath the root path of the store
+     * @param sharedClient the client used for all requests
+     */
+    public S3FileSystemStore(Path rootPath, AmazonS3 sharedClient) {
         root = rootPath;
-        setupClient();
+        client = sharedClient;
+        ownsClient = false;
+    }
+
+    /**
+     * Creates a store with a fixed root at the given path which shares the client of this store.
+     * Closing the returned store does not shut down the shared client or request threads.
+     * @param path the root path of the new store
+     * @return a store rooted at path
+     */
+    public S3FileSystemStore forPath(String path) {
+      S3FileSystemStore store = new S3FileSystemStore(Paths.get(path), client);
+      store.requestPermits = requestPermits;
+      store.maxConcurrentRequests = maxConcurrentRequests;
+      store.requestExecutor.shutdown();
+      store.requestExecutor = requestExecutor;
+      store.ownsExecutor = false;
+      return store;
+    }
+
+    private static ThreadPoolExecutor createExecutor(int threads) {
+      ThreadPoolExecutor executor = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS,
+          new LinkedBlockingQueue<Runnable>(), runnable -> {
+            Thread thread = new Thread(runnable, "S3FileSystemStore");
+            thread.setDaemon(true);
+            return thread;
+          });
+      // Threads are only kept while requests are being made
+      executor.allowCoreThreadTimeOut(true);
+      return executor;
+    }
+
+    /**
+     * Sets the maximum number of GET requests of {@link #getBytes(Collection)} in flight at once,
+     * across this store and the stores subsequently created from it with {@link #forPath(String)}.
+     * @param max the maximum number of concurrent requests
+     */
+    public void setMaxConcurrentRequests(int max) {
+      if (max < 1) {
+        throw new IllegalArgumentException("At least one concurrent request is required");
+      }
+      maxConcurrentRequests = max;
+      requestPermits = new Semaphore(max);
+      // The maximum pool size may never be below the core pool size
+      if (max > requestExecutor.getMaximumPoolSize()) {
+        requestExecutor.setMaximumPoolSize(max);
+        requestExecutor.setCorePoolSize(max);
+      }
+      else {
+        requestExecutor.setCorePoolSize(max);
+        requestExecutor.setMaximumPoolSize(max);
+      }
+    }
+
+    public int getMaxConcurrentRequests() {
+      return maxConcurrentRequests;
+    }
+
+    /**
+     * @return the client used for all requests, shared with the stores created by {@link #forPath(String)}
+     */
+    public AmazonS3 getClient() {
+      return client;
     }
 
     @Override
@@ -125,6 +231,14 @@ public class S3FileSystemStore implements Store {
           S3Object o = client.getObject(bucketName, key2);
           S3ObjectInputStream responseStream = o.getObjectContent();
           return responseStream;
+        } catch (AmazonS3Exception e) {
+          if (e.getStatusCode() == 404) {
+            // Missing chunks are expected in sparse arrays and are read as the fill value
+            LOGGER.debug("Key not found: {}", key2);
+          }
+          else {
+            LOGGER.info( "Unable to locate or access key: " + key2, e);
+          }
         } catch (Exception e) {
           LOGGER.info( "Unable to locate or access key: " + key2, e);
         }
@@ -132,6 +246,160 @@ public class S3FileSystemStore implements Store {
       return null;
     }
 
+    /**
+     * Fetches the given keys with concurrent GET requests, reading each response body fully
+     * so that the connection is returned to the pool as soon as the request completes.
+     * The number of requests in flight is bounded by {@link #setMaxConcurrentRequests(int)}.
+     *
+     * @param keys the keys relative to the root
+     * @return the content of each key which exists
+     * @throws IOException if any key other than a missing one could not be read
+     */
+    @Override
+    public Map<String, byte[]> getBytes(Collection<String> keys) throws IOException {
+      String[] pathSplit = root.toString().split(File.separator);
+      String bucketName =  pathSplit[2];
+      String prefix = root.toString().substring(root.toString().indexOf(pathSplit[3]), root.toString().length()) + File.separator;
+
+      List<String> keyList = new ArrayList<String>(keys);
+      List<Callable<VersionedBytes>> tasks = new ArrayList<Callable<VersionedBytes>>();
+      for (String key : keyList) {
+        tasks.add(() -> getObject(bucketName, prefix + key, null));
+      }
+      Map<String, byte[]> result = new HashMap<String, byte[]>();
+      if (tasks.isEmpty()) {
+        return result;
+      }
+      List<VersionedBytes> values = invokeAll(tasks, "fetch keys");
+      for (int i = 0; i < keyList.size(); i++) {
+        if (values.get(i) != null) {
+          result.put(keyList.get(i), values.get(i).bytes);
+        }
+      }
+      return result;
+    }
+
+    /**
+     * Fetches the given keys with concurrent conditional GET requests, so that a key whose ETag
+     * still matches costs a round trip but no transfer.
+     * The number of requests in flight is bounded by {@link #setMaxConcurrentRequests(int)}.
+     *
+     * @param versions the ETag of the copy held by the caller for each key, null if there is no copy
+     * @return the content and ETag of each key which exists, with null content if it is unchanged
+     * @throws IOException if any key other than a missing one could not be read
+     */
+    @Override
+    public Map<String, VersionedBytes> getBytesIfChanged(Map<String, String> versions) throws IOException {
+      String[] pathSplit = root.toString().split(File.separator);
+      String bucketName =  pathSplit[2];
+      String prefix = root.toString().substring(root.toString().indexOf(pathSplit[3]), root.toString().length()) + File.separator;
+
+      List<String> keyList = new ArrayList<String>(versions.keySet());
+      List<Callable<VersionedBytes>> tasks = new ArrayList<Callable<VersionedBytes>>();
+      for (String key : keyList) {
+        tasks.add(() -> getObject(bucketName, prefix + key, versions.get(key)));
+      }
+      Map<String, VersionedBytes> result = new HashMap<String, VersionedBytes>();
+      if (tasks.isEmpty()) {
+        return result;
+      }
+      List<VersionedBytes> values = invokeAll(tasks, "fetch keys");
+      for (int i = 0; i < keyList.size(); i++) {
+        if (values.get(i) != null) {
+          result.put(keyList.get(i), values.get(i));
+        }
+      }
+      return result;
+    }
+
+    /**
+     * Runs the tasks on the shared request threads, cancelling the remaining tasks if any fails.
+     * @return the result of each task, in the same order as the tasks
+     */
+    private <T> List<T> invokeAll(List<Callable<T>> tasks, String action) throws IOException {
+      List<Future<T>> futures = new ArrayList<Future<T>>();
+      try {
+        for (Callable<T> task : tasks) {
+          futures.add(requestExecutor.submit(task));
+        }
+        List<T> results = new ArrayList<T>(tasks.size());
+        for (Future<T> future : futures) {
+          results.add(future.get());
+        }
+        return results;
+      } catch (RejectedExecutionException e) {
+        throw new IOException("Unable to " + action + " as the store has been closed", e);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new IOException("Interrupted while trying to " + action, e);
+      } catch (ExecutionException e) {
+        if (e.getCause() instanceof IOException) {
+          throw (IOException) e.getCause();
+        }
+        throw new IOException("Unable to " + action, e.getCause());
+      } finally {
+        for (Future<T> future : futures) {
+          future.cancel(true);
+        }
+      }
+    }
+
+    /**
+     * Reads the whole of an object while holding one of the request permits.
+     * @param etag the ETag of a copy held by the caller, the object is only read if it no longer matches
+     * @return the content and ETag of the object, with null content if it matches etag,
+     *   or null if the object does not exist
+     */
+    private VersionedBytes getObject(String bucketName, String key, String etag) throws IOException, InterruptedException {
+      Semaphore permits = requestPermits;
+      permits.acquire();
+      try (S3Object o = etag == null ? client.getObject(bucketName, key) :
+          client.getObject(new GetObjectRequest(bucketName, key).withNonmatchingETagConstraint(etag))) {
+        if (o == null) {
+          // The constraint was not met, so the copy held by the caller is current
+          return new VersionedBytes(null, etag);
+        }
+        long length = o.getObjectMetadata() == null ? -1 : o.getObjectMetadata().getContentLength();
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(length > 0 && length < Integer.MAX_VALUE ? (int) length : 8192);
+        try (S3ObjectInputStream is = o.getObjectContent()) {
+          byte[] buffer = new byte[8192];
+          int n;
+          while ((n = is.read(buffer)) != -1) {
+            bytes.write(buffer, 0, n);
+          }
+        }
+        return new VersionedBytes(bytes.toByteArray(), o.getObjectMetadata() == null ? null : o.getObjectMetadata().getETag());
+      } catch (AmazonS3Exception e) {
+        if (e.getStatusCode() == 404) {
+          // Missing chunks are expected in sparse arrays and are read as the fill value
+          LOGGER.debug("Key not found: {}", key);
+          return null;
+        }
+        throw new IOException("Unable to access key: " + key, e);
+      } finally {
+        permits.release();
+      }
+    }
+
+    /**
+     * @param key the key relative to the root
+     * @return the ETag of the object, or null if it does not exist
+     * @throws IOException
+     */
+    public String getETag(String key) throws IOException {
+        String[] pathSplit = root.toString().split(File.separator);
+        String bucketName =  pathSplit[2];
+        String key2 = root.toString().substring(root.toString().indexOf(pathSplit[3]), root.toString().length()) + File.separator + key;
+        try {
+          return client.getObjectMetadata(bucketName, key2).getETag();
+        } catch (AmazonS3Exception e) {
+          if (e.getStatusCode() == 404) {
+            return null;
+          }
+          throw new IOException("Unable to access key: " + key2, e);
+        }
+    }
+
     @Override
     public OutputStream getOutputStream(String key) throws IOException {
         final Path filePath = root.resolve(key);
@@ -164,6 +432,24 @@ public class S3FileSystemStore implements Store {
         return getKeysFor(ZarrConstants.FILENAME_DOT_ZGROUP);
     }
 
+    /**
+     * Lists the groups and arrays directly below the root with a single delimited listing.
+     *
+     * @return the names of the child groups and arrays
+     * @throws IOException
+     */
+    public TreeSet<String> getChildKeys() throws IOException {
+      String[] pathSplit = root.toString().split(File.separator);
+      String bucketName =  pathSplit[2];
+      String prefix = root.toString().substring(root.toString().indexOf(pathSplit[3]), root.toString().length()) + "/";
+
+      TreeSet<String> names = new TreeSet<String>();
+      for (String child : listPrefix(bucketName, prefix, false).getCommonPrefixes()) {
+        names.add(child.substring(prefix.length(), child.length() - 1));
+      }
+      return names;
+    }
+
     /**
      * Copied from {@com.bc.zarr.storage.FileSystemStorage#getKeysEndingWith(String).
      *
@@ -180,23 +466,52 @@ public class S3FileSystemStore implements Store {
     }
 
     /**
-     * Copied from {@com.bc.zarr.storage.FileSystemStorage#getRelativeLeafKeys(String).
+     * Lists the keys below the given key with paged ListObjects requests.
      *
-     * @param key
-     * @return
+     * @param key the key relative to the root, or an empty string for the root
+     * @return the keys of all objects below key, relative to key
      * @throws IOException
      */
     public Stream<String> getRelativeLeafKeys(String key) throws IOException {
-        Path walkingRoot = this.root.resolve(key);
-        return Files.walk(walkingRoot).filter((path) -> {
-            return !Files.isDirectory(path, new LinkOption[0]);
-        }).map((path) -> {
-            return walkingRoot.relativize(path).toString();
-        }).map(ZarrUtils::normalizeStoragePath).filter((s) -> {
-            return s.trim().length() > 0;
-        });
+      String[] pathSplit = root.toString().split(File.separator);
+      String bucketName =  pathSplit[2];
+      String prefix = root.toString().substring(root.toString().indexOf(pathSplit[3]), root.toString().length());
+      if (!key.isEmpty()) {
+        prefix += "/" + key;
+      }
+      prefix += "/";
+
+      List<String> keys = new ArrayList<String>();
+      ListObjectsRequest listObjectsRequest = new ListObjectsRequest()
+          .withBucketName(bucketName)
+          .withPrefix(prefix);
+      ObjectListing listObjectsResponse = null;
+      String lastKey = null;
+      do {
+        if (listObjectsResponse != null) {
+          listObjectsRequest = listObjectsRequest.withMarker(lastKey);
+        }
+        listObjectsResponse = client.listObjects(listObjectsRequest);
+        for (S3ObjectSummary object : listObjectsResponse.getObjectSummaries()) {
+          String k = object.getKey().substring(prefix.length());
+          if (!k.isEmpty()) {
+            keys.add(k);
+          }
+          lastKey = object.getKey();
+        }
+      } while (listObjectsResponse.isTruncated());
+      return keys.stream();
     }
 
+    /**
+     * Finds the groups or arrays below the root by listing one level of the hierarchy at a time
+     * with a delimiter, so that the chunks of an array are never listed.
+     * The prefixes of each level are listed in parallel on the shared request threads.
+     *
+     * @param suffix the metadata file identifying the keys to return, .zgroup or .zarray
+     * @return the keys relative to the root
+     * @throws IOException
+     */
     private TreeSet<String> getKeysFor(String suffix) throws IOException {
       TreeSet<String> keys = new TreeSet<String>();
 
@@ -205,41 +520,82 @@ public class S3FileSystemStore implements Store {
       String bucketName =  pathSplit[2];
       
       // Append the desired key onto the remaining prefix
-      String key2 = root.toString().substring(root.toString().indexOf(pathSplit[3]), root.toString().length());
+      String rootPrefix = root.toString().substring(root.toString().indexOf(pathSplit[3]), root.toString().length()) + "/";
 
-      ListObjectsRequest listObjectsRequest = new ListObjectsRequest()
-          .withBucketName(bucketName)
-          .withPrefix(key2)
-        ;
+      List<String> level = new ArrayList<String>();
+      level.add(rootPrefix);
+      while (!level.isEmpty()) {
+        List<ListObjectsV2Result> listings = listLevel(bucketName, level);
+        List<String> nextLevel = new ArrayList<String>();
+        for (int i = 0; i < level.size(); i++) {
+          String prefix = level.get(i);
+          ListObjectsV2Result listing = listings.get(i);
+          boolean isArray = false;
+          boolean hasSuffix = false;
+          for (S3ObjectSummary object : listing.getObjectSummaries()) {
+            String name = object.getKey().substring(prefix.length());
+            isArray |= name.equals(ZarrConstants.FILENAME_DOT_ZARRAY);
+            hasSuffix |= name.equals(suffix);
+          }
+          if (hasSuffix && !prefix.equals(rootPrefix)) {
+            keys.add(prefix.substring(rootPrefix.length(), prefix.length() - 1));
+          }
+          // Anything below an array is a chunk
+          if (!isArray) {
+            nextLevel.addAll(listing.getCommonPrefixes());
+          }
+        }
+        level = nextLevel;
+      }
+      return keys;
+    }
 
-      ObjectListing listObjectsResponse = null;
-      String lastKey = null;
-        
+    /**
+     * Lists the objects and common prefixes directly below each of the given prefixes.
+     * @return the listing of each prefix, in the same order as the prefixes
+     */
+    private List<ListObjectsV2Result> listLevel(String bucketName, List<String> prefixes) throws IOException {
+      if (prefixes.size() == 1) {
+        return Collections.singletonList(listPrefix(bucketName, prefixes.get(0), true));
+      }
+      List<Callable<ListObjectsV2Result>> tasks = new ArrayList<Callable<ListObjectsV2Result>>();
+      for (String prefix : prefixes) {
+        tasks.add(() -> listPrefix(bucketName, prefix, true));
+      }
+      return invokeAll(tasks, "list keys");
+    }
+
+    /**
+     * Lists a single level below the prefix, merging the pages of the listing into one result.
+     * @param classify if true the first page is kept small and the listing stops once a .zarray
+     *   has been seen, as only the metadata keys of an array are needed and they sort before its chunks
+     */
+    private ListObjectsV2Result listPrefix(String bucketName, String prefix, boolean classify) {
+      ListObjectsV2Request request = new ListObjectsV2Request()
+          .withBucketName(bucketName)
+          .withPrefix(prefix)
+          .withDelimiter("/");
+      if (classify) {
+        request.setMaxKeys(CLASSIFY_PAGE_KEYS);
+      }
+      String arrayKey = prefix + ZarrConstants.FILENAME_DOT_ZARRAY;
+      ListObjectsV2Result merged = new ListObjectsV2Result();
+      ListObjectsV2Result result;
       do {
-        if ( listObjectsResponse != null ) {
-          listObjectsRequest = listObjectsRequest
-             .withMarker(lastKey)
-          ; 
-        }
-
-        listObjectsResponse = client.listObjects(listObjectsRequest); 
-        List<S3ObjectSummary> objects = listObjectsResponse.getObjectSummaries();
-
-        // Iterate over results
-        ListIterator<S3ObjectSummary> iterVals = objects.listIterator();
-        while (iterVals.hasNext()) {
-          S3ObjectSummary object = (S3ObjectSummary) iterVals.next();
-          String k = object.getKey();
-          if (k.contains(suffix)) {
-            String key = k.substring(k.indexOf(key2) + key2.length() + 1, k.indexOf(suffix));
-            if (!key.isEmpty()) {
-              keys.add(key.substring(0, key.length()-1));
+        result = client.listObjectsV2(request);
+        merged.getObjectSummaries().addAll(result.getObjectSummaries());
+        merged.getCommonPrefixes().addAll(result.getCommonPrefixes());
+        if (classify) {
+          for (S3ObjectSummary object : result.getObjectSummaries()) {
+            if (object.getKey().equals(arrayKey)) {
+              return merged;
             }
           }
-          lastKey = k;
         }
-      } while ( listObjectsResponse.isTruncated() );
-      
-      return keys;
+        request.setContinuationToken(result.getNextContinuationToken());
+        // Groups are listed in full with the default page size
+        request.setMaxKeys(null);
+      } while (result.isTruncated());
+      return merged;
     }
 }
\ No newline at end of file
@@ -0,0 +1,63 @@
+package loci.formats;
+
+/*-
+ * #%L
+ * Implementation of Bio-Formats readers for the next-generation file formats
+ * %%
+ * Copyright (C) 2020 - 2022 Open Microscopy Environment
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+
+import java.io.IOException;
+import java.util.Map;
+
+/**
+ * A store which can tell whether an object has changed since a copy of it was taken,
+ * such as by the ETag of an object on S3, so that copies held elsewhere can be validated
+ * without transferring the object again.
+ */
+public interface VersionedStore extends BatchStore {
+
+  /**
+   * Fetches each of the given keys unless the copy held by the caller is still current.
+   * @param versions the version of the copy held by the caller for each key, null if there is no copy
+   * @return the content and current version of each key which exists, with null content if the
+   *   copy held by the caller is current; keys which do not exist are omitted
+   * @throws IOException if any key could not be read
+   */
+  Map<String, VersionedBytes> getBytesIfChanged(Map<String, String> versions) throws IOException;
+
+  /**
+   * The content of an object along with the version it was read at.
+   */
+  class VersionedBytes {
+    public final byte[] bytes;
+    public final String version;
+
+    public VersionedBytes(byte[] bytes, String version) {
+      this.bytes = bytes;
+      this.version = version;
+    }
+  }
+}
@@ -31,6 +31,8 @@ package loci.formats.in;
 
 import java.io.File;
 import java.io.IOException;
+import java.io.StringReader;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
@@ -40,21 +42,23 @@ import java.util.Collections;
 import java.util.Comparator;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.Hashtable;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.stream.Stream;
-
 import javax.xml.parsers.ParserConfigurationException;
 import javax.xml.transform.TransformerException;
 
-import org.w3c.dom.Document;
-import org.xml.sax.SAXException;
-
-import com.bc.zarr.JZarrException;
 import com.bc.zarr.ZarrUtils;
 
-import loci.common.DataTools;
 import loci.common.Location;
 import loci.common.RandomAccessInputStream;
 import loci.common.services.DependencyException;
@@ -66,19 +70,29 @@ import loci.formats.FormatException;
 import loci.formats.FormatReader;
 import loci.formats.FormatTools;
 import loci.formats.MetadataTools;
+import loci.formats.S3ClientRegistry;
+import loci.formats.S3FileSystemStore;
+import loci.formats.meta.MetadataRetrieve;
 import loci.formats.meta.MetadataStore;
 import loci.formats.ome.OMEXMLMetadata;
 import loci.formats.services.JZarrServiceImpl;
 import ome.xml.meta.MetadataConverter;
 import ome.xml.meta.MetadataRoot;
+import ome.xml.meta.OMEXMLMetadataRoot;
 import ome.xml.model.MapAnnotation;
 import ome.xml.model.OME;
 import ome.xml.model.StructuredAnnotations;
+import ome.xml.model.enums.EnumerationException;
 import ome.xml.model.primitives.NonNegativeInteger;
 import ome.xml.model.primitives.PositiveInteger;
 import ome.xml.model.primitives.Timestamp;
 import loci.formats.services.OMEXMLService;
+import loci.formats.services.ZarrMetadataIndex;
+import loci.formats.services.ZarrReadAhead;
 import loci.formats.services.ZarrService;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.xml.sax.SAXException;
 
 
 public class ZarrReader extends FormatReader {
@@ -94,8 +108,46 @@ public class ZarrReader extends FormatReader {
   public static final boolean INCLUDE_LABELS_DEFAULT = false;
   public static final String ALT_STORE_KEY = "omezarr.alt_store";
   public static final String ALT_STORE_DEFAULT = null;
+  public static final String CHUNK_CACHE_SIZE_KEY = "omezarr.chunk_cache_size";
+  public static final int CHUNK_CACHE_SIZE_DEFAULT = 0;
+  public static final String READ_THREADS_KEY = "omezarr.read_threads";
+  public static final int READ_THREADS_DEFAULT = 1;
+  public static final String READ_AHEAD_SIZE_KEY = "omezarr.read_ahead_size";
+  public static final int READ_AHEAD_SIZE_DEFAULT = 0;
+  public static final String CHUNK_INDEX_KEY = "omezarr.chunk_index";
+  public static final boolean CHUNK_INDEX_DEFAULT = false;
+  public static final String CONSOLIDATED_METADATA_KEY = "omezarr.consolidated_metadata";
+  public static final boolean CONSOLIDATED_METADATA_DEFAULT = false;
+  public static final String METADATA_THREADS_KEY = "omezarr.metadata_threads";
+  public static final int METADATA_THREADS_DEFAULT = 1;
+  public static final String S3_MAX_CONNECTIONS_KEY = "omezarr.s3_max_connections";
+  public static final int S3_MAX_CONNECTIONS_DEFAULT = S3ClientRegistry.DEFAULT_MAX_CONNECTIONS;
+  public static final String S3_SOCKET_TIMEOUT_KEY = "omezarr.s3_socket_timeout";
+  public static final int S3_SOCKET_TIMEOUT_DEFAULT = S3ClientRegistry.DEFAULT_SOCKET_TIMEOUT;
+  public static final String S3_REQUEST_TIMEOUT_KEY = "omezarr.s3_request_timeout";
+  public static final int S3_REQUEST_TIMEOUT_DEFAULT = S3ClientRegistry.DEFAULT_REQUEST_TIMEOUT;
+  public static final String S3_MAX_REQUESTS_KEY = "omezarr.s3_max_requests";
+  public static final int S3_MAX_REQUESTS_DEFAULT = S3FileSystemStore.DEFAULT_MAX_CONCURRENT_REQUESTS;
+  public static final String DISK_CACHE_DIR_KEY = "omezarr.disk_cache_dir";
+  public static final String DISK_CACHE_DIR_DEFAULT = null;
+  public static final String DISK_CACHE_SIZE_KEY = "omezarr.disk_cache_size";
+  public static final int DISK_CACHE_SIZE_DEFAULT = 1024;
+  public static final String COALESCE_REQUESTS_KEY = "omezarr.coalesce_requests";
+  public static final boolean COALESCE_REQUESTS_DEFAULT = false;
+  public static final String MEMORY_MAP_SIZE_KEY = "omezarr.memory_map_size";
+  public static final int MEMORY_MAP_SIZE_DEFAULT = 0;
+  public static final String LAZY_SHAPES_KEY = "omezarr.lazy_shapes";
+  public static final boolean LAZY_SHAPES_DEFAULT = false;
+  public static final String METADATA_INDEX_KEY = "omezarr.metadata_index";
+  public static final boolean METADATA_INDEX_DEFAULT = false;
+  public static final String METADATA_INDEX_DIR_KEY = "omezarr.metadata_index_dir";
+  public static final String METADATA_INDEX_DIR_DEFAULT = null;
+  // Root metadata files checked for changes before a metadata index is used
+  private static final String[] METADATA_INDEX_FILES = {".zattrs", ".zgroup", ".zmetadata", "OME/METADATA.ome.xml"};
   protected transient ZarrService zarrService;
   private ArrayList<String> arrayPaths = new ArrayList<String>();
+  // Core indexes of lower resolutions whose shape has not been read yet
+  private HashSet<Integer> pendingShapes = new HashSet<Integer>();
   
   // The below fields are only required for initialization and are not required to be serialized
   private transient ArrayList<String> groupKeys = new ArrayList<String>(); 
@@ -103,7 +155,12 @@ public class ZarrReader extends FormatReader {
   private transient HashMap<String, Integer> resCounts = new HashMap<String, Integer>(); // can be removed
   private transient HashSet<Integer> uniqueResCounts = new HashSet<Integer>(); // can be removed
   private transient HashMap<String, Integer> resIndexes = new HashMap<String, Integer>(); // can be removed
-  private transient HashMap<String, ArrayList<String>> pathArrayDimensions = new HashMap<String, ArrayList<String>>(); // can be removed
+  private transient HashMap<String, List<String>> pathArrayDimensions = new HashMap<String, List<String>>(); // can be removed
+  private transient HashMap<List<String>, List<String>> axisDescriptors = new HashMap<List<String>, List<String>>();
+  private transient HashMap<String, Integer> arrayPathIndexes = new HashMap<String, Integer>(); // can be removed
+  private transient HashMap<String, Set<String>> childKeys = new HashMap<String, Set<String>>();
+  // Each array path is held once however many of the lookups above refer to it
+  private transient HashMap<String, String> sharedPaths = new HashMap<String, String>();
   
   private String dimensionOrder = "XYZCT";
   private int wellCount = 0;
@@ -111,6 +168,7 @@ public class ZarrReader extends FormatReader {
   private boolean planesPrePopulated = false;
   private boolean hasSPW = false;
   private transient int currentOpenZarr = -1;
+  private transient ZarrReadAhead readAhead;
 
   public ZarrReader() {
     super("Zarr", "zarr");
@@ -140,12 +198,14 @@ public class ZarrReader extends FormatReader {
   @Override
   public void close() throws IOException {
     arrayPaths.clear();
-    groupKeys.clear();
-    resSeries.clear();
-    resCounts.clear();
-    uniqueResCounts.clear();
-    resIndexes.clear();
-    pathArrayDimensions.clear();
+    synchronized (pendingShapes) {
+      pendingShapes.clear();
+    }
+    clearInitializationState();
+    if (readAhead != null) {
+      readAhead.close();
+      readAhead = null;
+    }
     if (zarrService != null) {
       zarrService.close();
     }
@@ -189,28 +249,27 @@ public class ZarrReader extends FormatReader {
     initializeZarrService();
     reloadOptionsFile(zarrRootPath);
 
+    File indexFile = getMetadataIndexFile(canonicalPath);
+    if (indexFile != null && loadMetadataIndex(indexFile, canonicalPath, store)) {
+      setSeries(0);
+      LOGGER.debug("ZarrReader initialization complete from metadata index {}", indexFile);
+      return;
+    }
+
     ArrayList<String> omeSeriesOrder = new ArrayList<String>();
     if(omeMetaFile.exists()) {
       LOGGER.debug("ZarrReader parsing existing OME-XML");
       parseOMEXML(omeMetaFile, store, omeSeriesOrder);
     }
     // Parse base level attributes
-    Map<String, Object> attr = zarrService.getGroupAttr(canonicalPath);
+    GroupAttributes rootAttributes = readGroupAttributes(canonicalPath);
+    Map<String, Object> attr = rootAttributes.attributes;
     int attrIndex = 0;
     if (attr != null && !attr.isEmpty()) {
       parseResolutionCount(zarrRootPath, "", attr);
       parseOmeroMetadata(attr);
       if (saveAnnotations()) {
-        String jsonAttr;
-        try {
-          jsonAttr = ZarrUtils.toJson(attr, true);
-          store.setXMLAnnotationValue(jsonAttr, attrIndex);
-          String xml_id = MetadataTools.createLSID("Annotation", attrIndex);
-          store.setXMLAnnotationID(xml_id, attrIndex);
-        } catch (JZarrException e) {
-          LOGGER.warn("Failed to convert attributes to JSON");
-          e.printStackTrace();
-        }
+        addAnnotation(store, rootAttributes.json, attrIndex);
       }
     }
     generateGroupKeys(attr, canonicalPath);
@@ -222,24 +281,22 @@ public class ZarrReader extends FormatReader {
     }
 
     List<String> orderedGroupKeys = reorderGroupKeys(groupKeys, omeSeriesOrder);
+    List<Callable<GroupAttributes>> groupAttrTasks = new ArrayList<Callable<GroupAttributes>>();
     for (String key: orderedGroupKeys) {
-      Map<String, Object> attributes = zarrService.getGroupAttr(canonicalPath+File.separator+key);
+      String groupPath = canonicalPath+File.separator+key;
+      groupAttrTasks.add(() -> readGroupAttributes(groupPath));
+    }
+    List<GroupAttributes> groupAttrs = fetchMetadata(groupAttrTasks);
+    for (int g = 0; g < orderedGroupKeys.size(); g++) {
+      String key = orderedGroupKeys.get(g);
+      Map<String, Object> attributes = groupAttrs.get(g).attributes;
       if (attributes != null && !attributes.isEmpty()) {
         parseResolutionCount(zarrRootPath, key, attributes);
         parseLabels(zarrRootPath, attributes);
         parseImageLabels(zarrRootPath, attributes);
         attrIndex++;
         if (saveAnnotations()) {
-          String jsonAttr;
-          try {
-            jsonAttr = ZarrUtils.toJson(attributes, true);
-            store.setXMLAnnotationValue(jsonAttr, attrIndex);
-            String xml_id = MetadataTools.createLSID("Annotation", attrIndex);
-            store.setXMLAnnotationID(xml_id, attrIndex);
-          } catch (JZarrException e) {
-            LOGGER.warn("Failed to convert attributes to JSON");
-            e.printStackTrace();
-          }
+          addAnnotation(store, groupAttrs.get(g).json, attrIndex);
         }
       }
     }
@@ -248,25 +305,22 @@ public class ZarrReader extends FormatReader {
     generateArrayKeys(attr, canonicalPath);
     if (arrayPaths.isEmpty()) {
       LOGGER.debug("ZarrReader adding Array Keys from ZarrService");
-      arrayPaths.addAll(zarrService.getArrayKeys(canonicalPath));
+      for (String key : zarrService.getArrayKeys(canonicalPath)) {
+        arrayPaths.add(sharePath(key));
+      }
     }
     orderArrayPaths(zarrRootPath);
 
     if (saveAnnotations()) {
+      List<Callable<String>> arrayAttrTasks = new ArrayList<Callable<String>>();
       for (String key: arrayPaths) {
-        Map<String, Object> attributes = zarrService.getArrayAttr(zarrRootPath+File.separator+key);
-        if (attributes != null && !attributes.isEmpty()) {
+        String arrayPath = zarrRootPath+File.separator+key;
+        arrayAttrTasks.add(() -> zarrService.getArrayAttrJson(arrayPath));
+      }
+      for (String json : fetchMetadata(arrayAttrTasks)) {
+        if (!isEmptyAttributes(json)) {
           attrIndex++;
-          String jsonAttr;
-          try {
-            jsonAttr = ZarrUtils.toJson(attributes, true);
-            store.setXMLAnnotationValue(jsonAttr, attrIndex);
-            String xml_id = MetadataTools.createLSID("Annotation", attrIndex);
-            store.setXMLAnnotationID(xml_id, attrIndex);
-          } catch (JZarrException e) {
-            LOGGER.warn("Failed to convert attributes to JSON");
-            e.printStackTrace();
-          }
+          addAnnotation(store, json, attrIndex);
         }
       }
     }
@@ -276,6 +330,7 @@ public class ZarrReader extends FormatReader {
     
     HashMap<Integer, int[]> resShapes = new HashMap<Integer, int[]>();
     int pixelType = -1;
+    boolean lazyShapes = lazyShapes() && !hasFlattenedResolutions();
 
     for (int i=0; i<arrayPaths.size(); i++) {
       int resolutionCount = 1;
@@ -294,6 +349,11 @@ public class ZarrReader extends FormatReader {
       if (quickRead() && resShapes.containsKey(resolutionIndex) && !arrayPaths.get(i).toLowerCase().contains("label")) {
         openZarr = false;
       }
+      List<String> pathDimensions = pathArrayDimensions.get(arrayPaths.get(i));
+      boolean lazyShape = lazyShapes && resolutionIndex > 0 && pathDimensions != null && pathDimensions.size() == 5;
+      if (lazyShape) {
+        openZarr = false;
+      }
         
       if (hasFlattenedResolutions()) {
         setSeries(i, openZarr);
@@ -307,7 +367,21 @@ public class ZarrReader extends FormatReader {
       }
       
       int[] shape;
-      if (openZarr) {
+      if (lazyShape) {
+        // Lower resolutions start with the shape of the full resolution, the actual shape is read on first access
+        CoreMetadata fullResolution = core.get(i - resolutionIndex);
+        ms.pixelType = fullResolution.pixelType;
+        shape = new int[5];
+        shape[pathDimensions.indexOf("x")] = fullResolution.sizeX;
+        shape[pathDimensions.indexOf("y")] = fullResolution.sizeY;
+        shape[pathDimensions.indexOf("z")] = fullResolution.sizeZ;
+        shape[pathDimensions.indexOf("c")] = fullResolution.sizeC;
+        shape[pathDimensions.indexOf("t")] = fullResolution.sizeT;
+        synchronized (pendingShapes) {
+          pendingShapes.add(i);
+        }
+      }
+      else if (openZarr) {
         LOGGER.debug("ZarrReader opening Zarr to get Shape");
         pixelType = zarrService.getPixelType();
         ms.pixelType = pixelType;
@@ -327,7 +401,6 @@ public class ZarrReader extends FormatReader {
       ms.sizeT = shape[0];
       ms.sizeZ = shape[2];
       ms.sizeC = shape[1];
-      ArrayList<String> pathDimensions = pathArrayDimensions.get(arrayPaths.get(i));
       if (pathDimensions != null && !pathDimensions.isEmpty()) {
         ms.sizeX = shape[pathDimensions.indexOf("x")];
         ms.sizeY = shape[pathDimensions.indexOf("y")];
@@ -353,18 +426,195 @@ public class ZarrReader extends FormatReader {
       store.setImageID(MetadataTools.createLSID("Image", i), i);
     }
     parsePlate(attr, zarrRootPath, "", store);
+    if (indexFile != null) {
+      writeMetadataIndex(indexFile, canonicalPath);
+    }
+    clearInitializationState();
     setSeries(0);
     LOGGER.debug("ZarrReader initialization complete");
   }
   
+  /**
+   * The attributes of a group, along with the JSON they were read from when it is needed for annotations
+   */
+  private static class GroupAttributes {
+    final Map<String, Object> attributes;
+    final String json;
+
+    GroupAttributes(Map<String, Object> attributes, String json) {
+      this.attributes = attributes;
+      this.json = json;
+    }
+  }
+
+  private GroupAttributes readGroupAttributes(String path) throws IOException, FormatException {
+    if (!saveAnnotations()) {
+      return new GroupAttributes(zarrService.getGroupAttr(path), null);
+    }
+    // The attributes are parsed from the stored JSON so that it can be used as the annotation value as is
+    String json = zarrService.getGroupAttrJson(path);
+    return new GroupAttributes(parseAttributes(json), json);
+  }
+
+  private static Map<String, Object> parseAttributes(String json) throws IOException {
+    if (json == null) {
+      return new HashMap<String, Object>();
+    }
+    Map<String, Object> attributes = ZarrUtils.fromJson(new StringReader(json), Map.class);
+    return attributes == null ? new HashMap<String, Object>() : attributes;
+  }
+
+  /**
+   * Checks the stored JSON for an empty object without parsing it, most arrays of a plate have no attributes
+   * @return true if json is null, "null" or an object without members
+   */
+  private static boolean isEmptyAttributes(String json) {
+    if (json == null) {
+      return true;
+    }
+    String trimmed = json.trim();
+    if (trimmed.isEmpty() || trimmed.equals("null")) {
+      return true;
+    }
+    if (trimmed.charAt(0) != '{' || trimmed.charAt(trimmed.length() - 1) != '}') {
+      return false;
+    }
+    return trimmed.substring(1, trimmed.length() - 1).trim().isEmpty();
+  }
+
+  private void addAnnotation(MetadataStore store, String json, int attrIndex) {
+    store.setXMLAnnotationValue(json, attrIndex);
+    String xml_id = MetadataTools.createLSID("Annotation", attrIndex);
+    store.setXMLAnnotationID(xml_id, attrIndex);
+  }
+
+  /**
+   * @return the location of the metadata index of the fileset or null if the index is disabled
+   */
+  private File getMetadataIndexFile(String canonicalPath) {
+    if (!metadataIndex()) {
+      return null;
+    }
+    String indexDir = metadataIndexDir();
+    if (indexDir == null) {
+      return new File(canonicalPath + ".index");
+    }
+    // Filesets with the same name in different locations can share an index directory
+    UUID pathId = UUID.nameUUIDFromBytes(canonicalPath.getBytes(StandardCharsets.UTF_8));
+    return new File(indexDir, new File(canonicalPath).getName() + "-" + pathId + ".index");
+  }
+
+  /**
+   * @return the options which change the series layout or metadata, an index written with different options is not used
+   */
+  private String getMetadataIndexOptions() {
+    return "flattened=" + hasFlattenedResolutions() + ";labels=" + includeLabels() + ";quick=" + quickRead() +
+        ";annotations=" + saveAnnotations() + ";lazy=" + lazyShapes() + ";level=" + getMetadataOptions().getMetadataLevel();
+  }
+
+  private Map<String, String> getMetadataFileVersions(String canonicalPath) throws IOException {
+    Map<String, String> versions = new LinkedHashMap<String, String>();
+    for (String key : METADATA_INDEX_FILES) {
+      String version = zarrService.getVersion(canonicalPath, key);
+      versions.put(key, version == null ? "" : version);
+    }
+    return versions;
+  }
+
+  /**
+   * Initializes the reader from the metadata index if it exists and the root metadata files have not changed since it was written
+   * @return true if the reader was initialized from the index
+   */
+  private boolean loadMetadataIndex(File indexFile, String canonicalPath, MetadataStore store) {
+    try {
+      ZarrMetadataIndex index = ZarrMetadataIndex.read(indexFile);
+      if (index == null || !index.options.equals(getMetadataIndexOptions()) ||
+          !index.fileVersions.equals(getMetadataFileVersions(canonicalPath))) {
+        LOGGER.debug("Metadata index {} is missing or out of date", indexFile);
+        return false;
+      }
+      // The OME-XML is parsed before any reader state or the caller's store is changed,
+      // so a corrupt index leaves both untouched and the full initialization then runs as usual
+      OMEXMLService service = new ServiceFactory().getInstance(OMEXMLService.class);
+      OMEXMLMetadata omeMetadata = service.createOMEXMLMetadata(index.omeXml);
+      core.clear();
+      core.addAll(index.core);
+      arrayPaths.clear();
+      arrayPaths.addAll(index.arrayPaths);
+      synchronized (pendingShapes) {
+        pendingShapes.clear();
+        pendingShapes.addAll(index.pendingShapes);
+      }
+      metadata.putAll(index.globalMetadata);
+      dimensionOrder = index.dimensionOrder;
+      wellCount = index.wellCount;
+      wellSamplesCount = index.wellSamplesCount;
+      hasSPW = index.hasSPW;
+      service.convertMetadata(omeMetadata, store);
+      return true;
+    } catch (IOException | DependencyException | ServiceException | RuntimeException e) {
+      LOGGER.warn("Failed to read metadata index {}", indexFile, e);
+      return false;
+    }
+  }
+
+  private void writeMetadataIndex(File indexFile, String canonicalPath) {
+    MetadataStore store = getMetadataStore();
+    if (!(store instanceof MetadataRetrieve)) {
+      LOGGER.debug("Metadata index not written as the metadata store cannot be retrieved");
+      return;
+    }
+    try {
+      ZarrMetadataIndex index = new ZarrMetadataIndex();
+      index.fileVersions.putAll(getMetadataFileVersions(canonicalPath));
+      index.options = getMetadataIndexOptions();
+      index.arrayPaths.addAll(arrayPaths);
+      index.core.addAll(core);
+      // Deferred shapes stay deferred, the index is only used with the same omezarr.lazy_shapes setting
+      synchronized (pendingShapes) {
+        index.pendingShapes.addAll(pendingShapes);
+      }
+      index.globalMetadata.putAll(metadata);
+      index.dimensionOrder = dimensionOrder;
+      index.wellCount = wellCount;
+      index.wellSamplesCount = wellSamplesCount;
+      index.hasSPW = hasSPW;
+      OMEXMLService service = new ServiceFactory().getInstance(OMEXMLService.class);
+      index.omeXml = service.getOMEXML((MetadataRetrieve) store);
+      index.write(indexFile);
+      LOGGER.debug("Wrote metadata index {}", indexFile);
+    } catch (IOException | DependencyException | ServiceException e) {
+      LOGGER.warn("Failed to write metadata index {}", indexFile, e);
+    }
+  }
+
+  /**
+   * Releases the lookups that are only needed while the series layout is built,
+   * only arrayPaths is kept for opening arrays once initialization is complete
+   */
+  private void clearInitializationState() {
+    groupKeys.clear();
+    resSeries.clear();
+    resCounts.clear();
+    uniqueResCounts.clear();
+    resIndexes.clear();
+    pathArrayDimensions.clear();
+    arrayPathIndexes.clear();
+    axisDescriptors.clear();
+    childKeys.clear();
+    sharedPaths.clear();
+    arrayPaths.trimToSize();
+  }
+
   private List<String> reorderGroupKeys(ArrayList<String> groupKeys, List<String> originalKeys) {
     // Reorder group keys to maintain the original order from the OME-XML provided by bioformats2raw
-    if (originalKeys.isEmpty() || !groupKeys.containsAll(originalKeys)) {
+    if (originalKeys.isEmpty() || !new HashSet<String>(groupKeys).containsAll(originalKeys)) {
       LOGGER.warn("Mismatch with group key paths and original OME-XML metadata, original ordering wont be maintained");
       return reorderGroupKeys(groupKeys);
     }
     List<String> groupKeysList = new ArrayList<String>();
-    groupKeys.removeAll(originalKeys);
+    HashSet<String> originalKeySet = new HashSet<String>(originalKeys);
+    groupKeys.removeIf(originalKeySet::contains);
     groupKeysList.addAll(originalKeys);
     groupKeysList.addAll(groupKeys);
     return groupKeysList;
@@ -465,81 +715,176 @@ public class ZarrReader extends FormatReader {
   }
 
   protected void initializeZarrService() throws IOException, FormatException {
-    zarrService = new JZarrServiceImpl(altStore());
+    JZarrServiceImpl service = new JZarrServiceImpl(altStore(),
+        S3ClientRegistry.getConfiguration(s3MaxConnections(), s3SocketTimeout(), s3RequestTimeout()));
+    service.setChunkCacheSize(chunkCacheSize() * 1024L * 1024L);
+    service.setReadThreads(readThreads());
+    service.setMemoryMapSize(memoryMapSize() * 1024L * 1024L);
+    service.setMaxConcurrentRequests(s3MaxRequests());
+    service.setDiskCache(diskCacheDir(), diskCacheSize() * 1024L * 1024L);
+    service.setCoalesceRequests(coalesceRequests());
+    service.setChunkIndex(chunkIndex());
+    service.setConsolidatedMetadata(consolidatedMetadata());
+    zarrService = service;
+    initializeReadAhead();
     openZarr();
   }
 
+  private void initializeReadAhead() {
+    if (readAhead != null) {
+      readAhead.close();
+      readAhead = null;
+    }
+    if (readAheadSize() > 0) {
+      readAhead = new ZarrReadAhead((region, data) -> openBytes(region.series, region.resolution,
+          region.no, data, region.x, region.y, region.w, region.h), readAheadSize() * 1024L * 1024L);
+    }
+  }
+
+  /**
+   * @return the read ahead of sequentially requested tiles or null if it is disabled
+   */
+  public ZarrReadAhead getReadAhead() {
+    return readAhead;
+  }
+
   @Override
   public byte[] openBytes(int no, byte[] buf, int x, int y, int w, int h) throws FormatException, IOException {
     FormatTools.checkPlaneParameters(this, no, buf.length, x, y, w, h);
+    if (readAhead != null) {
+      ZarrReadAhead.Region region = new ZarrReadAhead.Region(getSeries(), getResolution(), no, x, y, w, h,
+          getSizeX(), getSizeY(), getImageCount(), FormatTools.getBytesPerPixel(getPixelType()));
+      if (readAhead.read(region, buf)) {
+        return buf;
+      }
+    }
     openZarr();
     int[] coordinates = getZCTCoords(no);
-    int [] shape = {1, 1, 1, h, w};
     int zarrArrayShapeSize = zarrService.getShape().length;
-    if (zarrArrayShapeSize < 5) {
-      shape = getOriginalShape(shape, zarrArrayShapeSize);
+    int[] shape = getRegionShape(zarrArrayShapeSize, w, h);
+    int[] offsets = getRegionOffset(getDimensionOrder(), zarrArrayShapeSize, coordinates, x, y);
+    boolean little = zarrService.isLittleEndian();
+    zarrService.readBytes(buf, shape, offsets, little);
+    return buf;
+  }
+
+  /**
+   * Reads the same XY region of a contiguous range of Z, C or T planes of the
+   * current series with a single read of the Zarr array, so that chunks
+   * spanning several of the planes are only decoded once.
+   * @param no the index of the first plane
+   * @param dimension the dimension along which the planes are read, one of "Z", "C" or "T"
+   * @param count the number of planes to read
+   * @param buf the buffer to populate, at least count * w * h * bytes per pixel long
+   * @param x the x coordinate of the upper-left corner of the region
+   * @param y the y coordinate of the upper-left corner of the region
+   * @param w the width of the region
+   * @param h the height of the region
+   * @return buf populated with the planes back to back in order of increasing index along dimension
+   */
+  public byte[] openPlanes(int no, String dimension, int count, byte[] buf, int x, int y, int w, int h)
+      throws FormatException, IOException {
+    FormatTools.checkPlaneParameters(this, no, -1, x, y, w, h);
+    int dim = dimension == null || dimension.length() != 1 ? -1 : "ZCT".indexOf(dimension.toUpperCase());
+    if (dim < 0) {
+      throw new IllegalArgumentException("Invalid dimension: " + dimension);
     }
-    int zIndex = 4 - dimensionOrder.indexOf("Z");
-    int cIndex = 4 - dimensionOrder.indexOf("C");
-    int tIndex = 4 - dimensionOrder.indexOf("T");
-    int [] offsets = {1, 1, 1, y, x};
-    offsets[zIndex] = coordinates[0];
-    offsets[cIndex] = coordinates[1];
-    offsets[tIndex] = coordinates[2];
+    int[] coordinates = getZCTCoords(no);
+    int[] sizes = {getSizeZ(), getEffectiveSizeC(), getSizeT()};
+    if (count < 1 || coordinates[dim] + count > sizes[dim]) {
+      throw new FormatException("Invalid plane count " + count + " from " + dimension + "=" + coordinates[dim]);
+    }
+    long size = (long) count * w * h * FormatTools.getBytesPerPixel(getPixelType());
+    if (buf.length < size) {
+      throw new FormatException("Buffer too small (got " + buf.length + ", expected " + size + ").");
+    }
+    openZarr();
+    int zarrArrayShapeSize = zarrService.getShape().length;
+    int [] shape = {1, 1, 1, h, w};
+    String order = getDimensionOrder();
+    shape[4 - order.indexOf("ZCT".charAt(dim))] = count;
     if (zarrArrayShapeSize < 5) {
-      offsets = getOriginalShape(offsets, zarrArrayShapeSize);
+      shape = getOriginalShape(shape, zarrArrayShapeSize);
     }
-    Object image = zarrService.readBytes(shape, offsets);
-
+    int[] offsets = getRegionOffset(order, zarrArrayShapeSize, coordinates, x, y);
     boolean little = zarrService.isLittleEndian();
-    int bpp = FormatTools.getBytesPerPixel(zarrService.getPixelType());
-    if (image instanceof byte[]) {
-      byte [] data = (byte []) image;
-      for (int i = 0; i < data.length; i++) {
-        DataTools.unpackBytes(data[i], buf, i, 1, little);
-      }
+    zarrService.readBytes(buf, shape, offsets, little);
+    return buf;
+  }
+
+  /**
+   * Reads a tile of the given series and resolution without changing the
+   * current series, resolution or opened Zarr array of the reader.
+   * Once the reader is initialized this may be called concurrently from
+   * multiple threads, unlike {@link #openBytes(int, byte[], int, int, int, int)}.
+   * @param series the series index, as used by {@link #setSeries(int)}
+   * @param resolution the resolution index, must be 0 if resolutions are flattened
+   * @param no the plane index within the series
+   * @param buf the buffer to populate, at least w * h * bytes per pixel long
+   * @param x the x coordinate of the upper-left corner of the tile
+   * @param y the y coordinate of the upper-left corner of the tile
+   * @param w the width of the tile
+   * @param h the height of the tile
+   * @return buf populated with the pixels of the tile
+   */
+  public byte[] openBytes(int series, int resolution, int no, byte[] buf, int x, int y, int w, int h)
+      throws FormatException, IOException {
+    FormatTools.assertId(currentId, true, 1);
+    if (series < 0 || series >= getSeriesCount()) {
+      throw new IllegalArgumentException("Invalid series: " + series);
     }
-    else if (image instanceof short[]) {
-      short[] data = (short[]) image;
-      for (int row = 0; row < h; row++) {
-        int base = row * w * bpp;
-        for (int i = 0; i < w; i++) {
-          DataTools.unpackBytes(data[(row * w) + i], buf, base + 2 * i, 2, little);
-        }
-      }
+    int coreIndex = seriesToCoreIndex(series);
+    int resolutionCount = hasFlattenedResolutions() ? 1 : core.get(coreIndex).resolutionCount;
+    if (resolution < 0 || resolution >= resolutionCount) {
+      throw new IllegalArgumentException("Invalid resolution: " + resolution);
     }
-    else if (image instanceof int[]) {
-      int[] data = (int[]) image;
-      for (int row = 0; row < h; row++) {
-        int base = row * w * bpp;
-        for (int i = 0; i < w; i++) {
-          DataTools.unpackBytes(data[(row * w) + i], buf, base + 4 * i, 4, little);
-        }
-      }
+    coreIndex += resolution;
+    loadShape(coreIndex);
+    CoreMetadata ms = core.get(coreIndex);
+    if (no < 0 || no >= ms.imageCount) {
+      throw new FormatException("Invalid image number: " + no);
     }
-    else if (image instanceof float[]) {
-      float[] data = (float[]) image;
-      for (int row = 0; row < h; row++) {
-        int base = row * w * bpp;
-        for (int i = 0; i < w; i++) {
-          int value = Float.floatToIntBits(data[(row * w) + i]);
-          DataTools.unpackBytes(value, buf, base + 4 * i, 4, little);
-        }
-      }
+    if (x < 0 || y < 0 || w < 0 || h < 0 || x + w > ms.sizeX || y + h > ms.sizeY) {
+      throw new FormatException("Invalid tile size: x=" + x + ", y=" + y + ", w=" + w + ", h=" + h);
     }
-    else if (image instanceof double[]) {
-      double[] data = (double[]) image;
-      for (int row = 0; row < h; row++) {
-        int base = row * w * bpp;
-        for (int i = 0; i < w; i++) {
-          long value = Double.doubleToLongBits(data[(row * w) + i]);
-          DataTools.unpackBytes(value, buf, base + 8 * i, 8, little);
-        }
-      }
+    int bpp = FormatTools.getBytesPerPixel(ms.pixelType);
+    if (buf.length < (long) w * h * bpp) {
+      throw new FormatException("Buffer too small (got " + buf.length + ", expected " + ((long) w * h * bpp) + ").");
     }
+    int[] coordinates = FormatTools.getZCTCoords(ms.dimensionOrder, ms.sizeZ, ms.sizeC, ms.sizeT, ms.imageCount, no);
+    String path = getArrayPath(coreIndex);
+    int zarrArrayShapeSize = zarrService.getShape(path).length;
+    int[] shape = getRegionShape(zarrArrayShapeSize, w, h);
+    int[] offsets = getRegionOffset(ms.dimensionOrder, zarrArrayShapeSize, coordinates, x, y);
+    zarrService.readBytes(path, buf, shape, offsets, ms.littleEndian);
     return buf;
   }
 
+  private static int[] getRegionShape(int zarrArrayShapeSize, int w, int h) {
+    int [] shape = {1, 1, 1, h, w};
+    if (zarrArrayShapeSize < 5) {
+      shape = getOriginalShape(shape, zarrArrayShapeSize);
+    }
+    return shape;
+  }
+
+  /**
+   * @param order the dimension order of the series, matching the axes of its Zarr array
+   */
+  private static int[] getRegionOffset(String order, int zarrArrayShapeSize, int[] coordinates, int x, int y) {
+    int zIndex = 4 - order.indexOf("Z");
+    int cIndex = 4 - order.indexOf("C");
+    int tIndex = 4 - order.indexOf("T");
+    int [] offsets = {1, 1, 1, y, x};
+    offsets[zIndex] = coordinates[0];
+    offsets[cIndex] = coordinates[1];
+    offsets[tIndex] = coordinates[2];
+    if (zarrArrayShapeSize < 5) {
+      offsets = getOriginalShape(offsets, zarrArrayShapeSize);
+    }
+    return offsets;
+  }
+
   @Override
   public void setSeries(int no) {
     setSeries(no, false);
@@ -559,24 +904,73 @@ public class ZarrReader extends FormatReader {
   
   public void setResolution(int no, boolean openZarr) {
     super.setResolution(no);
+    loadShape(getCoreIndex());
     if (openZarr) {
       openZarr();
     }
   }
 
+  @Override
+  public void setCoreIndex(int no) {
+    super.setCoreIndex(no);
+    loadShape(no);
+  }
+
+  @Override
+  public List<CoreMetadata> getCoreMetadataList() {
+    loadShapes();
+    return super.getCoreMetadataList();
+  }
+
+  /**
+   * Reads the shape of a lower resolution which was deferred by omezarr.lazy_shapes.
+   * The data type and dimension order are those of the full resolution.
+   * @param coreIndex the core index of the resolution
+   */
+  private void loadShape(int coreIndex) {
+    synchronized (pendingShapes) {
+      if (!pendingShapes.contains(coreIndex)) {
+        return;
+      }
+      try {
+        int[] shape = zarrService.getShape(getArrayPath(coreIndex));
+        if (shape.length < 5) {
+          shape = get5DShape(shape);
+        }
+        CoreMetadata ms = core.get(coreIndex);
+        ms.sizeX = shape[4 - ms.dimensionOrder.indexOf("X")];
+        ms.sizeY = shape[4 - ms.dimensionOrder.indexOf("Y")];
+        ms.sizeZ = shape[4 - ms.dimensionOrder.indexOf("Z")];
+        ms.sizeC = shape[4 - ms.dimensionOrder.indexOf("C")];
+        ms.sizeT = shape[4 - ms.dimensionOrder.indexOf("T")];
+        ms.imageCount = ms.sizeZ * ms.sizeC * ms.sizeT;
+        pendingShapes.remove(coreIndex);
+      } catch (IOException | FormatException e) {
+        LOGGER.warn("Failed to read the shape of resolution {}", coreIndex, e);
+      }
+    }
+  }
+
+  private void loadShapes() {
+    ArrayList<Integer> coreIndexes;
+    synchronized (pendingShapes) {
+      coreIndexes = new ArrayList<Integer>(pendingShapes);
+    }
+    for (int coreIndex : coreIndexes) {
+      loadShape(coreIndex);
+    }
+  }
+
   private void openZarr() {
     try {
       if (currentId != null && zarrService != null) {
-        String zarrRootPath = currentId.substring(0, currentId.indexOf(".zarr")+5);
-        String newZarrPath = zarrRootPath;
         if (arrayPaths != null && !arrayPaths.isEmpty()) {
           int seriesIndex = seriesToCoreIndex(series);
           if (!hasFlattenedResolutions()) {
             seriesIndex += resolution;
           }
           if (seriesIndex != currentOpenZarr) {
-            newZarrPath += File.separator + arrayPaths.get(seriesIndex);
-            String canonicalPath = new Location(newZarrPath).getCanonicalPath();
+            String canonicalPath = getArrayPath(seriesIndex);
             LOGGER.debug("Opening zarr for series {} at path: {}", seriesIndex, canonicalPath);
             zarrService.open(canonicalPath);
             currentOpenZarr = seriesIndex;
@@ -588,17 +982,49 @@ public class ZarrReader extends FormatReader {
     }
   }
 
+  /**
+   * @return the canonical path of the Zarr array backing the given core index
+   */
+  private String getArrayPath(int coreIndex) throws IOException {
+    String zarrRootPath = currentId.substring(0, currentId.indexOf(".zarr")+5);
+    return new Location(zarrRootPath + File.separator + arrayPaths.get(coreIndex)).getCanonicalPath();
+  }
+
   private void orderArrayPaths(String root) {
-    for (int i = 0; i < resSeries.size(); i++) {
-      for (String arrayPath: resSeries.get(i)) {
-        arrayPaths.remove(arrayPath);
+    // Paths belonging to a multiscales series are moved to the end in series order,
+    // built in a single pass as removing each path from the list is quadratic for large plates
+    HashSet<String> seriesPaths = new HashSet<String>();
+    for (ArrayList<String> paths : resSeries.values()) {
+      seriesPaths.addAll(paths);
+    }
+    ArrayList<String> orderedPaths = new ArrayList<String>(arrayPaths.size());
+    for (String arrayPath: arrayPaths) {
+      if (!seriesPaths.contains(arrayPath)) {
+        orderedPaths.add(arrayPath);
       }
+    }
+    boolean includeLabels = includeLabels();
+    for (int i = 0; i < resSeries.size(); i++) {
       for (String arrayPath: resSeries.get(i)) {
-        if (includeLabels() || !arrayPath.toLowerCase().contains("labels")) {
-          arrayPaths.add(arrayPath);
+        if (includeLabels || !arrayPath.toLowerCase().contains("labels")) {
+          orderedPaths.add(arrayPath);
         }
       }
     }
+    arrayPaths.clear();
+    arrayPaths.addAll(orderedPaths);
+    arrayPathIndexes.clear();
+    for (int i = 0; i < arrayPaths.size(); i++) {
+      arrayPathIndexes.putIfAbsent(arrayPaths.get(i), i);
+    }
+  }
+
+  /**
+   * @return the instance of path already used by the initialization lookups, so equal paths are not held twice
+   */
+  private String sharePath(String path) {
+    String shared = sharedPaths.putIfAbsent(path, path);
+    return shared == null ? path : shared;
   }
 
   private void parseResolutionCount(String root, String key, Map<String, Object> attr) throws IOException, FormatException {
@@ -635,21 +1061,26 @@ public class ZarrReader extends FormatReader {
             if (!pathDimensions.contains("z")) pathDimensions.add(0, "z");
           }
         }
+        // Plates typically repeat the same axes for every image, share a single copy
+        List<String> axes = axisDescriptors.putIfAbsent(pathDimensions, pathDimensions);
+        List<String> sharedDimensions = axes == null ? pathDimensions : axes;
         ArrayList<Object> multiscalePaths = (ArrayList<Object>)datasets.get("datasets");
         resSeries.put(resCounts.size(), new ArrayList<String>());
         for (int i = 0; i < multiscalePaths.size(); i++) {
           Map<String, Object> multiScale = (Map<String, Object>) multiscalePaths.get(i);
           String scalePath = (String) multiScale.get("path");
           int numRes = multiscalePaths.size();
+          // The same path instance is used as the key for every lookup and ends up in arrayPaths
+          String arrayPath = sharePath(key.isEmpty() ? scalePath : key + File.separator + scalePath);
           if (i == 0) {
-            resCounts.put(key.isEmpty() ? scalePath : key + File.separator + scalePath, numRes);
+            resCounts.put(arrayPath, numRes);
             uniqueResCounts.add(numRes);
           }
-          resIndexes.put(key.isEmpty() ? scalePath : key + File.separator + scalePath, i);
+          resIndexes.put(arrayPath, i);
           ArrayList<String> list = resSeries.get(resCounts.size() - 1);
-          list.add(key.isEmpty() ? scalePath : key + File.separator + scalePath);
+          list.add(arrayPath);
           resSeries.put(resCounts.size() - 1, list);
-          pathArrayDimensions.put(key.isEmpty() ? scalePath : key + File.separator + scalePath, pathDimensions);
+          pathArrayDimensions.put(arrayPath, sharedDimensions);
         }
         List<Object> coordinateTransformations = (List<Object>)datasets.get("coordinateTransformations");
         if (coordinateTransformations != null) {
@@ -667,7 +1098,7 @@ public class ZarrReader extends FormatReader {
     }
   }
 
-  private void generateArrayKeys(Map<String, Object> attr, String canonicalPath) {
+  private void generateArrayKeys(Map<String, Object> attr, String canonicalPath) throws IOException, FormatException {
     if (uniqueResCounts.size() != 1) {
       LOGGER.debug("Cannout automatically generate ArrayKeys as resolution counts differ");
     }
@@ -678,14 +1109,25 @@ public class ZarrReader extends FormatReader {
       Integer fieldCount = (Integer) plates.get("field_count");
       for (Object row: rows) {
         String rowName = ((Map<String, String>) row).get("name");
+        if (!hasChildKey(canonicalPath, "", rowName)) {
+          continue;
+        }
         for (Object column: columns) {
           String columnName = ((Map<String, String>) column).get("name");
+          String columnKey = rowName + File.separator + columnName;
+          if (!hasChildKey(canonicalPath, rowName, columnName)) {
+            continue;
+          }
           for (int i = 0; i < fieldCount; i++) {
+            String fieldKey = columnKey + File.separator + i;
+            if (!hasChildKey(canonicalPath, columnKey, String.valueOf(i))) {
+              continue;
+            }
             int resolutionCount = (Integer)(uniqueResCounts.toArray())[0];
             for (int j = 0; j < resolutionCount; j++) {
-              String key = rowName + File.separator + columnName + File.separator + i + File.separator + j;
-              if (Files.isDirectory(Paths.get(canonicalPath+File.separator+key))) {
-                arrayPaths.add(rowName + File.separator + columnName + File.separator + i + File.separator + j);
+              String key = fieldKey + File.separator + j;
+              if (hasChildKey(canonicalPath, fieldKey, String.valueOf(j))) {
+                arrayPaths.add(sharePath(key));
               }
               else {
                 LOGGER.debug("Skipping array path as sparse data: {}", key);
@@ -697,7 +1139,7 @@ public class ZarrReader extends FormatReader {
     }
   }
 
-  private void generateGroupKeys(Map<String, Object> attr, String canonicalPath) {
+  private void generateGroupKeys(Map<String, Object> attr, String canonicalPath) throws IOException, FormatException {
     Map<Object, Object> plates = (Map<Object, Object>) attr.get("plate");
     if (plates != null) {
       ArrayList<Object> columns = (ArrayList<Object>)plates.get("columns");
@@ -706,24 +1148,22 @@ public class ZarrReader extends FormatReader {
 
       for (Object row: rows) {
         String rowName = ((Map<String, String>) row).get("name");
-        if (Files.isDirectory(Paths.get(canonicalPath+File.separator+rowName))) {
-          groupKeys.add(rowName);
-        }
-        else {
+        if (!hasChildKey(canonicalPath, "", rowName)) {
           LOGGER.debug("Skipping group key as sparse data: {}", rowName);
+          continue;
         }
+        groupKeys.add(rowName);
         for (Object column: columns) {
           String columnName = ((Map<String, String>) column).get("name");
           String columnKey = rowName + File.separator + columnName;
-          if (Files.isDirectory(Paths.get(canonicalPath+File.separator+columnKey))) {
-            groupKeys.add(columnKey);
-          }
-          else {
+          if (!hasChildKey(canonicalPath, rowName, columnName)) {
             LOGGER.debug("Skipping group key as sparse data: {}", columnKey);
+            continue;
           }
+          groupKeys.add(columnKey);
           for (int i = 0; i < fieldCount; i++) {
-            String key = rowName + File.separator + columnName + File.separator + i;
-            if (Files.isDirectory(Paths.get(canonicalPath+File.separator+key))) {
+            String key = columnKey + File.separator + i;
+            if (hasChildKey(canonicalPath, columnKey, String.valueOf(i))) {
               groupKeys.add(key);
             }
             else {
@@ -735,6 +1175,24 @@ public class ZarrReader extends FormatReader {
     }
   }
 
+  /**
+   * Sparse plates are detected by listing each row, column and field once rather than
+   * checking for every child individually or listing the whole store
+   * @param canonicalPath the path of the plate
+   * @param parentKey the key of the group to list, empty for the plate itself
+   * @param name the name of the child group or array
+   * @return true if the child exists
+   */
+  private boolean hasChildKey(String canonicalPath, String parentKey, String name) throws IOException, FormatException {
+    Set<String> children = childKeys.get(parentKey);
+    if (children == null) {
+      String parentPath = parentKey.isEmpty() ? canonicalPath : canonicalPath + File.separator + parentKey;
+      children = zarrService.getChildKeys(parentPath);
+      childKeys.put(parentKey, children);
+    }
+    return children.contains(name);
+  }
+
   private void parsePlate(Map<String, Object> attr, String root, String key, MetadataStore store) throws IOException, FormatException {
     Map<Object, Object> plates = (Map<Object, Object>) attr.get("plate");
     if (plates != null) {
@@ -800,6 +1258,14 @@ public class ZarrReader extends FormatReader {
           store.setWellColumn(new NonNegativeInteger(c), 0, wellIndex);
         }
       }
+      // Fetch the attributes of all wells up front, the results are applied below in well order
+      List<Callable<Map<String, Object>>> wellAttrTasks = new ArrayList<Callable<Map<String, Object>>>();
+      for (int w = 0; w < wells.size(); w++) {
+        String wellPath = (String) ((Map<String, Object>) wells.get(w)).get("path");
+        String path = wellPath.isEmpty() ? root : root + File.separator + wellPath;
+        wellAttrTasks.add(() -> zarrService.getGroupAttr(new Location(path).getCanonicalPath()));
+      }
+      List<Map<String, Object>> wellAttrs = fetchMetadata(wellAttrTasks);
       for (int w = 0; w < wells.size(); w++) {
         Map<String, Object> well = (Map<String, Object>) wells.get(w);
         String wellPath = (String) well.get("path");
@@ -828,16 +1294,13 @@ public class ZarrReader extends FormatReader {
         }
         int wellIndex = (wellRowIndex * columns.size()) + wellColIndex;
         store.setWellExternalIdentifier(wellPath, 0, wellIndex);
-        parseWells(root, wellPath, store, 0, wellIndex, acqIdsIndexMap);
+        parseWells(wellAttrs.get(w), wellPath, store, 0, wellIndex, acqIdsIndexMap);
       }
     }
   }
 
-  private void parseWells(String root, String key, MetadataStore store, int plateIndex, int wellIndex,
+  private void parseWells(Map<String, Object> attr, String key, MetadataStore store, int plateIndex, int wellIndex,
       HashMap<Integer, Integer> acqIdsIndexMap) throws IOException, FormatException {
-    String path = key.isEmpty() ? root : root + File.separator + key;
-    String canonicalPath = new Location(path).getCanonicalPath();
-    Map<String, Object> attr = zarrService.getGroupAttr(canonicalPath);
     Map<Object, Object> wells = (Map<Object, Object>) attr.get("well");
     if (wells != null) {
       ArrayList<Object> images = (ArrayList<Object>)wells.get("images");
@@ -858,7 +1321,8 @@ public class ZarrReader extends FormatReader {
         if (resCounts.containsKey(imageRefPath + File.separator + "0")) {
           imageRefPath += File.separator + "0";
         }
-        String imageID = MetadataTools.createLSID("Image", coreIndexToSeries(arrayPaths.indexOf(imageRefPath)));
+        Integer coreIndex = arrayPathIndexes.get(imageRefPath);
+        String imageID = MetadataTools.createLSID("Image", coreIndexToSeries(coreIndex == null ? -1 : coreIndex));
         store.setWellSampleImageRef(imageID, plateIndex, wellIndex, i);
         if (acquisition != null && acquisition >= 0) {
           store.setPlateAcquisitionWellSampleRef(site_id, plateIndex, (int) acquisition, i);
@@ -868,6 +1332,45 @@ public class ZarrReader extends FormatReader {
     }
   }
 
+  /**
+   * Runs the metadata lookups, in parallel on up to omezarr.metadata_threads threads.
+   * @return the results in the same order as the tasks
+   */
+  private <T> List<T> fetchMetadata(List<Callable<T>> tasks) throws IOException, FormatException {
+    List<T> results = new ArrayList<T>(tasks.size());
+    int threads = Math.min(metadataThreads(), tasks.size());
+    if (threads <= 1) {
+      for (Callable<T> task : tasks) {
+        try {
+          results.add(task.call());
+        } catch (IOException | FormatException | RuntimeException e) {
+          throw e;
+        } catch (Exception e) {
+          throw new IOException(e);
+        }
+      }
+      return results;
+    }
+    ExecutorService executor = Executors.newFixedThreadPool(threads);
+    try {
+      for (Future<T> future : executor.invokeAll(tasks)) {
+        results.add(future.get());
+      }
+      return results;
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IOException("Interrupted while reading metadata", e);
+    } catch (ExecutionException e) {
+      Throwable cause = e.getCause();
+      if (cause instanceof IOException) throw (IOException) cause;
+      if (cause instanceof FormatException) throw (FormatException) cause;
+      if (cause instanceof RuntimeException) throw (RuntimeException) cause;
+      throw new IOException(cause);
+    } finally {
+      executor.shutdownNow();
+    }
+  }
+
   private void parseLabels(String root, Map<String, Object> attr) throws IOException, FormatException {
     ArrayList<Object> labels = (ArrayList<Object>) attr.get("labels");
     if (labels != null) {
@@ -946,37 +1449,48 @@ public class ZarrReader extends FormatReader {
     }
   }
 
-  private void parseOMEXML(Location omeMetaFile, MetadataStore store, ArrayList<String> origSeries) throws IOException, FormatException {
-    Document omeDocument = null;
-    try (RandomAccessInputStream measurement =
-        new RandomAccessInputStream(omeMetaFile.getAbsolutePath())) {
+  /**
+   * Builds the metadata from the parsed document, documents using an older schema
+   * are serialized and upgraded to the latest schema by the service
+   */
+  private static OMEXMLMetadata createOMEXMLMetadata(OMEXMLService service, Document document) throws ServiceException {
+    Element root = document.getDocumentElement();
+    if (root.getAttribute("xmlns").endsWith("/" + service.getLatestVersion())) {
+      OMEXMLMetadata omexmlMeta = service.createOMEXMLMetadata();
       try {
-        omeDocument = XMLTools.parseDOM(measurement);
-      }
-      catch (ParserConfigurationException e) {
-        throw new IOException(e);
+        omexmlMeta.setRoot(new OMEXMLMetadataRoot(root));
       }
-      catch (SAXException e) {
-        throw new IOException(e);
+      catch (EnumerationException e) {
+        throw new ServiceException(e);
       }
+      return omexmlMeta;
+    }
+    try {
+      return service.createOMEXMLMetadata(XMLTools.getXML(document));
+    }
+    catch (TransformerException e) {
+      throw new ServiceException(e);
     }
-    omeDocument.getDocumentElement().normalize();
+  }
 
-    OMEXMLService service = null;
-    String xml = null;
-    try
-    {
-      xml = XMLTools.getXML( omeDocument );
+  private void parseOMEXML(Location omeMetaFile, MetadataStore store, ArrayList<String> origSeries) throws IOException, FormatException {
+    // The document is parsed straight from the file, so the parser detects the encoding
+    // and no String copy of the whole document is held for large plates
+    Document document = null;
+    try (RandomAccessInputStream measurement =
+        new RandomAccessInputStream(omeMetaFile.getAbsolutePath())) {
+      document = XMLTools.parseDOM(measurement);
     }
-    catch (TransformerException e2 )
-    {
-      LOGGER.debug( "", e2 );
+    catch (ParserConfigurationException | SAXException e) {
+      throw new FormatException("Unable to parse " + omeMetaFile.getAbsolutePath(), e);
     }
+
+    OMEXMLService service = null;
     OMEXMLMetadata omexmlMeta = null;
     try
     {
       service = new ServiceFactory().getInstance( OMEXMLService.class );
-      omexmlMeta = service.createOMEXMLMetadata( xml );
+      omexmlMeta = createOMEXMLMetadata(service, document);
       if (saveAnnotations()) {
         Hashtable originalMetadata = service.getOriginalMetadata(omexmlMeta);
         if (originalMetadata != null) metadata = originalMetadata;
@@ -1163,6 +1677,23 @@ public class ZarrReader extends FormatReader {
     optionsList.add(QUICK_READ_KEY);
     optionsList.add(INCLUDE_LABELS_KEY);
     optionsList.add(ALT_STORE_KEY);
+    optionsList.add(CHUNK_CACHE_SIZE_KEY);
+    optionsList.add(READ_THREADS_KEY);
+    optionsList.add(READ_AHEAD_SIZE_KEY);
+    optionsList.add(CHUNK_INDEX_KEY);
+    optionsList.add(CONSOLIDATED_METADATA_KEY);
+    optionsList.add(METADATA_THREADS_KEY);
+    optionsList.add(S3_MAX_CONNECTIONS_KEY);
+    optionsList.add(S3_SOCKET_TIMEOUT_KEY);
+    optionsList.add(S3_REQUEST_TIMEOUT_KEY);
+    optionsList.add(S3_MAX_REQUESTS_KEY);
+    optionsList.add(DISK_CACHE_DIR_KEY);
+    optionsList.add(DISK_CACHE_SIZE_KEY);
+    optionsList.add(COALESCE_REQUESTS_KEY);
+    optionsList.add(MEMORY_MAP_SIZE_KEY);
+    optionsList.add(LAZY_SHAPES_KEY);
+    optionsList.add(METADATA_INDEX_KEY);
+    optionsList.add(METADATA_INDEX_DIR_KEY);
     return optionsList;
   }
 
@@ -1232,6 +1763,84 @@ public class ZarrReader extends FormatReader {
     return ALT_STORE_DEFAULT;
   }
 
+  /**
+   * Used to set the memory budget of the cache of decompressed chunks
+   * @return int the size of the chunk cache in megabytes, default is 0 which disables the cache
+   */
+  public int chunkCacheSize() {
+    MetadataOptions options = getMetadataOptions();
+    if (options instanceof DynamicMetadataOptions) {
+      return ((DynamicMetadataOptions) options).getInteger(
+          CHUNK_CACHE_SIZE_KEY, CHUNK_CACHE_SIZE_DEFAULT);
+    }
+    return CHUNK_CACHE_SIZE_DEFAULT;
+  }
+
+  /**
+   * Used to decide how many chunks of a single openBytes call are fetched and decompressed in parallel
+   * @return int the number of threads used for reading chunks, default is 1 which reads on the calling thread
+   */
+  public int readThreads() {
+    MetadataOptions options = getMetadataOptions();
+    if (options instanceof DynamicMetadataOptions) {
+      return ((DynamicMetadataOptions) options).getInteger(
+          READ_THREADS_KEY, READ_THREADS_DEFAULT);
+    }
+    return READ_THREADS_DEFAULT;
+  }
+
+  /**
+   * Used to enable reading ahead of sequentially requested tiles and planes
+   * @return int the maximum size in megabytes of the tiles read ahead, default is 0 which disables read ahead
+   */
+  public int readAheadSize() {
+    MetadataOptions options = getMetadataOptions();
+    if (options instanceof DynamicMetadataOptions) {
+      return ((DynamicMetadataOptions) options).getInteger(
+          READ_AHEAD_SIZE_KEY, READ_AHEAD_SIZE_DEFAULT);
+    }
+    return READ_AHEAD_SIZE_DEFAULT;
+  }
+
+  /**
+   * Used to decide if the chunks of each array are listed up front so that missing chunks are not requested
+   * @return boolean true if missing chunks should be answered from the fill value without accessing the store, default is false
+   */
+  public boolean chunkIndex() {
+    MetadataOptions options = getMetadataOptions();
+    if (options instanceof DynamicMetadataOptions) {
+      return ((DynamicMetadataOptions) options).getBoolean(
+          CHUNK_INDEX_KEY, CHUNK_INDEX_DEFAULT);
+    }
+    return CHUNK_INDEX_DEFAULT;
+  }
+
+  /**
+   * Used to decide if a consolidated .zmetadata document should be used in place of the individual metadata files
+   * @return boolean true if consolidated metadata should be used when present, default is false
+   */
+  public boolean consolidatedMetadata() {
+    MetadataOptions options = getMetadataOptions();
+    if (options instanceof DynamicMetadataOptions) {
+      return ((DynamicMetadataOptions) options).getBoolean(
+          CONSOLIDATED_METADATA_KEY, CONSOLIDATED_METADATA_DEFAULT);
+    }
+    return CONSOLIDATED_METADATA_DEFAULT;
+  }
+
+  /**
+   * Used to decide how many group attributes are fetched in parallel while initializing plates
+   * @return int the number of threads used for fetching metadata, default is 1 which fetches on the calling thread
+   */
+  public int metadataThreads() {
+    MetadataOptions options = getMetadataOptions();
+    if (options instanceof DynamicMetadataOptions) {
+      return ((DynamicMetadataOptions) options).getInteger(
+          METADATA_THREADS_KEY, METADATA_THREADS_DEFAULT);
+    }
+    return METADATA_THREADS_DEFAULT;
+  }
+
   private boolean systemEnvListPixels() {
     String value = System.getenv(LIST_PIXELS_ENV_KEY);
     if (value != null && value.equalsIgnoreCase("true")) return true;
@@ -1239,6 +1848,149 @@ public class ZarrReader extends FormatReader {
     return LIST_PIXELS_DEFAULT;
   }
   
+  /**
+   * Used to set the maximum number of connections of the S3 client shared by readers of the same endpoint
+   * @return int the maximum number of open connections, default is 50
+   */
+  public int s3MaxConnections() {
+    MetadataOptions options = getMetadataOptions();
+    if (options instanceof DynamicMetadataOptions) {
+      return ((DynamicMetadataOptions) options).getInteger(
+          S3_MAX_CONNECTIONS_KEY, S3_MAX_CONNECTIONS_DEFAULT);
+    }
+    return S3_MAX_CONNECTIONS_DEFAULT;
+  }
+
+  /**
+   * Used to set the socket timeout of the shared S3 client
+   * @return int the socket timeout in milliseconds, default is 50000
+   */
+  public int s3SocketTimeout() {
+    MetadataOptions options = getMetadataOptions();
+    if (options instanceof DynamicMetadataOptions) {
+      return ((DynamicMetadataOptions) options).getInteger(
+          S3_SOCKET_TIMEOUT_KEY, S3_SOCKET_TIMEOUT_DEFAULT);
+    }
+    return S3_SOCKET_TIMEOUT_DEFAULT;
+  }
+
+  /**
+   * Used to set the timeout of each request of the shared S3 client
+   * @return int the request timeout in milliseconds, default is 0 which disables the timeout
+   */
+  public int s3RequestTimeout() {
+    MetadataOptions options = getMetadataOptions();
+    if (options instanceof DynamicMetadataOptions) {
+      return ((DynamicMetadataOptions) options).getInteger(
+          S3_REQUEST_TIMEOUT_KEY, S3_REQUEST_TIMEOUT_DEFAULT);
+    }
+    return S3_REQUEST_TIMEOUT_DEFAULT;
+  }
+
+  /**
+   * Used to set the maximum number of chunk requests in flight at once when reading from S3
+   * @return int the maximum number of concurrent requests, default is 16
+   */
+  public int s3MaxRequests() {
+    MetadataOptions options = getMetadataOptions();
+    if (options instanceof DynamicMetadataOptions) {
+      return ((DynamicMetadataOptions) options).getInteger(
+          S3_MAX_REQUESTS_KEY, S3_MAX_REQUESTS_DEFAULT);
+    }
+    return S3_MAX_REQUESTS_DEFAULT;
+  }
+
+  /**
+   * Used to set the local directory caching the chunks read from S3
+   * @return String the cache directory, default is null which disables the cache
+   */
+  public String diskCacheDir() {
+    MetadataOptions options = getMetadataOptions();
+    if (options instanceof DynamicMetadataOptions) {
+      return ((DynamicMetadataOptions) options).get(
+          DISK_CACHE_DIR_KEY, DISK_CACHE_DIR_DEFAULT);
+    }
+    return DISK_CACHE_DIR_DEFAULT;
+  }
+
+  /**
+   * Used to set the maximum size of the local directory caching the chunks read from S3
+   * @return int the size limit in megabytes, default is 1024
+   */
+  public int diskCacheSize() {
+    MetadataOptions options = getMetadataOptions();
+    if (options instanceof DynamicMetadataOptions) {
+      return ((DynamicMetadataOptions) options).getInteger(
+          DISK_CACHE_SIZE_KEY, DISK_CACHE_SIZE_DEFAULT);
+    }
+    return DISK_CACHE_SIZE_DEFAULT;
+  }
+
+  /**
+   * Used to decide if concurrent reads of the same chunk from S3 by readers in the same JVM share a single request
+   * @return boolean true if concurrent chunk requests are coalesced, default is false
+   */
+  public boolean coalesceRequests() {
+    MetadataOptions options = getMetadataOptions();
+    if (options instanceof DynamicMetadataOptions) {
+      return ((DynamicMetadataOptions) options).getBoolean(
+          COALESCE_REQUESTS_KEY, COALESCE_REQUESTS_DEFAULT);
+    }
+    return COALESCE_REQUESTS_DEFAULT;
+  }
+
+  /**
+   * Used to enable memory mapping of the uncompressed chunks of local arrays
+   * @return int the maximum size in megabytes of the chunk mappings kept by each array, default is 0 which disables memory mapping
+   */
+  public int memoryMapSize() {
+    MetadataOptions options = getMetadataOptions();
+    if (options instanceof DynamicMetadataOptions) {
+      return ((DynamicMetadataOptions) options).getInteger(
+          MEMORY_MAP_SIZE_KEY, MEMORY_MAP_SIZE_DEFAULT);
+    }
+    return MEMORY_MAP_SIZE_DEFAULT;
+  }
+
+  /**
+   * Used to decide if the shapes of lower resolutions are read when they are first accessed rather than during initialization
+   * @return boolean true if the shapes of lower resolutions should be read lazily, default is false
+   */
+  public boolean lazyShapes() {
+    MetadataOptions options = getMetadataOptions();
+    if (options instanceof DynamicMetadataOptions) {
+      return ((DynamicMetadataOptions) options).getBoolean(
+          LAZY_SHAPES_KEY, LAZY_SHAPES_DEFAULT);
+    }
+    return LAZY_SHAPES_DEFAULT;
+  }
+
+  /**
+   * Used to decide if the result of initialization is stored in and read from a metadata index file
+   * @return boolean true if a metadata index should be used, default is false
+   */
+  public boolean metadataIndex() {
+    MetadataOptions options = getMetadataOptions();
+    if (options instanceof DynamicMetadataOptions) {
+      return ((DynamicMetadataOptions) options).getBoolean(
+          METADATA_INDEX_KEY, METADATA_INDEX_DEFAULT);
+    }
+    return METADATA_INDEX_DEFAULT;
+  }
+
+  /**
+   * Used to provide the directory where metadata index files are stored
+   * @return String representing the index directory or null if the index is stored beside the fileset
+   */
+  public String metadataIndexDir() {
+    MetadataOptions options = getMetadataOptions();
+    if (options instanceof DynamicMetadataOptions) {
+      return ((DynamicMetadataOptions) options).get(
+          METADATA_INDEX_DIR_KEY, METADATA_INDEX_DIR_DEFAULT);
+    }
+    return METADATA_INDEX_DIR_DEFAULT;
+  }
+
   /**
    * Reloads the bfoptions file so that the options are able to be read for each getUsedFiles
    * Otherwise the options are read when initialised and saved as part of the memo file
@@ -31,31 +31,51 @@ import java.io.File;
  * #L%
  */
 
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
 import java.net.URI;
 import java.net.URISyntaxException;
 import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.FileSystem;
 import java.nio.file.FileSystems;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.text.MessageFormat;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.Map;
 import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ForkJoinPool;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import com.amazonaws.ClientConfiguration;
 import com.bc.zarr.ArrayParams;
 import com.bc.zarr.Compressor;
 import com.bc.zarr.CompressorFactory;
 import com.bc.zarr.DataType;
 import com.bc.zarr.ZarrArray;
+import com.bc.zarr.ZarrConstants;
 import com.bc.zarr.ZarrGroup;
+import com.bc.zarr.ZarrUtils;
+import com.bc.zarr.storage.FileSystemStore;
+import com.bc.zarr.storage.Store;
 
 import loci.common.services.AbstractService;
+import loci.formats.CoalescingStore;
+import loci.formats.DiskCachingStore;
 import loci.formats.FormatException;
 import loci.formats.FormatTools;
+import loci.formats.S3ClientRegistry;
 import loci.formats.S3FileSystemStore;
 import loci.formats.meta.IPyramidStore;
 import loci.formats.meta.MetadataRetrieve;
@@ -66,11 +86,32 @@ implements ZarrService  {
   // -- Constants --
   private static final Logger LOGGER = LoggerFactory.getLogger(JZarrServiceImpl.class);
   public static final String NO_ZARR_MSG = "JZARR is required to read Zarr files.";
+  public static final int DEFAULT_ARRAY_CACHE_SIZE = 64;
+  public static final String FILENAME_DOT_ZMETADATA = ".zmetadata";
 
   // -- Fields --
   S3FileSystemStore s3fs;
   ZarrArray zarrArray;
+  ArrayHandle currentArray;
   String currentId;
+  ZarrChunkCache chunkCache;
+  ZarrDiskCache diskCache;
+  ForkJoinPool readExecutor;
+  boolean chunkIndex = false;
+  boolean coalesceRequests = false;
+  long memoryMapSize = 0;
+  boolean consolidatedMetadata = false;
+  private String consolidatedRoot;
+  private Map<String, Object> consolidated;
+  private int arrayCacheSize = DEFAULT_ARRAY_CACHE_SIZE;
+  private long arrayCacheHits = 0;
+  private long arrayCacheMisses = 0;
+  private final Map<String, ArrayHandle> arrayCache = new LinkedHashMap<String, ArrayHandle>(16, 0.75f, true) {
+    @Override
+    protected boolean removeEldestEntry(Map.Entry<String, ArrayHandle> eldest) {
+      return size() > arrayCacheSize;
+    }
+  };
   Compressor zlibComp = CompressorFactory.create("zlib", "level", 8);  // 8 = compression level .. valid values 0 .. 9
   Compressor bloscComp = CompressorFactory.create("blosc", "cname", "lz4hc", "clevel", 7);
   Compressor nullComp = CompressorFactory.create("null");
@@ -79,11 +120,19 @@ implements ZarrService  {
    * Default constructor.
    */
   public JZarrServiceImpl(String root) {
+      this(root, S3ClientRegistry.getDefaultConfiguration());
+  }
+
+  /**
+   * @param root the root of an alternative store or null
+   * @param s3Configuration the configuration of the shared S3 client used when root is an S3 location
+   */
+  public JZarrServiceImpl(String root, ClientConfiguration s3Configuration) {
       checkClassDependency(com.bc.zarr.ZarrArray.class);
       if (root != null && (root.toLowerCase().contains("s3:") || root.toLowerCase().contains("s3."))) {
         String[] pathSplit = root.toString().split(File.separator);
         if (S3FileSystemStore.ENDPOINT_PROTOCOL.contains(pathSplit[0].toLowerCase())) {
-          s3fs = new S3FileSystemStore(Paths.get(root));
+          s3fs = new S3FileSystemStore(Paths.get(root), s3Configuration);
         }
         else {
           LOGGER.warn("Zarr Reader is not using S3FileSystemStore as this is currently for use with S3 configured with a https endpoint");
@@ -94,30 +143,110 @@ implements ZarrService  {
   @Override
   public void open(String file) throws IOException, FormatException {
     currentId = file;
-    zarrArray = getArray(file);
+    currentArray = getArrayHandle(file);
+    zarrArray = currentArray.array;
   }
   
   public void open(String id, ZarrArray array) {
     currentId = id;
+    currentArray = new ArrayHandle(id, array, null);
     zarrArray = array;
   }
   
   public Map<String, Object> getGroupAttr(String path) throws IOException, FormatException {
+    Map<String, Object> attributes = getConsolidatedAttributes(path, ZarrConstants.FILENAME_DOT_ZGROUP);
+    if (attributes != null) {
+      return attributes;
+    }
     return getGroup(path).getAttributes();
   }
 
   public Map<String, Object> getArrayAttr(String path) throws IOException, FormatException {
-    return getArray(path).getAttributes();
+    Map<String, Object> attributes = getConsolidatedAttributes(path, ZarrConstants.FILENAME_DOT_ZARRAY);
+    if (attributes != null) {
+      return attributes;
+    }
+    return getArrayHandle(path).getArray().getAttributes();
+  }
+
+  @Override
+  public String getGroupAttrJson(String path) throws IOException, FormatException {
+    Map<String, Object> attributes = getConsolidatedAttributes(path, ZarrConstants.FILENAME_DOT_ZGROUP);
+    if (attributes != null) {
+      return ZarrService.super.getGroupAttrJson(path);
+    }
+    return readAttributesJson(path);
+  }
+
+  @Override
+  public String getArrayAttrJson(String path) throws IOException, FormatException {
+    Map<String, Object> attributes = getConsolidatedAttributes(path, ZarrConstants.FILENAME_DOT_ZARRAY);
+    if (attributes != null) {
+      return ZarrService.super.getArrayAttrJson(path);
+    }
+    return readAttributesJson(path);
+  }
+
+  /**
+   * Reads .zattrs as stored, without opening the group or array
+   * @return the text of .zattrs or null if it does not exist
+   */
+  private String readAttributesJson(String path) throws IOException {
+    Store store = s3fs == null ? new FileSystemStore(Paths.get(path)) : s3fs.forPath(getZarrRoot(s3fs.getRoot()) + stripZarrRoot(path));
+    try (InputStream is = store.getInputStream(ZarrConstants.FILENAME_DOT_ZATTRS)) {
+      if (is == null) {
+        return null;
+      }
+      ByteArrayOutputStream json = new ByteArrayOutputStream();
+      byte[] buffer = new byte[8192];
+      int n;
+      while ((n = is.read(buffer)) != -1) {
+        json.write(buffer, 0, n);
+      }
+      return new String(json.toByteArray(), StandardCharsets.UTF_8);
+    }
   }
 
   public Set<String> getGroupKeys(String path) throws IOException, FormatException {
+    Set<String> keys = getConsolidatedKeys(path, ZarrConstants.FILENAME_DOT_ZGROUP);
+    if (keys != null) {
+      return keys;
+    }
     return getGroup(path).getGroupKeys();
   }
 
   public Set<String> getArrayKeys(String path) throws IOException, FormatException {
+    Set<String> keys = getConsolidatedKeys(path, ZarrConstants.FILENAME_DOT_ZARRAY);
+    if (keys != null) {
+      return keys;
+    }
     return getGroup(path).getArrayKeys();
   }
 
+  /**
+   * Lists the children of a group from consolidated metadata when present, with a single
+   * delimited listing on S3, and otherwise from the local directory.
+   */
+  @Override
+  public Set<String> getChildKeys(String path) throws IOException, FormatException {
+    Set<String> groupKeys = getConsolidatedKeys(path, ZarrConstants.FILENAME_DOT_ZGROUP);
+    Set<String> arrayKeys = getConsolidatedKeys(path, ZarrConstants.FILENAME_DOT_ZARRAY);
+    if (groupKeys != null && arrayKeys != null) {
+      Set<String> names = new HashSet<String>();
+      for (Set<String> keys : Arrays.asList(groupKeys, arrayKeys)) {
+        for (String key : keys) {
+          int separator = key.indexOf('/');
+          names.add(separator < 0 ? key : key.substring(0, separator));
+        }
+      }
+      return names;
+    }
+    if (s3fs != null) {
+      return s3fs.forPath(getZarrRoot(s3fs.getRoot()) + stripZarrRoot(path)).getChildKeys();
+    }
+    return ZarrService.super.getChildKeys(path);
+  }
+
   public DataType getZarrPixelType(int pixType) {
     DataType pixelType = null;
       switch(pixType) {
@@ -193,32 +322,42 @@ implements ZarrService  {
 
   @Override
   public int[] getShape() {
-    if (zarrArray != null) return zarrArray.getShape();
+    if (currentArray != null) return currentArray.getShape();
     return null;
   }
 
   @Override
   public int[] getChunkSize() {
-    if (zarrArray != null) return zarrArray.getChunks();
+    if (currentArray != null) return currentArray.getChunks();
     return null;
   }
 
   @Override
   public int getPixelType() {
-    if (zarrArray != null) return getOMEPixelType(zarrArray.getDataType());
+    if (currentArray != null) return getOMEPixelType(currentArray.getDataType());
     return 0;
   }
 
   @Override
   public boolean isLittleEndian() {
-    if (zarrArray != null) return (zarrArray.getByteOrder().equals(ByteOrder.LITTLE_ENDIAN));
+    if (currentArray != null) return (currentArray.getByteOrder().equals(ByteOrder.LITTLE_ENDIAN));
     return false;
   }
 
   @Override
   public void close() throws IOException {
+    synchronized (this) {
+      consolidatedRoot = null;
+      consolidated = null;
+    }
     zarrArray = null;
+    currentArray = null;
     currentId = null;
+    clearArrayCache();
+    if (readExecutor != null) {
+      readExecutor.shutdown();
+      readExecutor = null;
+    }
     if (s3fs != null) {
       s3fs.close();
     }
@@ -226,7 +365,7 @@ implements ZarrService  {
 
   @Override
   public boolean isOpen() {
-    return (zarrArray != null && currentId != null);
+    return (currentArray != null && currentId != null);
   }
 
   @Override
@@ -236,9 +375,9 @@ implements ZarrService  {
 
   @Override
   public Object readBytes(int[] shape, int[] offset) throws FormatException, IOException {
-    if (zarrArray != null) {
+    if (currentArray != null) {
       try {
-        return zarrArray.read(shape, offset);
+        return currentArray.getArray().read(shape, offset);
       } catch (InvalidRangeException e) {
         throw new FormatException(e);
       }
@@ -246,9 +385,61 @@ implements ZarrService  {
     else throw new IOException("No Zarr file opened");
   }
 
+  @Override
+  public void readBytes(byte[] buf, int[] shape, int[] offset, boolean littleEndian) throws FormatException, IOException {
+    if (currentArray == null) {
+      throw new IOException("No Zarr file opened");
+    }
+    readBytes(currentArray, buf, shape, offset, littleEndian);
+  }
+
+  /**
+   * Reads from the cached array for the given path without changing the currently opened array.
+   * The opened arrays and their chunk readers are shared, so this may be called from several threads at once.
+   */
+  @Override
+  public void readBytes(String path, byte[] buf, int[] shape, int[] offset, boolean littleEndian) throws FormatException, IOException {
+    readBytes(getArrayHandle(path), buf, shape, offset, littleEndian);
+  }
+
+  @Override
+  public int[] getShape(String path) throws IOException, FormatException {
+    return getArrayHandle(path).getShape();
+  }
+
+  @Override
+  public String getVersion(String path, String key) throws IOException {
+    if (s3fs == null) {
+      return ZarrService.super.getVersion(path, key);
+    }
+    return s3fs.forPath(getZarrRoot(s3fs.getRoot()) + stripZarrRoot(path)).getETag(key);
+  }
+
+  private void readBytes(ArrayHandle handle, byte[] buf, int[] shape, int[] offset, boolean littleEndian) throws FormatException, IOException {
+    ZarrChunkReader reader = handle.getChunkReader();
+    if (reader != null) {
+      reader.read(buf, shape, offset, littleEndian);
+    }
+    else {
+      try {
+        ZarrChunkReader.copyPixels(handle.getArray().read(shape, offset), buf, littleEndian);
+      } catch (InvalidRangeException e) {
+        throw new FormatException(e);
+      }
+    }
+  }
+
   @Override
   public void saveBytes(Object data, int[] shape, int[] offset) throws FormatException, IOException {
     if (zarrArray != null) {
+      if (chunkCache != null) {
+        chunkCache.clear();
+      }
+      ZarrChunkReader reader = currentArray == null ? null : currentArray.chunkReader;
+      if (reader != null) {
+        // Chunk files may be truncated while they are rewritten
+        reader.clearMappedChunks();
+      }
       try {
         zarrArray.write(data, shape, offset);
       } catch (InvalidRangeException e) {
@@ -326,6 +517,8 @@ implements ZarrService  {
       zarrArray = ZarrArray.create(file, params);
     }
     currentId = file;
+    currentArray = new ArrayHandle(file, zarrArray, null);
+    clearArrayCache();
   }
 
   @Override
@@ -341,31 +534,433 @@ implements ZarrService  {
     return path.substring(0, path.indexOf(".zarr")+5);
   }
 
+  /**
+   * Returns the consolidated metadata of the Zarr hierarchy containing the path, reading .zmetadata on first use.
+   * @return the metadata documents keyed by their path relative to the root or null if there is no .zmetadata
+   */
+  private synchronized Map<String, Object> getConsolidatedMetadata(String path) {
+    if (!consolidatedMetadata || path.indexOf(".zarr") < 0) {
+      return null;
+    }
+    String root = getZarrRoot(path);
+    if (!root.equals(consolidatedRoot)) {
+      consolidatedRoot = root;
+      consolidated = readConsolidatedMetadata(root);
+    }
+    return consolidated;
+  }
+
+  private Map<String, Object> readConsolidatedMetadata(String root) {
+    Store store = s3fs == null ? new FileSystemStore(Paths.get(root)) : s3fs.forPath(getZarrRoot(s3fs.getRoot()));
+    try (InputStream is = store.getInputStream(FILENAME_DOT_ZMETADATA)) {
+      if (is == null) {
+        return null;
+      }
+      try (BufferedReader reader = new BufferedReader(new InputStreamReader(is, StandardCharsets.UTF_8))) {
+        Object metadata = ZarrUtils.fromJson(reader, Map.class).get("metadata");
+        if (metadata instanceof Map) {
+          LOGGER.debug("Using consolidated metadata of {}", root);
+          return (Map<String, Object>) metadata;
+        }
+        LOGGER.warn("Ignoring {} of {} as it has no metadata", FILENAME_DOT_ZMETADATA, root);
+      }
+    } catch (IOException | RuntimeException e) {
+      LOGGER.warn("Unable to read consolidated metadata of {}", root, e);
+    }
+    return null;
+  }
+
+  /**
+   * @return the prefix of the consolidated metadata keys of the group or array at path
+   */
+  private String getMetadataPrefix(String path) {
+    String relative = stripZarrRoot(path).replace(File.separatorChar, '/');
+    while (relative.startsWith("/")) {
+      relative = relative.substring(1);
+    }
+    while (relative.endsWith("/")) {
+      relative = relative.substring(0, relative.length() - 1);
+    }
+    return relative.isEmpty() ? "" : relative + "/";
+  }
+
+  /**
+   * @param type the metadata document identifying the node, .zgroup or .zarray
+   * @return the attributes of the node or null if it is not in the consolidated metadata
+   */
+  private Map<String, Object> getConsolidatedAttributes(String path, String type) {
+    Map<String, Object> metadata = getConsolidatedMetadata(path);
+    if (metadata == null) {
+      return null;
+    }
+    String prefix = getMetadataPrefix(path);
+    if (!metadata.containsKey(prefix + type)) {
+      return null;
+    }
+    Object attributes = metadata.get(prefix + ZarrConstants.FILENAME_DOT_ZATTRS);
+    if (attributes instanceof Map) {
+      return new HashMap<String, Object>((Map<String, Object>) attributes);
+    }
+    return new HashMap<String, Object>();
+  }
+
+  /**
+   * @param type the metadata document identifying the nodes to list, .zgroup or .zarray
+   * @return the keys of the nodes below the group at path or null if it is not in the consolidated metadata
+   */
+  private Set<String> getConsolidatedKeys(String path, String type) {
+    Map<String, Object> metadata = getConsolidatedMetadata(path);
+    if (metadata == null) {
+      return null;
+    }
+    String prefix = getMetadataPrefix(path);
+    if (!metadata.containsKey(prefix + ZarrConstants.FILENAME_DOT_ZGROUP)) {
+      return null;
+    }
+    String suffix = "/" + type;
+    TreeSet<String> keys = new TreeSet<String>();
+    for (String key : metadata.keySet()) {
+      if (key.startsWith(prefix)) {
+        String relative = key.substring(prefix.length());
+        if (relative.endsWith(suffix)) {
+          keys.add(relative.substring(0, relative.length() - suffix.length()));
+        }
+      }
+    }
+    return keys;
+  }
+
+  /**
+   * @return the .zarray of the array at path from the consolidated metadata or null if it is not available
+   */
+  private Map<String, Object> getConsolidatedHeader(String path) {
+    Map<String, Object> metadata = getConsolidatedMetadata(path);
+    if (metadata == null) {
+      return null;
+    }
+    Object header = metadata.get(getMetadataPrefix(path) + ZarrConstants.FILENAME_DOT_ZARRAY);
+    return header instanceof Map ? (Map<String, Object>) header : null;
+  }
+
   private ZarrGroup getGroup(String path) throws IOException {
     ZarrGroup group = null;
     if (s3fs == null) {
       group = ZarrGroup.open(path);
     }
     else {
-      s3fs.updateRoot(getZarrRoot(s3fs.getRoot()) + stripZarrRoot(path));
-      group = ZarrGroup.open(s3fs);
+      group = ZarrGroup.open(s3fs.forPath(getZarrRoot(s3fs.getRoot()) + stripZarrRoot(path)));
     }
     return group;
   }
-  
-  private ZarrArray getArray(String path) throws IOException {
-    ZarrArray array = null;
+
+  /**
+   * Returns the opened array for the given path, reusing a previously opened
+   * array from the cache where possible.
+   */
+  private ArrayHandle getArrayHandle(String path) throws IOException {
+    synchronized (arrayCache) {
+      ArrayHandle handle = arrayCache.get(path);
+      if (handle != null) {
+        arrayCacheHits++;
+        return handle;
+      }
+      arrayCacheMisses++;
+    }
+    ArrayHandle handle = null;
     if (s3fs == null) {
-      array = ZarrArray.open(path);
+      handle = getConsolidatedHandle(path, null, null);
+      if (handle == null) {
+        handle = new ArrayHandle(path, ZarrArray.open(path), null);
+      }
     }
     else {
-      s3fs.updateRoot(getZarrRoot(s3fs.getRoot()) + stripZarrRoot(path));
-      array = ZarrArray.open(s3fs);
+      S3FileSystemStore store = s3fs.forPath(getZarrRoot(s3fs.getRoot()) + stripZarrRoot(path));
+      // The disk cache wraps the S3 store directly so that it can validate cached chunks by ETag
+      Store chunkStore = diskCache != null ? new DiskCachingStore(store, store.getRoot(), diskCache) : store;
+      if (coalesceRequests) {
+        // Reads are only shared between stores using the same client and so the same credentials
+        chunkStore = new CoalescingStore(chunkStore, store.getRoot(), store.getClient());
+      }
+      handle = getConsolidatedHandle(path, store, chunkStore);
+      if (handle == null) {
+        handle = new ArrayHandle(path, ZarrArray.open(store), chunkStore);
+      }
     }
-    return array;
+    synchronized (arrayCache) {
+      arrayCache.put(path, handle);
+    }
+    return handle;
   }
-  
+
+  /**
+   * Creates a handle from the consolidated .zarray so that the array itself is not opened.
+   * @return the handle or null if there is no usable consolidated .zarray for path
+   */
+  private ArrayHandle getConsolidatedHandle(String path, Store arrayStore, Store store) {
+    Map<String, Object> header = getConsolidatedHeader(path);
+    if (header == null) {
+      return null;
+    }
+    try {
+      return new ArrayHandle(path, header, arrayStore, store);
+    } catch (FormatException | RuntimeException e) {
+      LOGGER.debug("Opening {} as its consolidated .zarray is incomplete", path, e);
+      return null;
+    }
+  }
+
+  private void clearArrayCache() {
+    synchronized (arrayCache) {
+      arrayCache.clear();
+    }
+    if (chunkCache != null) {
+      chunkCache.clear();
+    }
+  }
+
+  /**
+   * Sets the maximum number of opened arrays which are kept for reuse.
+   * @param size the maximum number of arrays to cache, 0 disables the cache
+   */
+  public void setArrayCacheSize(int size) {
+    synchronized (arrayCache) {
+      arrayCacheSize = Math.max(0, size);
+      Iterator<String> keys = arrayCache.keySet().iterator();
+      while (arrayCache.size() > arrayCacheSize && keys.hasNext()) {
+        keys.next();
+        keys.remove();
+      }
+    }
+  }
+
+  /**
+   * Sets the memory budget of the cache of decompressed chunks shared by all arrays opened by this service.
+   * @param bytes the maximum number of bytes of chunk data to cache, 0 disables the cache
+   */
+  public void setChunkCacheSize(long bytes) {
+    chunkCache = bytes > 0 ? new ZarrChunkCache(bytes) : null;
+    // Drop the opened arrays so that their chunk readers pick up the new cache
+    clearArrayCache();
+  }
+
+  /**
+   * Sets whether the uncompressed chunks of local arrays are memory mapped and copied straight into the output buffer.
+   * @param bytes the maximum number of bytes of chunk mappings kept for reuse by each array, 0 disables memory mapping
+   */
+  public void setMemoryMapSize(long bytes) {
+    memoryMapSize = bytes;
+    // Drop the opened arrays so that their chunk readers pick up the change
+    clearArrayCache();
+  }
+
+  /**
+   * Sets whether concurrent reads of the same chunk from S3, by any reader in the JVM, share a single request.
+   * @param enabled true to coalesce concurrent chunk requests
+   */
+  public void setCoalesceRequests(boolean enabled) {
+    coalesceRequests = enabled;
+    // Drop the opened arrays so that their stores pick up the change
+    clearArrayCache();
+  }
+
+  /**
+   * Sets the local directory used to cache the chunks read from S3 across readers, processes and restarts.
+   * Has no effect unless an S3 store is used.
+   * @param directory the cache directory or null to disable the cache
+   * @param bytes the maximum number of bytes held in the directory
+   * @throws IOException if the directory could not be created
+   */
+  public void setDiskCache(String directory, long bytes) throws IOException {
+    diskCache = s3fs != null && directory != null && bytes > 0 ? new ZarrDiskCache(Paths.get(directory), bytes) : null;
+    // Drop the opened arrays so that their stores pick up the new cache
+    clearArrayCache();
+  }
+
+  /**
+   * @return the disk cache of chunks read from S3 or null if it is disabled
+   */
+  public ZarrDiskCache getDiskCache() {
+    return diskCache;
+  }
+
+  /**
+   * Sets the number of threads used to fetch and decompress the chunks of a single read in parallel.
+   * @param threads the maximum number of chunks to read concurrently, 1 or less reads on the calling thread
+   */
+  public void setReadThreads(int threads) {
+    if (readExecutor != null) {
+      readExecutor.shutdown();
+    }
+    readExecutor = threads > 1 ? new ForkJoinPool(threads) : null;
+    // Drop the opened arrays so that their chunk readers pick up the new executor
+    clearArrayCache();
+  }
+
+  /**
+   * Sets the maximum number of chunk requests in flight at once when reading a region from S3.
+   * Has no effect unless an S3 store is used.
+   * @param max the maximum number of concurrent requests
+   */
+  public void setMaxConcurrentRequests(int max) {
+    if (s3fs != null) {
+      s3fs.setMaxConcurrentRequests(max);
+      // Drop the opened arrays so that their stores pick up the new bound
+      clearArrayCache();
+    }
+  }
+
+  /**
+   * Sets whether group and array metadata is read from a consolidated .zmetadata document when one exists.
+   * @param enabled true to use consolidated metadata, false to always read the individual metadata files
+   */
+  public synchronized void setConsolidatedMetadata(boolean enabled) {
+    consolidatedMetadata = enabled;
+    consolidatedRoot = null;
+    consolidated = null;
+  }
+
+  /**
+   * Sets whether the chunks present in each array are listed once when the array is first read.
+   * Reads of chunks missing from the listing return the fill value without accessing the store.
+   * @param enabled true to list the chunks of each array
+   */
+  public void setChunkIndex(boolean enabled) {
+    chunkIndex = enabled;
+    // Drop the opened arrays so that their chunk readers pick up the change
+    clearArrayCache();
+  }
+
+  /**
+   * @return the cache of decompressed chunks or null if chunk caching is disabled
+   */
+  public ZarrChunkCache getChunkCache() {
+    return chunkCache;
+  }
+
+  /**
+   * @return the number of times an opened array was reused from the cache
+   */
+  public long getArrayCacheHits() {
+    synchronized (arrayCache) {
+      return arrayCacheHits;
+    }
+  }
+
+  /**
+   * @return the number of times an array had to be opened from the store
+   */
+  public long getArrayCacheMisses() {
+    synchronized (arrayCache) {
+      return arrayCacheMisses;
+    }
+  }
+
   public boolean usingS3FileSystemStore() {
     return s3fs != null;
   }
+
+  /**
+   * An opened Zarr array together with the store and chunk reader used to read its pixels.
+   */
+  class ArrayHandle {
+    final String path;
+    final Store store;
+    private final Store arrayStore;
+    private ZarrArray array;
+    private final int[] shape;
+    private final int[] chunks;
+    private final DataType dataType;
+    private final ByteOrder byteOrder;
+    private ZarrChunkReader chunkReader;
+    private boolean chunkReaderUnsupported = false;
+
+    ArrayHandle(String path, ZarrArray array, Store store) {
+      this.path = path;
+      this.array = array;
+      this.store = store;
+      this.arrayStore = null;
+      this.shape = null;
+      this.chunks = null;
+      this.dataType = null;
+      this.byteOrder = null;
+    }
+
+    /**
+     * Creates a handle described by a consolidated .zarray, the array is only opened when it is read via JZarr.
+     * @param arrayStore the store rooted at the array or null to open the array from path
+     */
+    ArrayHandle(String path, Map<String, Object> header, Store arrayStore, Store store) throws FormatException {
+      this.path = path;
+      this.store = store;
+      this.arrayStore = arrayStore;
+      shape = ZarrChunkReader.toIntArray(header.get("shape"));
+      chunks = ZarrChunkReader.toIntArray(header.get("chunks"));
+      Object dtype = header.get("dtype");
+      if (shape == null || chunks == null || !(dtype instanceof String) || ((String) dtype).length() < 3) {
+        throw new FormatException("Invalid consolidated .zarray for " + path);
+      }
+      String type = (String) dtype;
+      try {
+        dataType = DataType.valueOf(type.substring(1));
+      } catch (IllegalArgumentException e) {
+        throw new FormatException("Unsupported dtype: " + dtype, e);
+      }
+      byteOrder = type.charAt(0) == '<' ? ByteOrder.LITTLE_ENDIAN : ByteOrder.BIG_ENDIAN;
+    }
+
+    synchronized ZarrArray getArray() throws IOException {
+      if (array == null) {
+        array = arrayStore != null ? ZarrArray.open(arrayStore) : ZarrArray.open(path);
+      }
+      return array;
+    }
+
+    int[] getShape() {
+      return shape != null ? shape.clone() : array.getShape();
+    }
+
+    int[] getChunks() {
+      return chunks != null ? chunks.clone() : array.getChunks();
+    }
+
+    DataType getDataType() {
+      return dataType != null ? dataType : array.getDataType();
+    }
+
+    ByteOrder getByteOrder() {
+      return byteOrder != null ? byteOrder : array.getByteOrder();
+    }
+
+    /**
+     * Lazily creates the chunk reader for this array.
+     * Arrays the chunk reader cannot handle fall back to reading via JZarr.
+     * @return the chunk reader or null if the array is not supported
+     */
+    synchronized ZarrChunkReader getChunkReader() {
+      if (chunkReader == null && !chunkReaderUnsupported) {
+        try {
+          Store chunkStore = store != null ? store : new FileSystemStore(Paths.get(path));
+          Map<String, Object> header = getConsolidatedHeader(path);
+          chunkReader = header != null ? new ZarrChunkReader(chunkStore, header) : new ZarrChunkReader(chunkStore);
+          chunkReader.setChunkCache(chunkCache, path);
+          chunkReader.setExecutor(readExecutor);
+          if (store == null && memoryMapSize > 0) {
+            chunkReader.setLocalRoot(Paths.get(path), memoryMapSize);
+          }
+        } catch (IOException | FormatException | RuntimeException e) {
+          LOGGER.debug("Falling back to JZarr for reading {}", path, e);
+          chunkReaderUnsupported = true;
+          return null;
+        }
+        if (chunkIndex) {
+          try {
+            chunkReader.setChunkIndex(ZarrChunkReader.listChunkKeys(chunkReader.getStore()));
+          } catch (IOException | RuntimeException e) {
+            LOGGER.debug("Unable to list the chunks of {}", path, e);
+          }
+        }
+      }
+      return chunkReader;
+    }
+  }
 }
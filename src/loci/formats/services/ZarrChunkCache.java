@@ -0,0 +1,128 @@
+package loci.formats.services;
+
+/*-
+ * #%L
+ * Implementation of Bio-Formats readers for the next-generation file formats
+ * %%
+ * Copyright (C) 2020 - 2022 Open Microscopy Environment
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Least recently used cache of decompressed chunks, bounded by the total
+ * number of bytes held rather than the number of chunks.
+ */
+public class ZarrChunkCache {
+
+  // -- Fields --
+  private final long maxBytes;
+  private long currentBytes = 0;
+  private long hits = 0;
+  private long misses = 0;
+  private final LinkedHashMap<String, byte[]> chunks = new LinkedHashMap<String, byte[]>(16, 0.75f, true);
+
+  /**
+   * @param maxBytes the maximum number of bytes of chunk data to hold
+   */
+  public ZarrChunkCache(long maxBytes) {
+    this.maxBytes = maxBytes;
+  }
+
+  /**
+   * Builds the cache key for a chunk of an array.
+   * @param arrayPath the path of the array
+   * @param chunkKey the store key of the chunk within the array
+   * @return the cache key
+   */
+  public static String getKey(String arrayPath, String chunkKey) {
+    return arrayPath + '/' + chunkKey;
+  }
+
+  /**
+   * @param key the cache key of the chunk
+   * @return the cached chunk or null if it is not cached
+   */
+  public synchronized byte[] get(String key) {
+    byte[] chunk = chunks.get(key);
+    if (chunk != null) {
+      hits++;
+    }
+    else {
+      misses++;
+    }
+    return chunk;
+  }
+
+  /**
+   * Adds a chunk, evicting the least recently used chunks until the cache is within budget.
+   * Chunks larger than the whole budget are not cached.
+   * The cached array must not be modified afterwards.
+   * @param key the cache key of the chunk
+   * @param chunk the decompressed chunk
+   */
+  public synchronized void put(String key, byte[] chunk) {
+    if (chunk.length > maxBytes) {
+      return;
+    }
+    byte[] previous = chunks.put(key, chunk);
+    if (previous != null) {
+      currentBytes -= previous.length;
+    }
+    currentBytes += chunk.length;
+    Iterator<Map.Entry<String, byte[]>> entries = chunks.entrySet().iterator();
+    while (currentBytes > maxBytes && entries.hasNext()) {
+      currentBytes -= entries.next().getValue().length;
+      entries.remove();
+    }
+  }
+
+  public synchronized void clear() {
+    chunks.clear();
+    currentBytes = 0;
+  }
+
+  public long getMaxBytes() {
+    return maxBytes;
+  }
+
+  public synchronized long getCurrentBytes() {
+    return currentBytes;
+  }
+
+  public synchronized int getChunkCount() {
+    return chunks.size();
+  }
+
+  public synchronized long getHits() {
+    return hits;
+  }
+
+  public synchronized long getMisses() {
+    return misses;
+  }
+}
@@ -0,0 +1,776 @@
+package loci.formats.services;
+
+/*-
+ * #%L
+ * Implementation of Bio-Formats readers for the next-generation file formats
+ * %%
+ * Copyright (C) 2020 - 2022 Open Microscopy Environment
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.DoubleBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import com.bc.zarr.Compressor;
+import com.bc.zarr.CompressorFactory;
+import com.bc.zarr.ZarrConstants;
+import com.bc.zarr.ZarrUtils;
+import com.bc.zarr.storage.Store;
+
+import loci.formats.BatchStore;
+import loci.formats.FormatException;
+
+/**
+ * Reads regions of a single Zarr array chunk by chunk, copying the
+ * decompressed chunk rows straight into a caller supplied byte array
+ * rather than going through an intermediate typed array.
+ */
+public class ZarrChunkReader {
+
+  // -- Constants --
+  // The maximum number of chunks fetched at once from a batch store, bounding the memory held per read
+  private static final int BATCH_CHUNKS = 64;
+  public static final long DEFAULT_MAX_MAPPED_BYTES = 256L * 1024 * 1024;
+
+  // -- Fields --
+  private final Store store;
+  private final int[] shape;
+  private final int[] chunks;
+  private final int bytesPerPixel;
+  private final ByteOrder byteOrder;
+  private final Compressor compressor;
+  private final String separator;
+  private final Object fillValue;
+  private final int chunkBytes;
+  private byte[] fillChunk;
+  private ZarrChunkCache cache;
+  private String cacheId;
+  private ExecutorService executor;
+  private Set<String> existingChunks;
+  private final boolean uncompressed;
+  private Path localRoot;
+  private long maxMappedBytes = DEFAULT_MAX_MAPPED_BYTES;
+  private long mappedBytes = 0;
+  // Mappings of recently read chunks, least recently used first
+  private final LinkedHashMap<String, ByteBuffer> mappedChunks = new LinkedHashMap<String, ByteBuffer>(16, 0.75f, true);
+
+  /**
+   * Creates a reader for the array whose .zarray is found at the root of the store.
+   * @param store the store rooted at the Zarr array
+   * @throws IOException if the .zarray could not be read
+   * @throws FormatException if the array uses features this reader does not support
+   */
+  public ZarrChunkReader(Store store) throws IOException, FormatException {
+    this(store, readHeader(store));
+  }
+
+  /**
+   * Creates a reader for the array described by the given .zarray content.
+   * @param store the store rooted at the Zarr array
+   * @param header the parsed .zarray content
+   * @throws FormatException if the array uses features this reader does not support
+   */
+  public ZarrChunkReader(Store store, Map<String, Object> header) throws FormatException {
+    this.store = store;
+    shape = toIntArray(header.get("shape"));
+    chunks = toIntArray(header.get("chunks"));
+    if (shape == null || chunks == null || shape.length != chunks.length) {
+      throw new FormatException("Invalid shape or chunks in .zarray");
+    }
+
+    Object order = header.get("order");
+    if (order != null && !"C".equals(order)) {
+      throw new FormatException("Unsupported array order: " + order);
+    }
+    Object filters = header.get("filters");
+    if (filters instanceof List && !((List<?>) filters).isEmpty()) {
+      throw new FormatException("Zarr filters are not supported");
+    }
+
+    Object dtype = header.get("dtype");
+    if (!(dtype instanceof String) || ((String) dtype).length() < 3) {
+      throw new FormatException("Unsupported dtype: " + dtype);
+    }
+    String type = (String) dtype;
+    char kind = type.charAt(1);
+    try {
+      bytesPerPixel = Integer.parseInt(type.substring(2));
+    }
+    catch (NumberFormatException e) {
+      throw new FormatException("Unsupported dtype: " + dtype, e);
+    }
+    boolean supported = (kind == 'i' || kind == 'u') && (bytesPerPixel == 1 || bytesPerPixel == 2 || bytesPerPixel == 4);
+    supported |= kind == 'f' && (bytesPerPixel == 4 || bytesPerPixel == 8);
+    if (!supported) {
+      throw new FormatException("Unsupported dtype: " + dtype);
+    }
+    byteOrder = type.charAt(0) == '<' ? ByteOrder.LITTLE_ENDIAN : ByteOrder.BIG_ENDIAN;
+    fillValue = getFillValue(header.get("fill_value"), kind);
+
+    Object dimensionSeparator = header.get("dimension_separator");
+    separator = dimensionSeparator == null ? "." : dimensionSeparator.toString();
+
+    Map<String, Object> compressorConfig = (Map<String, Object>) header.get("compressor");
+    uncompressed = compressorConfig == null || "null".equals(compressorConfig.get("id"));
+    if (compressorConfig == null) {
+      compressor = CompressorFactory.create("null");
+    }
+    else {
+      List<Object> keyValues = new ArrayList<Object>();
+      for (Map.Entry<String, Object> entry : compressorConfig.entrySet()) {
+        if (!entry.getKey().equals("id")) {
+          keyValues.add(entry.getKey());
+          keyValues.add(entry.getValue());
+        }
+      }
+      try {
+        compressor = CompressorFactory.create((String) compressorConfig.get("id"), keyValues.toArray());
+      }
+      catch (IllegalArgumentException e) {
+        throw new FormatException(e);
+      }
+    }
+
+    long size = bytesPerPixel;
+    for (int chunk : chunks) {
+      size *= chunk;
+    }
+    if (size > Integer.MAX_VALUE) {
+      throw new FormatException("Chunk size too large: " + size);
+    }
+    chunkBytes = (int) size;
+  }
+
+  /**
+   * Reads the .zarray content from the root of the store.
+   * @param store the store rooted at the Zarr array
+   * @return the parsed .zarray content
+   * @throws IOException if the .zarray is missing or could not be parsed
+   */
+  public static Map<String, Object> readHeader(Store store) throws IOException {
+    try (InputStream is = store.getInputStream(ZarrConstants.FILENAME_DOT_ZARRAY)) {
+      if (is == null) {
+        throw new IOException("Unable to locate " + ZarrConstants.FILENAME_DOT_ZARRAY);
+      }
+      try (BufferedReader reader = new BufferedReader(new InputStreamReader(is))) {
+        return ZarrUtils.fromJson(reader, Map.class);
+      }
+    }
+  }
+
+  public Store getStore() {
+    return store;
+  }
+
+  public int[] getShape() {
+    return shape;
+  }
+
+  public int[] getChunks() {
+    return chunks;
+  }
+
+  public int getBytesPerPixel() {
+    return bytesPerPixel;
+  }
+
+  public ByteOrder getByteOrder() {
+    return byteOrder;
+  }
+
+  /**
+   * Sets the cache used to hold decompressed chunks between reads.
+   * @param cache the shared chunk cache or null to disable caching
+   * @param arrayPath the path identifying this array within the cache
+   */
+  public void setChunkCache(ZarrChunkCache cache, String arrayPath) {
+    this.cache = cache;
+    this.cacheId = arrayPath;
+  }
+
+  /**
+   * Sets the executor used to fetch and decompress the chunks of a region in parallel.
+   * @param executor the executor to use or null to read chunks on the calling thread
+   */
+  public void setExecutor(ExecutorService executor) {
+    this.executor = executor;
+  }
+
+  /**
+   * Sets the keys of the chunks which exist in the store.
+   * Chunks missing from the index are filled with the fill value without accessing the store.
+   * @param keys the keys of the existing chunks, as returned by {@link #listChunkKeys(Store)}, or null to always access the store
+   */
+  public void setChunkIndex(Set<String> keys) {
+    this.existingChunks = keys;
+  }
+
+  /**
+   * Sets the local directory holding the chunks of the array.
+   * Uncompressed chunks found there are memory mapped and copied straight into the output buffer.
+   * @param root the directory of the array or null to always read chunks through the store
+   */
+  public void setLocalRoot(Path root) {
+    setLocalRoot(root, DEFAULT_MAX_MAPPED_BYTES);
+  }
+
+  /**
+   * Sets the local directory holding the chunks of the array.
+   * Uncompressed chunks found there are memory mapped and copied straight into the output buffer,
+   * and the mappings of recently read chunks are kept for reuse by later reads.
+   * @param root the directory of the array or null to always read chunks through the store
+   * @param maxBytes the maximum number of bytes of chunk mappings to keep
+   */
+  public void setLocalRoot(Path root, long maxBytes) {
+    this.localRoot = root;
+    this.maxMappedBytes = maxBytes;
+    clearMappedChunks();
+  }
+
+  /**
+   * Drops the kept chunk mappings, which must be done before the chunk files are rewritten.
+   */
+  public synchronized void clearMappedChunks() {
+    mappedChunks.clear();
+    mappedBytes = 0;
+  }
+
+  /**
+   * @return the number of chunk mappings kept for reuse
+   */
+  public synchronized int getMappedChunkCount() {
+    return mappedChunks.size();
+  }
+
+  /**
+   * Lists all keys of the store with a single listing, for use as a chunk index.
+   * @param store the store rooted at the Zarr array
+   * @return the keys relative to the root of the store
+   */
+  public static Set<String> listChunkKeys(Store store) throws IOException {
+    try (Stream<String> keys = store.getRelativeLeafKeys("")) {
+      return keys.collect(Collectors.toCollection(HashSet::new));
+    }
+  }
+
+  /**
+   * Reads the requested region into the buffer in C order.
+   * @param buf the buffer to populate, must hold at least the product of shape times the bytes per pixel
+   * @param regionShape int array representing the shape of each dimension
+   * @param offset int array representing the offset of each dimension
+   * @param littleEndian true if the values should be written to buf as little endian
+   */
+  public void read(byte[] buf, int[] regionShape, int[] offset, boolean littleEndian) throws FormatException, IOException {
+    int rank = shape.length;
+    if (regionShape.length != rank || offset.length != rank) {
+      throw new FormatException("Region rank does not match array rank " + rank);
+    }
+    long size = bytesPerPixel;
+    for (int d = 0; d < rank; d++) {
+      if (offset[d] < 0 || regionShape[d] < 0 || offset[d] + regionShape[d] > shape[d]) {
+        throw new FormatException("Region " + Arrays.toString(regionShape) + " at "
+            + Arrays.toString(offset) + " is outside array of shape " + Arrays.toString(shape));
+      }
+      size *= regionShape[d];
+    }
+    if (size == 0) {
+      return;
+    }
+    if (size > buf.length) {
+      throw new FormatException("Buffer too small, expected " + size + " bytes but got " + buf.length);
+    }
+
+    boolean swap = bytesPerPixel > 1 && littleEndian != (byteOrder == ByteOrder.LITTLE_ENDIAN);
+    int[] first = new int[rank];
+    int[] last = new int[rank];
+    for (int d = 0; d < rank; d++) {
+      first[d] = offset[d] / chunks[d];
+      last[d] = (offset[d] + regionShape[d] - 1) / chunks[d];
+    }
+    int[] chunkIndex = first.clone();
+    if (store instanceof BatchStore && localRoot == null && !Arrays.equals(first, last)) {
+      readBatched((BatchStore) store, first, last, buf, regionShape, offset, swap);
+      return;
+    }
+    if (executor == null || Arrays.equals(first, last)) {
+      do {
+        copyChunk(chunkIndex, buf, regionShape, offset, swap);
+      } while (increment(chunkIndex, first, last));
+      return;
+    }
+
+    // Each chunk fills a distinct part of buf so the chunks can be copied concurrently
+    List<Future<Void>> futures = new ArrayList<Future<Void>>();
+    do {
+      if (!chunkExists(chunkIndex)) {
+        copyChunk(ByteBuffer.wrap(getFillChunk()), chunkIndex, buf, regionShape, offset, swap);
+        continue;
+      }
+      final int[] index = chunkIndex.clone();
+      futures.add(executor.submit(() -> {
+        copyChunk(index, buf, regionShape, offset, swap);
+        return null;
+      }));
+    } while (increment(chunkIndex, first, last));
+    waitFor(futures);
+  }
+
+  /**
+   * Reads a region spanning several chunks from a store which fetches the missing chunks
+   * of each batch concurrently, rather than with one request after another.
+   */
+  private void readBatched(BatchStore batchStore, int[] first, int[] last, byte[] buf, int[] regionShape,
+      int[] offset, boolean swap) throws FormatException, IOException {
+    int[] chunkIndex = first.clone();
+    List<int[]> pending = new ArrayList<int[]>();
+    do {
+      if (!chunkExists(chunkIndex)) {
+        copyChunk(ByteBuffer.wrap(getFillChunk()), chunkIndex, buf, regionShape, offset, swap);
+        continue;
+      }
+      byte[] cached = cache == null ? null : cache.get(ZarrChunkCache.getKey(cacheId, getChunkKey(chunkIndex)));
+      if (cached != null) {
+        copyChunk(ByteBuffer.wrap(cached), chunkIndex, buf, regionShape, offset, swap);
+        continue;
+      }
+      pending.add(chunkIndex.clone());
+      if (pending.size() == BATCH_CHUNKS) {
+        fetchChunks(batchStore, pending, buf, regionShape, offset, swap);
+        pending.clear();
+      }
+    } while (increment(chunkIndex, first, last));
+    if (!pending.isEmpty()) {
+      fetchChunks(batchStore, pending, buf, regionShape, offset, swap);
+    }
+  }
+
+  /**
+   * Fetches the given chunks with a single batch request and copies them into the buffer,
+   * decompressing in parallel when an executor is set.
+   */
+  private void fetchChunks(BatchStore batchStore, List<int[]> chunkIndexes, byte[] buf, int[] regionShape,
+      int[] offset, boolean swap) throws FormatException, IOException {
+    List<String> keys = new ArrayList<String>();
+    for (int[] chunkIndex : chunkIndexes) {
+      keys.add(getChunkKey(chunkIndex));
+    }
+    Map<String, byte[]> fetched = batchStore.getBytes(keys);
+    List<Future<Void>> futures = new ArrayList<Future<Void>>();
+    for (int i = 0; i < chunkIndexes.size(); i++) {
+      final int[] chunkIndex = chunkIndexes.get(i);
+      final String key = keys.get(i);
+      final byte[] bytes = fetched.get(key);
+      if (executor == null) {
+        copyFetchedChunk(key, bytes, chunkIndex, buf, regionShape, offset, swap);
+        continue;
+      }
+      futures.add(executor.submit(() -> {
+        copyFetchedChunk(key, bytes, chunkIndex, buf, regionShape, offset, swap);
+        return null;
+      }));
+    }
+    waitFor(futures);
+  }
+
+  private void copyFetchedChunk(String key, byte[] bytes, int[] chunkIndex, byte[] buf, int[] regionShape,
+      int[] offset, boolean swap) throws FormatException, IOException {
+    byte[] chunk = bytes == null ? getFillChunk() : decodeChunk(key, new ByteArrayInputStream(bytes));
+    if (cache != null && chunk != fillChunk) {
+      cache.put(ZarrChunkCache.getKey(cacheId, key), chunk);
+    }
+    copyChunk(ByteBuffer.wrap(chunk), chunkIndex, buf, regionShape, offset, swap);
+  }
+
+  private static void waitFor(List<Future<Void>> futures) throws FormatException, IOException {
+    try {
+      for (Future<Void> future : futures) {
+        future.get();
+      }
+    }
+    catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IOException("Interrupted while reading chunks", e);
+    }
+    catch (ExecutionException e) {
+      Throwable cause = e.getCause();
+      if (cause instanceof IOException) throw (IOException) cause;
+      if (cause instanceof FormatException) throw (FormatException) cause;
+      if (cause instanceof RuntimeException) throw (RuntimeException) cause;
+      throw new IOException(cause);
+    }
+    finally {
+      for (Future<Void> future : futures) {
+        future.cancel(false);
+      }
+    }
+  }
+
+  /**
+   * Returns a decompressed chunk, from the chunk cache if available.
+   * @param chunkIndex the position of the chunk in the chunk grid
+   * @return the decompressed chunk in the array byte order
+   */
+  byte[] getChunk(int[] chunkIndex) throws FormatException, IOException {
+    if (!chunkExists(chunkIndex)) {
+      return getFillChunk();
+    }
+    if (cache == null) {
+      return readChunk(chunkIndex);
+    }
+    String key = ZarrChunkCache.getKey(cacheId, getChunkKey(chunkIndex));
+    byte[] chunk = cache.get(key);
+    if (chunk == null) {
+      chunk = readChunk(chunkIndex);
+      if (chunk != fillChunk) {
+        cache.put(key, chunk);
+      }
+    }
+    return chunk;
+  }
+
+  /**
+   * Reads and decompresses a single chunk.
+   * @param chunkIndex the position of the chunk in the chunk grid
+   * @return the decompressed chunk in the array byte order
+   */
+  byte[] readChunk(int[] chunkIndex) throws FormatException, IOException {
+    String key = getChunkKey(chunkIndex);
+    try (InputStream is = store.getInputStream(key)) {
+      if (is == null) {
+        return getFillChunk();
+      }
+      return decodeChunk(key, is);
+    }
+  }
+
+  /**
+   * Decompresses a chunk read from the store.
+   * @param key the key of the chunk, used in error messages
+   * @param is the compressed chunk
+   * @return the decompressed chunk in the array byte order
+   */
+  private byte[] decodeChunk(String key, InputStream is) throws FormatException, IOException {
+    ChunkOutputStream os = new ChunkOutputStream(chunkBytes);
+    compressor.uncompress(is, os);
+    if (os.size() < chunkBytes) {
+      throw new FormatException("Chunk " + key + " is truncated, expected "
+          + chunkBytes + " bytes but got " + os.size());
+    }
+    return os.getBytes();
+  }
+
+  /**
+   * @return false if the chunk index shows that the chunk was never written
+   */
+  private boolean chunkExists(int[] chunkIndex) {
+    return existingChunks == null || existingChunks.contains(getChunkKey(chunkIndex));
+  }
+
+  /**
+   * Returns the mapping of an uncompressed chunk, reusing a kept mapping where possible.
+   * @param chunkIndex the position of the chunk in the chunk grid
+   * @return the mapped chunk in the array byte order or null if the chunk file does not exist
+   */
+  private ByteBuffer getMappedChunk(int[] chunkIndex) throws FormatException, IOException {
+    String key = getChunkKey(chunkIndex);
+    synchronized (this) {
+      ByteBuffer mapped = mappedChunks.get(key);
+      if (mapped != null) {
+        return mapped;
+      }
+    }
+    ByteBuffer mapped = mapChunk(chunkIndex);
+    if (mapped == null || chunkBytes > maxMappedBytes) {
+      return mapped;
+    }
+    synchronized (this) {
+      if (mappedChunks.put(key, mapped) == null) {
+        mappedBytes += chunkBytes;
+      }
+      // Dropped mappings are unmapped once they are garbage collected
+      Iterator<ByteBuffer> eldest = mappedChunks.values().iterator();
+      while (mappedBytes > maxMappedBytes && eldest.hasNext()) {
+        eldest.next();
+        eldest.remove();
+        mappedBytes -= chunkBytes;
+      }
+    }
+    return mapped;
+  }
+
+  /**
+   * Memory maps an uncompressed chunk from the local directory of the array.
+   * @param chunkIndex the position of the chunk in the chunk grid
+   * @return the mapped chunk in the array byte order or null if the chunk file does not exist
+   */
+  ByteBuffer mapChunk(int[] chunkIndex) throws FormatException, IOException {
+    Path file = localRoot.resolve(getChunkKey(chunkIndex));
+    try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+      if (channel.size() < chunkBytes) {
+        throw new FormatException("Chunk " + file + " is truncated, expected "
+            + chunkBytes + " bytes but got " + channel.size());
+      }
+      // The mapping remains valid after the channel is closed
+      return channel.map(FileChannel.MapMode.READ_ONLY, 0, chunkBytes);
+    }
+    catch (NoSuchFileException e) {
+      return null;
+    }
+  }
+
+  String getChunkKey(int[] chunkIndex) {
+    StringBuilder key = new StringBuilder();
+    for (int d = 0; d < chunkIndex.length; d++) {
+      if (d > 0) {
+        key.append(separator);
+      }
+      key.append(chunkIndex[d]);
+    }
+    return key.toString();
+  }
+
+  /**
+   * Copies the part of a chunk that overlaps the requested region into the buffer,
+   * mapping the chunk file directly where possible.
+   */
+  private void copyChunk(int[] chunkIndex, byte[] buf, int[] regionShape, int[] offset, boolean swap)
+      throws FormatException, IOException {
+    if (localRoot != null && uncompressed && chunkExists(chunkIndex)) {
+      ByteBuffer mapped = getMappedChunk(chunkIndex);
+      if (mapped != null) {
+        copyChunk(mapped, chunkIndex, buf, regionShape, offset, swap);
+        return;
+      }
+    }
+    copyChunk(ByteBuffer.wrap(getChunk(chunkIndex)), chunkIndex, buf, regionShape, offset, swap);
+  }
+
+  /**
+   * Copies the part of the chunk that overlaps the requested region into the buffer.
+   */
+  private void copyChunk(ByteBuffer chunk, int[] chunkIndex, byte[] buf, int[] regionShape, int[] offset, boolean swap) {
+    int rank = shape.length;
+    int[] start = new int[rank];
+    int[] end = new int[rank];
+    for (int d = 0; d < rank; d++) {
+      int chunkStart = chunkIndex[d] * chunks[d];
+      start[d] = Math.max(offset[d], chunkStart);
+      end[d] = Math.min(offset[d] + regionShape[d], chunkStart + chunks[d]);
+    }
+
+    int runLength = (end[rank - 1] - start[rank - 1]) * bytesPerPixel;
+    // Heap chunks are copied with arraycopy, mapped chunks through a private view of the buffer
+    byte[] array = chunk.hasArray() ? chunk.array() : null;
+    ByteBuffer source = array == null ? chunk.duplicate() : null;
+    byte[] row = array == null && swap ? new byte[runLength] : null;
+    int[] position = start.clone();
+    do {
+      long src = 0;
+      long dst = 0;
+      for (int d = 0; d < rank; d++) {
+        src = src * chunks[d] + position[d] - chunkIndex[d] * chunks[d];
+        dst = dst * regionShape[d] + position[d] - offset[d];
+      }
+      int srcPos = (int) (src * bytesPerPixel);
+      int dstPos = (int) (dst * bytesPerPixel);
+      if (array != null) {
+        if (swap) {
+          swapBytes(array, srcPos, buf, dstPos, runLength, bytesPerPixel);
+        }
+        else {
+          System.arraycopy(array, srcPos, buf, dstPos, runLength);
+        }
+      }
+      else {
+        source.position(srcPos);
+        if (swap) {
+          source.get(row, 0, runLength);
+          swapBytes(row, 0, buf, dstPos, runLength, bytesPerPixel);
+        }
+        else {
+          source.get(buf, dstPos, runLength);
+        }
+      }
+    } while (increment(position, start, end, rank - 1));
+  }
+
+  private synchronized byte[] getFillChunk() {
+    if (fillChunk == null) {
+      ByteBuffer buffer = ByteBuffer.allocate(chunkBytes).order(byteOrder);
+      if (fillValue instanceof Double && Double.doubleToRawLongBits((Double) fillValue) != 0) {
+        double value = (Double) fillValue;
+        while (buffer.hasRemaining()) {
+          if (bytesPerPixel == 8) buffer.putDouble(value);
+          else buffer.putFloat((float) value);
+        }
+      }
+      else if (fillValue instanceof Long && (Long) fillValue != 0) {
+        long value = (Long) fillValue;
+        while (buffer.hasRemaining()) {
+          if (bytesPerPixel == 4) buffer.putInt((int) value);
+          else if (bytesPerPixel == 2) buffer.putShort((short) value);
+          else buffer.put((byte) value);
+        }
+      }
+      fillChunk = buffer.array();
+    }
+    return fillChunk;
+  }
+
+  /**
+   * Copies len bytes, reversing the byte order of each bpp sized element.
+   */
+  static void swapBytes(byte[] src, int srcPos, byte[] dst, int dstPos, int len, int bpp) {
+    for (int i = 0; i < len; i += bpp) {
+      for (int b = 0; b < bpp; b++) {
+        dst[dstPos + i + b] = src[srcPos + i + bpp - 1 - b];
+      }
+    }
+  }
+
+  /**
+   * Copies the typed array returned by JZarr into buf using the requested byte order.
+   * @param image the values read from the array
+   * @param buf buffer to populate with the values
+   * @param littleEndian true if the values should be written to buf as little endian
+   */
+  public static void copyPixels(Object image, byte[] buf, boolean littleEndian) {
+    ByteBuffer buffer = ByteBuffer.wrap(buf).order(littleEndian ? ByteOrder.LITTLE_ENDIAN : ByteOrder.BIG_ENDIAN);
+    if (image instanceof byte[]) {
+      byte [] data = (byte []) image;
+      System.arraycopy(data, 0, buf, 0, data.length);
+    }
+    else if (image instanceof short[]) {
+      buffer.asShortBuffer().put((short[]) image);
+    }
+    else if (image instanceof int[]) {
+      buffer.asIntBuffer().put((int[]) image);
+    }
+    else if (image instanceof float[]) {
+      buffer.asFloatBuffer().put((float[]) image);
+    }
+    else if (image instanceof double[]) {
+      buffer.asDoubleBuffer().put((double[]) image);
+    }
+    else if (image instanceof long[]) {
+      // int64 arrays are exposed as DOUBLE, see JZarrServiceImpl.getOMEPixelType
+      long[] data = (long[]) image;
+      DoubleBuffer doubles = buffer.asDoubleBuffer();
+      for (int i = 0; i < data.length; i++) {
+        doubles.put(i, data[i]);
+      }
+    }
+  }
+
+  /**
+   * Advances an odometer style index between first and last inclusive.
+   * @return false once every position has been visited
+   */
+  private static boolean increment(int[] index, int[] first, int[] last) {
+    for (int d = index.length - 1; d >= 0; d--) {
+      if (index[d] < last[d]) {
+        index[d]++;
+        return true;
+      }
+      index[d] = first[d];
+    }
+    return false;
+  }
+
+  /**
+   * Advances an odometer style index over the first dims dimensions, end exclusive.
+   * @return false once every position has been visited
+   */
+  private static boolean increment(int[] index, int[] start, int[] end, int dims) {
+    for (int d = dims - 1; d >= 0; d--) {
+      if (index[d] < end[d] - 1) {
+        index[d]++;
+        return true;
+      }
+      index[d] = start[d];
+    }
+    return false;
+  }
+
+  private static Object getFillValue(Object value, char kind) {
+    if (kind == 'f') {
+      if (value instanceof Number) return ((Number) value).doubleValue();
+      if ("NaN".equals(value)) return Double.NaN;
+      if ("Infinity".equals(value)) return Double.POSITIVE_INFINITY;
+      if ("-Infinity".equals(value)) return Double.NEGATIVE_INFINITY;
+      return 0d;
+    }
+    if (value instanceof Number) return ((Number) value).longValue();
+    return 0L;
+  }
+
+  static int[] toIntArray(Object value) {
+    if (!(value instanceof List)) {
+      return null;
+    }
+    List<?> list = (List<?>) value;
+    int[] values = new int[list.size()];
+    for (int i = 0; i < values.length; i++) {
+      values[i] = ((Number) list.get(i)).intValue();
+    }
+    return values;
+  }
+
+  /**
+   * Avoids copying the decompressed bytes when the chunk fills the initial buffer exactly.
+   */
+  private static class ChunkOutputStream extends ByteArrayOutputStream {
+    ChunkOutputStream(int size) {
+      super(size);
+    }
+
+    byte[] getBytes() {
+      return count == buf.length ? buf : Arrays.copyOf(buf, count);
+    }
+  }
+}
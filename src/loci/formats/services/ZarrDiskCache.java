@@ -0,0 +1,427 @@
+package loci.formats.services;
+
+/*-
+ * #%L
+ * Implementation of Bio-Formats readers for the next-generation file formats
+ * %%
+ * Copyright (C) 2020 - 2022 Open Microscopy Environment
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UTFDataFormatException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Cache of remote objects, such as the compressed chunks of an array on S3, held in a local
+ * directory so that it survives restarts of the JVM. Each object is stored in a file named
+ * by the SHA-256 hash of its location, so several processes may share one directory.
+ * The file also records the version of the object, such as its ETag, so that callers can
+ * check the copy is current before using it.
+ * Files are written to a temporary file and atomically moved into place, and the least
+ * recently used files are deleted once the directory exceeds its size limit.
+ */
+public class ZarrDiskCache {
+
+  // -- Constants --
+  private static final Logger LOGGER = LoggerFactory.getLogger(ZarrDiskCache.class);
+  private static final String SUFFIX = ".chunk";
+  private static final String TMP_SUFFIX = ".tmp";
+  // Written before the version and content of each file, files without it are discarded
+  private static final int MAGIC = 0x5a444331; // ZDC1
+  // Temporary files older than this were left by a process which stopped while writing
+  private static final long STALE_TMP_MILLIS = 60 * 60 * 1000;
+  // Eviction frees space down to this fraction of the limit so that it does not run on every write
+  private static final double LOW_WATER_MARK = 0.9;
+
+  // -- Fields --
+  private final Path directory;
+  private final long maxBytes;
+  private final AtomicLong currentBytes = new AtomicLong();
+  private final AtomicLong hits = new AtomicLong();
+  private final AtomicLong misses = new AtomicLong();
+  private final AtomicLong stale = new AtomicLong();
+
+  /**
+   * @param directory the directory holding the cached objects, created if it does not exist
+   * @param maxBytes the maximum number of bytes held in the directory
+   * @throws IOException if the directory could not be created
+   */
+  public ZarrDiskCache(Path directory, long maxBytes) throws IOException {
+    this.directory = directory;
+    this.maxBytes = maxBytes;
+    Files.createDirectories(directory);
+    currentBytes.set(getDirectorySize());
+  }
+
+  /**
+   * @param location the location of the object, such as the full S3 path of a chunk
+   * @return the cached object or null if it is not cached
+   */
+  public byte[] get(String location) {
+    Entry entry = getEntry(location);
+    return entry == null ? null : entry.bytes;
+  }
+
+  /**
+   * @param location the location of the object, such as the full S3 path of a chunk
+   * @return the cached object and its version or null if it is not cached
+   */
+  public Entry getEntry(String location) {
+    Path file = getFile(location);
+    try {
+      Entry entry = readEntry(file);
+      if (entry != null) {
+        hits.incrementAndGet();
+        // The modification time records the last use for eviction
+        try {
+          Files.setLastModifiedTime(file, FileTime.fromMillis(System.currentTimeMillis()));
+        }
+        catch (IOException e) {
+          LOGGER.debug("Unable to update the access time of {}", file, e);
+        }
+        return entry;
+      }
+      // Written in an older layout, it is replaced when the object is next cached
+      LOGGER.debug("Discarding cached object {}", file);
+      remove(location);
+    }
+    catch (NoSuchFileException e) {
+      // Not cached, or evicted by another process
+    }
+    catch (IOException e) {
+      LOGGER.debug("Unable to read cached object {}", file, e);
+    }
+    misses.incrementAndGet();
+    return null;
+  }
+
+  /**
+   * Records that an entry returned by {@link #getEntry(String)} was found to be out of date,
+   * so that it is counted as a miss rather than a hit.
+   */
+  public void recordStale() {
+    stale.incrementAndGet();
+    hits.decrementAndGet();
+    misses.incrementAndGet();
+  }
+
+  /**
+   * Adds an object without a version.
+   * @param location the location of the object
+   * @param bytes the content of the object
+   */
+  public void put(String location, byte[] bytes) {
+    put(location, null, bytes);
+  }
+
+  /**
+   * Adds an object, evicting the least recently used objects if the directory exceeds its limit.
+   * Objects larger than the whole limit are not cached.
+   * @param location the location of the object
+   * @param version the version of the object, such as its ETag, or null if it is not known
+   * @param bytes the content of the object
+   */
+  public void put(String location, String version, byte[] bytes) {
+    byte[] header = createHeader(version);
+    long size = header.length + bytes.length;
+    if (size > maxBytes) {
+      return;
+    }
+    Path file = getFile(location);
+    Path tmp = null;
+    long replaced = 0;
+    try {
+      Files.createDirectories(file.getParent());
+      tmp = Files.createTempFile(file.getParent(), file.getFileName().toString(), TMP_SUFFIX);
+      try (OutputStream out = Files.newOutputStream(tmp)) {
+        out.write(header);
+        out.write(bytes);
+      }
+      try {
+        replaced = Files.size(file);
+      }
+      catch (NoSuchFileException e) {
+        // Not cached yet
+      }
+      Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+    catch (IOException e) {
+      LOGGER.debug("Unable to cache object {}", file, e);
+      return;
+    }
+    finally {
+      if (tmp != null) {
+        try {
+          Files.deleteIfExists(tmp);
+        }
+        catch (IOException e) {
+          LOGGER.debug("Unable to delete {}", tmp, e);
+        }
+      }
+    }
+    if (currentBytes.addAndGet(size - replaced) > maxBytes) {
+      evict();
+    }
+  }
+
+  private static byte[] createHeader(String version) {
+    try {
+      ByteArrayOutputStream header = new ByteArrayOutputStream();
+      DataOutputStream out = new DataOutputStream(header);
+      out.writeInt(MAGIC);
+      out.writeUTF(version == null ? "" : version);
+      return header.toByteArray();
+    }
+    catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+  }
+
+  /**
+   * @return the entry held in the file or null if it was not written with the current layout
+   */
+  private static Entry readEntry(Path file) throws IOException {
+    byte[] bytes = Files.readAllBytes(file);
+    try {
+      DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes));
+      if (bytes.length < 4 || in.readInt() != MAGIC) {
+        return null;
+      }
+      String version = in.readUTF();
+      byte[] content = new byte[in.available()];
+      in.readFully(content);
+      return new Entry(content, version.isEmpty() ? null : version);
+    }
+    catch (EOFException | UTFDataFormatException e) {
+      return null;
+    }
+  }
+
+  /**
+   * Removes an object, for instance because it was overwritten.
+   * @param location the location of the object
+   */
+  public void remove(String location) throws IOException {
+    Path file = getFile(location);
+    long size = 0;
+    try {
+      size = Files.size(file);
+      Files.delete(file);
+    }
+    catch (NoSuchFileException e) {
+      return;
+    }
+    currentBytes.addAndGet(-size);
+  }
+
+  /**
+   * Deletes all cached objects.
+   */
+  public synchronized void clear() throws IOException {
+    for (Path file : listFiles(SUFFIX)) {
+      Files.deleteIfExists(file);
+    }
+    currentBytes.set(0);
+  }
+
+  /**
+   * Deletes the least recently used objects until the directory is below the low water mark.
+   * The directory is listed again so that objects added by other processes are accounted for.
+   */
+  private synchronized void evict() {
+    if (currentBytes.get() <= maxBytes) {
+      return;
+    }
+    try {
+      deleteStaleTemporaryFiles();
+      List<CachedFile> files = new ArrayList<CachedFile>();
+      long total = 0;
+      for (Path file : listFiles(SUFFIX)) {
+        try {
+          BasicFileAttributes attributes = Files.readAttributes(file, BasicFileAttributes.class);
+          files.add(new CachedFile(file, attributes.size(), attributes.lastModifiedTime().toMillis()));
+          total += attributes.size();
+        }
+        catch (NoSuchFileException e) {
+          // Evicted by another process
+        }
+      }
+      if (total > maxBytes) {
+        files.sort(Comparator.comparingLong(f -> f.lastUsed));
+        long target = (long) (maxBytes * LOW_WATER_MARK);
+        for (CachedFile file : files) {
+          if (total <= target) {
+            break;
+          }
+          Files.deleteIfExists(file.path);
+          total -= file.size;
+        }
+      }
+      currentBytes.set(total);
+    }
+    catch (IOException e) {
+      LOGGER.debug("Unable to evict cached objects from {}", directory, e);
+    }
+  }
+
+  private long getDirectorySize() throws IOException {
+    deleteStaleTemporaryFiles();
+    long total = 0;
+    for (Path file : listFiles(SUFFIX)) {
+      try {
+        total += Files.size(file);
+      }
+      catch (NoSuchFileException e) {
+        // Evicted by another process
+      }
+    }
+    return total;
+  }
+
+  /**
+   * Deletes the temporary files left behind by processes which stopped while writing an object.
+   * Recent temporary files are kept, as they may still be being written by another process.
+   */
+  private void deleteStaleTemporaryFiles() throws IOException {
+    long staleBefore = System.currentTimeMillis() - STALE_TMP_MILLIS;
+    for (Path file : listFiles(TMP_SUFFIX)) {
+      try {
+        if (Files.getLastModifiedTime(file).toMillis() < staleBefore) {
+          LOGGER.debug("Deleting stale temporary file {}", file);
+          Files.deleteIfExists(file);
+        }
+      }
+      catch (NoSuchFileException e) {
+        // Moved into place or deleted by another process
+      }
+    }
+  }
+
+  private List<Path> listFiles(String suffix) throws IOException {
+    try (Stream<Path> paths = Files.walk(directory)) {
+      return paths.filter(path -> path.getFileName().toString().endsWith(suffix)).collect(Collectors.toList());
+    }
+    catch (UncheckedIOException e) {
+      // A subdirectory was removed by another process while walking
+      throw e.getCause();
+    }
+  }
+
+  /**
+   * @param location the location of the object
+   * @return the file holding the object, in a subdirectory named by the first byte of the hash
+   */
+  public Path getFile(String location) {
+    String hash = sha256(location);
+    return directory.resolve(hash.substring(0, 2)).resolve(hash + SUFFIX);
+  }
+
+  private static String sha256(String value) {
+    try {
+      byte[] digest = MessageDigest.getInstance("SHA-256").digest(value.getBytes(StandardCharsets.UTF_8));
+      StringBuilder hex = new StringBuilder();
+      for (byte b : digest) {
+        hex.append(String.format("%02x", b));
+      }
+      return hex.toString();
+    }
+    catch (NoSuchAlgorithmException e) {
+      throw new IllegalStateException(e);
+    }
+  }
+
+  public Path getDirectory() {
+    return directory;
+  }
+
+  public long getMaxBytes() {
+    return maxBytes;
+  }
+
+  public long getCurrentBytes() {
+    return currentBytes.get();
+  }
+
+  public long getHits() {
+    return hits.get();
+  }
+
+  public long getMisses() {
+    return misses.get();
+  }
+
+  public long getStale() {
+    return stale.get();
+  }
+
+  /**
+   * A cached object along with the version it was cached at.
+   */
+  public static class Entry {
+    public final byte[] bytes;
+    public final String version;
+
+    Entry(byte[] bytes, String version) {
+      this.bytes = bytes;
+      this.version = version;
+    }
+  }
+
+  private static class CachedFile {
+    final Path path;
+    final long size;
+    final long lastUsed;
+
+    CachedFile(Path path, long size, long lastUsed) {
+      this.path = path;
+      this.size = size;
+      this.lastUsed = lastUsed;
+    }
+  }
+}
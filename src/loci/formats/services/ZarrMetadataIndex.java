@@ -0,0 +1,326 @@
+package loci.formats.services;
+
+/*-
+ * #%L
+ * Implementation of Bio-Formats readers for the next-generation file formats
+ * %%
+ * Copyright (C) 2020 - 2022 Open Microscopy Environment
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Hashtable;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import loci.formats.CoreMetadata;
+
+/**
+ * The result of initializing a fileset, stored in a compact binary file so that
+ * a reader can be re-initialized without walking the Zarr hierarchy again.
+ * The versions of the root metadata files are stored alongside and must match
+ * before the index is used.
+ */
+public class ZarrMetadataIndex {
+
+  /** Increment whenever the layout of the file changes, older indexes are then ignored. */
+  public static final int FORMAT_VERSION = 3;
+  private static final int MAGIC = 0x4f5a4958; // OZIX
+
+  /** Version token of each validated metadata file, an empty string if the file did not exist */
+  public final Map<String, String> fileVersions = new LinkedHashMap<String, String>();
+  /** The reader options that affect the series layout */
+  public String options = "";
+  public final List<String> arrayPaths = new ArrayList<String>();
+  public final List<CoreMetadata> core = new ArrayList<CoreMetadata>();
+  /** Core indexes of lower resolutions whose shape was deferred by omezarr.lazy_shapes, their sizes are placeholders */
+  public final List<Integer> pendingShapes = new ArrayList<Integer>();
+  public final Hashtable<String, Object> globalMetadata = new Hashtable<String, Object>();
+  public String dimensionOrder = "XYZCT";
+  public int wellCount;
+  public int wellSamplesCount;
+  public boolean hasSPW;
+  /** The OME-XML of the populated metadata store */
+  public String omeXml = "";
+
+  // Type tags of the global metadata values
+  private static final byte TYPE_NULL = 0;
+  private static final byte TYPE_STRING = 1;
+  private static final byte TYPE_INTEGER = 2;
+  private static final byte TYPE_LONG = 3;
+  private static final byte TYPE_FLOAT = 4;
+  private static final byte TYPE_DOUBLE = 5;
+  private static final byte TYPE_BOOLEAN = 6;
+  private static final byte TYPE_LIST = 7;
+  private static final byte TYPE_MAP = 8;
+
+  /**
+   * Writes the index, replacing any existing file atomically.
+   * @param file the index file
+   * @throws IOException if the file cannot be written or a global metadata value is of a type the index cannot restore
+   */
+  public void write(File file) throws IOException {
+    File parent = file.getAbsoluteFile().getParentFile();
+    Files.createDirectories(parent.toPath());
+    File tmp = File.createTempFile(file.getName(), ".tmp", parent);
+    try {
+      try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(tmp.toPath())))) {
+        out.writeInt(MAGIC);
+        out.writeInt(FORMAT_VERSION);
+        out.writeInt(fileVersions.size());
+        for (Map.Entry<String, String> entry : fileVersions.entrySet()) {
+          out.writeUTF(entry.getKey());
+          out.writeUTF(entry.getValue());
+        }
+        out.writeUTF(options);
+        out.writeUTF(dimensionOrder);
+        out.writeInt(wellCount);
+        out.writeInt(wellSamplesCount);
+        out.writeBoolean(hasSPW);
+        out.writeInt(arrayPaths.size());
+        for (String path : arrayPaths) {
+          out.writeUTF(path);
+        }
+        out.writeInt(core.size());
+        for (CoreMetadata ms : core) {
+          writeCoreMetadata(out, ms);
+        }
+        out.writeInt(pendingShapes.size());
+        for (int coreIndex : pendingShapes) {
+          out.writeInt(coreIndex);
+        }
+        out.writeInt(globalMetadata.size());
+        for (Map.Entry<String, Object> entry : globalMetadata.entrySet()) {
+          writeString(out, entry.getKey());
+          writeValue(out, entry.getValue());
+        }
+        writeString(out, omeXml);
+      }
+      Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+    finally {
+      tmp.delete();
+    }
+  }
+
+  /**
+   * Reads an index written by {@link #write(File)}.
+   * @param file the index file
+   * @return the index, or null if the file does not exist or was written in a different format version
+   * @throws IOException if the file cannot be read or is corrupt
+   */
+  public static ZarrMetadataIndex read(File file) throws IOException {
+    if (!file.isFile()) {
+      return null;
+    }
+    // No count or length in a valid index can exceed the size of the file
+    long limit = file.length();
+    try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(file.toPath())))) {
+      if (in.readInt() != MAGIC || in.readInt() != FORMAT_VERSION) {
+        return null;
+      }
+      ZarrMetadataIndex index = new ZarrMetadataIndex();
+      int fileCount = readLength(in, limit);
+      for (int i = 0; i < fileCount; i++) {
+        index.fileVersions.put(in.readUTF(), in.readUTF());
+      }
+      index.options = in.readUTF();
+      index.dimensionOrder = in.readUTF();
+      index.wellCount = in.readInt();
+      index.wellSamplesCount = in.readInt();
+      index.hasSPW = in.readBoolean();
+      int pathCount = readLength(in, limit);
+      for (int i = 0; i < pathCount; i++) {
+        index.arrayPaths.add(in.readUTF());
+      }
+      int coreCount = readLength(in, limit);
+      for (int i = 0; i < coreCount; i++) {
+        index.core.add(readCoreMetadata(in));
+      }
+      int pendingCount = readLength(in, coreCount);
+      for (int i = 0; i < pendingCount; i++) {
+        index.pendingShapes.add(in.readInt());
+      }
+      int metadataCount = readLength(in, limit);
+      for (int i = 0; i < metadataCount; i++) {
+        String key = readString(in, limit);
+        Object value = readValue(in, limit);
+        if (value != null) {
+          index.globalMetadata.put(key, value);
+        }
+      }
+      index.omeXml = readString(in, limit);
+      return index;
+    }
+    catch (EOFException e) {
+      // A truncated index is ignored in the same way as a missing one
+      return null;
+    }
+  }
+
+  private static void writeCoreMetadata(DataOutputStream out, CoreMetadata ms) throws IOException {
+    out.writeInt(ms.sizeX);
+    out.writeInt(ms.sizeY);
+    out.writeInt(ms.sizeZ);
+    out.writeInt(ms.sizeC);
+    out.writeInt(ms.sizeT);
+    out.writeInt(ms.pixelType);
+    out.writeInt(ms.imageCount);
+    out.writeUTF(ms.dimensionOrder);
+    out.writeBoolean(ms.littleEndian);
+    out.writeBoolean(ms.rgb);
+    out.writeBoolean(ms.interleaved);
+    out.writeInt(ms.resolutionCount);
+  }
+
+  private static CoreMetadata readCoreMetadata(DataInputStream in) throws IOException {
+    CoreMetadata ms = new CoreMetadata();
+    ms.sizeX = in.readInt();
+    ms.sizeY = in.readInt();
+    ms.sizeZ = in.readInt();
+    ms.sizeC = in.readInt();
+    ms.sizeT = in.readInt();
+    ms.pixelType = in.readInt();
+    ms.imageCount = in.readInt();
+    ms.dimensionOrder = in.readUTF();
+    ms.littleEndian = in.readBoolean();
+    ms.rgb = in.readBoolean();
+    ms.interleaved = in.readBoolean();
+    ms.resolutionCount = in.readInt();
+    return ms;
+  }
+
+  // writeUTF is limited to 64KB, which the OME-XML and annotation values can exceed
+  private static void writeString(DataOutputStream out, String value) throws IOException {
+    byte[] bytes = value.getBytes("UTF-8");
+    out.writeInt(bytes.length);
+    out.write(bytes);
+  }
+
+  private static String readString(DataInputStream in, long limit) throws IOException {
+    byte[] bytes = new byte[readLength(in, limit)];
+    in.readFully(bytes);
+    return new String(bytes, "UTF-8");
+  }
+
+  private static int readLength(DataInputStream in, long limit) throws IOException {
+    int length = in.readInt();
+    if (length < 0 || length > limit) {
+      throw new IOException("Corrupt metadata index, invalid length " + length);
+    }
+    return length;
+  }
+
+  // Values keep their type so that the restored global metadata matches a full initialization
+  private static void writeValue(DataOutputStream out, Object value) throws IOException {
+    if (value == null) {
+      out.writeByte(TYPE_NULL);
+    }
+    else if (value instanceof String) {
+      out.writeByte(TYPE_STRING);
+      writeString(out, (String) value);
+    }
+    else if (value instanceof Integer) {
+      out.writeByte(TYPE_INTEGER);
+      out.writeInt((Integer) value);
+    }
+    else if (value instanceof Long) {
+      out.writeByte(TYPE_LONG);
+      out.writeLong((Long) value);
+    }
+    else if (value instanceof Float) {
+      out.writeByte(TYPE_FLOAT);
+      out.writeFloat((Float) value);
+    }
+    else if (value instanceof Double) {
+      out.writeByte(TYPE_DOUBLE);
+      out.writeDouble((Double) value);
+    }
+    else if (value instanceof Boolean) {
+      out.writeByte(TYPE_BOOLEAN);
+      out.writeBoolean((Boolean) value);
+    }
+    else if (value instanceof List) {
+      List<?> list = (List<?>) value;
+      out.writeByte(TYPE_LIST);
+      out.writeInt(list.size());
+      for (Object element : list) {
+        writeValue(out, element);
+      }
+    }
+    else if (value instanceof Map) {
+      Map<?, ?> map = (Map<?, ?>) value;
+      out.writeByte(TYPE_MAP);
+      out.writeInt(map.size());
+      for (Map.Entry<?, ?> entry : map.entrySet()) {
+        writeValue(out, entry.getKey());
+        writeValue(out, entry.getValue());
+      }
+    }
+    else {
+      throw new IOException("Global metadata values of type " + value.getClass().getName() + " cannot be indexed");
+    }
+  }
+
+  private static Object readValue(DataInputStream in, long limit) throws IOException {
+    byte type = in.readByte();
+    switch (type) {
+      case TYPE_NULL: return null;
+      case TYPE_STRING: return readString(in, limit);
+      case TYPE_INTEGER: return in.readInt();
+      case TYPE_LONG: return in.readLong();
+      case TYPE_FLOAT: return in.readFloat();
+      case TYPE_DOUBLE: return in.readDouble();
+      case TYPE_BOOLEAN: return in.readBoolean();
+      case TYPE_LIST:
+        int size = readLength(in, limit);
+        ArrayList<Object> list = new ArrayList<Object>(size);
+        for (int i = 0; i < size; i++) {
+          list.add(readValue(in, limit));
+        }
+        return list;
+      case TYPE_MAP:
+        int entries = readLength(in, limit);
+        HashMap<Object, Object> map = new HashMap<Object, Object>();
+        for (int i = 0; i < entries; i++) {
+          map.put(readValue(in, limit), readValue(in, limit));
+        }
+        return map;
+      default:
+        throw new IOException("Corrupt metadata index, unknown value type " + type);
+    }
+  }
+}
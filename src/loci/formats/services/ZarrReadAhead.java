@@ -0,0 +1,327 @@
+package loci.formats.services;
+
+/*-
+ * #%L
+ * Implementation of Bio-Formats readers for the next-generation file formats
+ * %%
+ * Copyright (C) 2020 - 2022 Open Microscopy Environment
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import loci.formats.FormatException;
+
+/**
+ * Detects sequential tile or plane access and reads the predicted next
+ * regions in the background so that they are ready when requested.
+ * Tiles are expected in row-major order within a plane followed by the next plane,
+ * or the same tile of consecutive planes.
+ */
+public class ZarrReadAhead {
+
+  private static final Logger LOGGER = LoggerFactory.getLogger(ZarrReadAhead.class);
+
+  /**
+   * Reads a region into a buffer, must be safe to call from a background thread.
+   */
+  public interface RegionReader {
+    void read(Region region, byte[] buf) throws FormatException, IOException;
+  }
+
+  /**
+   * A tile of a single plane of a series and resolution.
+   */
+  public static class Region {
+    public final int series;
+    public final int resolution;
+    public final int no;
+    public final int x;
+    public final int y;
+    public final int w;
+    public final int h;
+    private final int sizeX;
+    private final int sizeY;
+    private final int imageCount;
+    private final int bytesPerPixel;
+    // The size of the tiles in the interior of the plane, edge tiles may be smaller
+    private final int tileWidth;
+    private final int tileHeight;
+
+    /**
+     * @param series the series of the tile
+     * @param resolution the resolution of the tile
+     * @param no the plane index of the tile
+     * @param x the x coordinate of the tile
+     * @param y the y coordinate of the tile
+     * @param w the width of the tile
+     * @param h the height of the tile
+     * @param sizeX the width of the planes
+     * @param sizeY the height of the planes
+     * @param imageCount the number of planes
+     * @param bytesPerPixel the number of bytes of each pixel
+     */
+    public Region(int series, int resolution, int no, int x, int y, int w, int h,
+        int sizeX, int sizeY, int imageCount, int bytesPerPixel) {
+      this(series, resolution, no, x, y, w, h, sizeX, sizeY, imageCount, bytesPerPixel, w, h);
+    }
+
+    private Region(int series, int resolution, int no, int x, int y, int w, int h,
+        int sizeX, int sizeY, int imageCount, int bytesPerPixel, int tileWidth, int tileHeight) {
+      this.series = series;
+      this.resolution = resolution;
+      this.no = no;
+      this.x = x;
+      this.y = y;
+      this.w = w;
+      this.h = h;
+      this.sizeX = sizeX;
+      this.sizeY = sizeY;
+      this.imageCount = imageCount;
+      this.bytesPerPixel = bytesPerPixel;
+      this.tileWidth = tileWidth;
+      this.tileHeight = tileHeight;
+    }
+
+    public long getBytes() {
+      return (long) w * h * bytesPerPixel;
+    }
+
+    /**
+     * @return the next tile in row-major order, moving on to the next plane after the last tile, or null after the last plane
+     */
+    Region nextTile() {
+      int nextX = x + w;
+      int nextY = y;
+      int nextNo = no;
+      if (nextX >= sizeX) {
+        nextX = 0;
+        nextY = y + h;
+      }
+      if (nextY >= sizeY) {
+        nextY = 0;
+        nextNo = no + 1;
+      }
+      if (nextNo >= imageCount || tileWidth <= 0 || tileHeight <= 0) {
+        return null;
+      }
+      return new Region(series, resolution, nextNo, nextX, nextY,
+          Math.min(tileWidth, sizeX - nextX), Math.min(tileHeight, sizeY - nextY),
+          sizeX, sizeY, imageCount, bytesPerPixel, tileWidth, tileHeight);
+    }
+
+    /**
+     * @return the same tile of the next plane or null after the last plane
+     */
+    Region nextPlane() {
+      if (no + 1 >= imageCount) {
+        return null;
+      }
+      return new Region(series, resolution, no + 1, x, y, w, h,
+          sizeX, sizeY, imageCount, bytesPerPixel, tileWidth, tileHeight);
+    }
+
+    @Override
+    public boolean equals(Object o) {
+      if (!(o instanceof Region)) {
+        return false;
+      }
+      Region r = (Region) o;
+      return series == r.series && resolution == r.resolution && no == r.no &&
+          x == r.x && y == r.y && w == r.w && h == r.h;
+    }
+
+    @Override
+    public int hashCode() {
+      int hash = series;
+      hash = 31 * hash + resolution;
+      hash = 31 * hash + no;
+      hash = 31 * hash + x;
+      hash = 31 * hash + y;
+      hash = 31 * hash + w;
+      return 31 * hash + h;
+    }
+
+    @Override
+    public String toString() {
+      return "series=" + series + ", resolution=" + resolution + ", no=" + no +
+          ", x=" + x + ", y=" + y + ", w=" + w + ", h=" + h;
+    }
+  }
+
+  // -- Fields --
+  private final RegionReader reader;
+  private final long maxBytes;
+  private final ExecutorService executor;
+  private final LinkedHashMap<Region, Future<byte[]>> pending = new LinkedHashMap<Region, Future<byte[]>>();
+  private long pendingBytes = 0;
+  private Region last;
+  private boolean planeOrder = false;
+  private long issued = 0;
+  private long hits = 0;
+  private long wasted = 0;
+
+  /**
+   * @param reader used to read the predicted regions in the background
+   * @param maxBytes the maximum number of bytes of regions being read or waiting to be used
+   */
+  public ZarrReadAhead(RegionReader reader, long maxBytes) {
+    this.reader = reader;
+    this.maxBytes = maxBytes;
+    this.executor = Executors.newSingleThreadExecutor(r -> {
+      Thread thread = new Thread(r, "ZarrReadAhead");
+      thread.setDaemon(true);
+      return thread;
+    });
+  }
+
+  /**
+   * Copies the region into buf if it was read ahead, then schedules the regions
+   * expected to follow it if the access so far has been sequential.
+   * @param region the requested region
+   * @param buf the buffer to populate, at least region.getBytes() long
+   * @return true if buf was populated, false if the caller must read the region itself
+   */
+  public boolean read(Region region, byte[] buf) {
+    Future<byte[]> future;
+    synchronized (this) {
+      future = pending.remove(region);
+      if (future != null) {
+        pendingBytes -= region.getBytes();
+      }
+      schedule(region);
+    }
+    if (future == null) {
+      return false;
+    }
+    try {
+      byte[] data = future.get();
+      System.arraycopy(data, 0, buf, 0, data.length);
+      synchronized (this) {
+        hits++;
+      }
+      return true;
+    }
+    catch (ExecutionException e) {
+      LOGGER.debug("Read ahead of {} failed", region, e.getCause());
+    }
+    catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+    return false;
+  }
+
+  private void schedule(Region region) {
+    Region base = null;
+    if (last != null) {
+      Region nextTile = last.nextTile();
+      Region nextPlane = last.nextPlane();
+      if (region.equals(nextTile)) {
+        base = nextTile;
+        planeOrder = false;
+      }
+      else if (region.equals(nextPlane)) {
+        base = nextPlane;
+        planeOrder = true;
+      }
+    }
+    last = base != null ? base : region;
+    if (base == null) {
+      // Access is no longer sequential so the outstanding regions will not be used
+      cancelPending();
+      return;
+    }
+    Region next = planeOrder ? base.nextPlane() : base.nextTile();
+    while (next != null && (pending.containsKey(next) || pendingBytes + next.getBytes() <= maxBytes)) {
+      if (!pending.containsKey(next)) {
+        final Region target = next;
+        pending.put(target, executor.submit(() -> {
+          byte[] data = new byte[(int) target.getBytes()];
+          reader.read(target, data);
+          return data;
+        }));
+        pendingBytes += target.getBytes();
+        issued++;
+      }
+      next = planeOrder ? next.nextPlane() : next.nextTile();
+    }
+  }
+
+  private void cancelPending() {
+    Iterator<Map.Entry<Region, Future<byte[]>>> entries = pending.entrySet().iterator();
+    while (entries.hasNext()) {
+      entries.next().getValue().cancel(false);
+      entries.remove();
+      wasted++;
+    }
+    pendingBytes = 0;
+  }
+
+  /**
+   * Discards any outstanding regions and stops the background thread.
+   */
+  public synchronized void close() {
+    cancelPending();
+    last = null;
+    executor.shutdownNow();
+  }
+
+  /**
+   * @return the number of regions scheduled to be read ahead
+   */
+  public synchronized long getIssued() {
+    return issued;
+  }
+
+  /**
+   * @return the number of requests served from a region read ahead
+   */
+  public synchronized long getHits() {
+    return hits;
+  }
+
+  /**
+   * @return the number of regions read ahead which were discarded without being used
+   */
+  public synchronized long getWasted() {
+    return wasted;
+  }
+
+  /**
+   * @return the number of bytes of regions being read or waiting to be used
+   */
+  public synchronized long getPendingBytes() {
+    return pendingBytes;
+  }
+}
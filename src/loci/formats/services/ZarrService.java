@@ -29,10 +29,21 @@ package loci.formats.services;
  * #L%
  */
 
+import java.io.File;
 import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.NotDirectoryException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.HashSet;
 import java.util.Map;
 import java.util.Set;
 
+import com.bc.zarr.JZarrException;
+import com.bc.zarr.ZarrUtils;
+
 import loci.common.services.Service;
 import loci.formats.FormatException;
 import loci.formats.meta.MetadataRetrieve;
@@ -82,6 +93,70 @@ public interface ZarrService extends Service {
   */
   public Object readBytes(int [] shape, int [] offset) throws FormatException, IOException;
 
+  /**
+  * Reads values from the Zarr Array directly into the supplied buffer
+  * @param      buf             buffer to populate with the values read
+  * @param      shape           int array representing the shape of each dimension
+  * @param      offset          int array representing the offset of each dimension
+  * @param      littleEndian    true if the values should be written to buf as little endian
+  */
+  default void readBytes(byte[] buf, int [] shape, int [] offset, boolean littleEndian) throws FormatException, IOException {
+    ZarrChunkReader.copyPixels(readBytes(shape, offset), buf, littleEndian);
+  }
+
+  /**
+  * Reads values from the Zarr Array at the given path directly into the supplied buffer
+  * without changing the currently opened array.
+  * Implementations which cache their opened arrays may allow this to be called from several threads at once,
+  * the default implementation temporarily opens the array and is not thread safe.
+  * @param      path            the path of the Zarr Array
+  * @param      buf             buffer to populate with the values read
+  * @param      shape           int array representing the shape of each dimension
+  * @param      offset          int array representing the offset of each dimension
+  * @param      littleEndian    true if the values should be written to buf as little endian
+  */
+  default void readBytes(String path, byte[] buf, int [] shape, int [] offset, boolean littleEndian) throws FormatException, IOException {
+    String previous = getID();
+    open(path);
+    try {
+      readBytes(buf, shape, offset, littleEndian);
+    }
+    finally {
+      if (previous != null) {
+        open(previous);
+      }
+    }
+  }
+
+  /**
+   * Gets the shape of the Zarr Array at the given path without changing the currently opened array.
+   * @param path the path of the Zarr Array
+   * @return  shape.
+   */
+  default int [] getShape(String path) throws IOException, FormatException {
+    String previous = getID();
+    open(path);
+    try {
+      return getShape();
+    }
+    finally {
+      if (previous != null) {
+        open(previous);
+      }
+    }
+  }
+
+  /**
+   * Gets a token identifying the current version of a metadata file, used to validate cached metadata.
+   * @param path the path of the Zarr group or array
+   * @param key the name of the metadata file relative to path, such as .zattrs
+   * @return the modification time and length of the file, or null if the file does not exist
+   */
+  default String getVersion(String path, String key) throws IOException {
+    File file = new File(path, key);
+    return file.exists() ? file.lastModified() + ":" + file.length() : null;
+  }
+
   /**
   * Writes values to the Zarr Array
   * @param      buf            values to be written in a one dimensional array
@@ -105,8 +180,59 @@ public interface ZarrService extends Service {
   public Map<String, Object> getGroupAttr(String path) throws IOException, FormatException;
   
   public Map<String, Object> getArrayAttr(String path) throws IOException, FormatException;
+
+  /**
+   * Gets the attributes of the Zarr Group as JSON, as stored in .zattrs where the implementation allows,
+   * so that they do not have to be serialised again
+   * @param path the path of the Zarr Group
+   * @return the attributes as JSON or null if there are no attributes
+   */
+  default String getGroupAttrJson(String path) throws IOException, FormatException {
+    Map<String, Object> attributes = getGroupAttr(path);
+    try {
+      return attributes == null ? null : ZarrUtils.toJson(attributes, true);
+    } catch (JZarrException e) {
+      throw new IOException(e);
+    }
+  }
+
+  /**
+   * Gets the attributes of the Zarr Array as JSON, as stored in .zattrs where the implementation allows,
+   * so that they do not have to be serialised again
+   * @param path the path of the Zarr Array
+   * @return the attributes as JSON or null if there are no attributes
+   */
+  default String getArrayAttrJson(String path) throws IOException, FormatException {
+    Map<String, Object> attributes = getArrayAttr(path);
+    try {
+      return attributes == null ? null : ZarrUtils.toJson(attributes, true);
+    } catch (JZarrException e) {
+      throw new IOException(e);
+    }
+  }
   
   public Set<String> getGroupKeys(String path) throws IOException, FormatException;
   
   public Set<String> getArrayKeys(String path) throws IOException, FormatException;
+
+  /**
+   * Lists the names of the groups and arrays directly below a group, without walking any deeper.
+   * The default implementation lists the subdirectories of a local group.
+   * @param path the path of the Zarr Group
+   * @return the names of the child groups and arrays, empty if the group does not exist
+   */
+  default Set<String> getChildKeys(String path) throws IOException, FormatException {
+    Set<String> names = new HashSet<String>();
+    try (DirectoryStream<Path> entries = Files.newDirectoryStream(Paths.get(path))) {
+      for (Path entry : entries) {
+        if (Files.isDirectory(entry)) {
+          names.add(entry.getFileName().toString());
+        }
+      }
+    }
+    catch (NoSuchFileException | NotDirectoryException e) {
+      // Missing groups of sparse plates have no children
+    }
+    return names;
+  }
 }
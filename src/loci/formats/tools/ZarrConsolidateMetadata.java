@@ -0,0 +1,311 @@
+package loci.formats.tools;
+
+/*-
+ * #%L
+ * Implementation of Bio-Formats readers for the next-generation file formats
+ * %%
+ * Copyright (C) 2020 - 2022 Open Microscopy Environment
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import com.bc.zarr.JZarrException;
+import com.bc.zarr.ZarrConstants;
+import com.bc.zarr.ZarrUtils;
+import com.bc.zarr.storage.FileSystemStore;
+import com.bc.zarr.storage.Store;
+
+import loci.formats.FormatException;
+import loci.formats.services.JZarrServiceImpl;
+
+/**
+ * Writes a consolidated .zmetadata document for an existing Zarr fileset,
+ * so that the reader can initialize it from a single metadata read.
+ *
+ * Usage: ZarrConsolidateMetadata [-threads N] path/to/fileset.zarr
+ */
+public class ZarrConsolidateMetadata {
+
+  public static final int ZARR_CONSOLIDATED_FORMAT = 1;
+
+  private final int threads;
+  private int groupCount = 0;
+  private int arrayCount = 0;
+  private int fileCount = 0;
+
+  /**
+   * @param threads the number of metadata files read concurrently
+   */
+  public ZarrConsolidateMetadata(int threads) {
+    this.threads = Math.max(1, threads);
+  }
+
+  /**
+   * Walks the groups and arrays below root, reads their metadata files in parallel
+   * and atomically replaces root/.zmetadata with the consolidated document.
+   * @param root the path of the root group of the fileset on the local filesystem
+   * @return the path of the written .zmetadata
+   */
+  public Path consolidate(String root) throws IOException, FormatException {
+    Path rootPath = Paths.get(root);
+    Set<String> groupKeys = new TreeSet<String>();
+    Set<String> arrayKeys = new TreeSet<String>();
+    Map<String, Object> metadata;
+    ExecutorService executor = Executors.newFixedThreadPool(threads);
+    try {
+      walk(executor, rootPath, groupKeys, arrayKeys);
+
+      // The root is listed explicitly whether or not it has a .zgroup
+      Set<String> documents = new LinkedHashSet<String>();
+      addDocuments(documents, "", ZarrConstants.FILENAME_DOT_ZGROUP);
+      for (String key : groupKeys) {
+        addDocuments(documents, key, ZarrConstants.FILENAME_DOT_ZGROUP);
+      }
+      for (String key : arrayKeys) {
+        addDocuments(documents, key, ZarrConstants.FILENAME_DOT_ZARRAY);
+      }
+      metadata = readDocuments(executor, new FileSystemStore(rootPath), new ArrayList<String>(documents));
+    }
+    finally {
+      executor.shutdownNow();
+    }
+
+    fileCount = metadata.size();
+    groupCount = 0;
+    arrayCount = 0;
+    for (String key : metadata.keySet()) {
+      if (key.endsWith(ZarrConstants.FILENAME_DOT_ZGROUP)) groupCount++;
+      if (key.endsWith(ZarrConstants.FILENAME_DOT_ZARRAY)) arrayCount++;
+    }
+    Map<String, Object> consolidated = new HashMap<String, Object>();
+    consolidated.put("zarr_consolidated_format", ZARR_CONSOLIDATED_FORMAT);
+    consolidated.put("metadata", metadata);
+    return write(rootPath, consolidated);
+  }
+
+  /**
+   * Finds the groups and arrays below root in a single pass, listing the directories of each
+   * level of the hierarchy in parallel. Directories containing a .zarray are not descended into,
+   * so chunk files are never listed.
+   */
+  private static void walk(ExecutorService executor, Path root, Set<String> groupKeys, Set<String> arrayKeys)
+      throws IOException, FormatException {
+    List<Path> level = new ArrayList<Path>();
+    level.add(root);
+    while (!level.isEmpty()) {
+      List<Future<Listing>> futures = new ArrayList<Future<Listing>>();
+      for (Path directory : level) {
+        futures.add(executor.submit(() -> list(directory)));
+      }
+      List<Path> nextLevel = new ArrayList<Path>();
+      for (int i = 0; i < level.size(); i++) {
+        Listing listing = get(futures.get(i));
+        String key = normalize(root.relativize(level.get(i)).toString());
+        if (listing.array) {
+          arrayKeys.add(key);
+          continue;
+        }
+        if (listing.group && !key.isEmpty()) {
+          groupKeys.add(key);
+        }
+        nextLevel.addAll(listing.directories);
+      }
+      level = nextLevel;
+    }
+  }
+
+  private static Listing list(Path directory) throws IOException {
+    Listing listing = new Listing();
+    try (DirectoryStream<Path> entries = Files.newDirectoryStream(directory)) {
+      for (Path entry : entries) {
+        String name = entry.getFileName().toString();
+        if (name.equals(ZarrConstants.FILENAME_DOT_ZARRAY)) {
+          listing.array = true;
+        }
+        else if (name.equals(ZarrConstants.FILENAME_DOT_ZGROUP)) {
+          listing.group = true;
+        }
+        else if (Files.isDirectory(entry)) {
+          listing.directories.add(entry);
+        }
+      }
+    }
+    return listing;
+  }
+
+  /**
+   * The metadata files and subdirectories found directly in one directory
+   */
+  private static class Listing {
+    boolean group = false;
+    boolean array = false;
+    final List<Path> directories = new ArrayList<Path>();
+  }
+
+  private static void addDocuments(Set<String> documents, String key, String type) {
+    String prefix = normalize(key);
+    prefix = prefix.isEmpty() ? "" : prefix + "/";
+    documents.add(prefix + type);
+    documents.add(prefix + ZarrConstants.FILENAME_DOT_ZATTRS);
+  }
+
+  private static Map<String, Object> readDocuments(ExecutorService executor, Store store, List<String> documents)
+      throws IOException, FormatException {
+    List<Future<Object>> futures = new ArrayList<Future<Object>>();
+    for (String document : documents) {
+      futures.add(executor.submit(() -> readDocument(store, document)));
+    }
+    Map<String, Object> metadata = new TreeMap<String, Object>();
+    for (int i = 0; i < documents.size(); i++) {
+      Object value = get(futures.get(i));
+      if (value != null) {
+        metadata.put(documents.get(i), value);
+      }
+    }
+    return metadata;
+  }
+
+  private static <T> T get(Future<T> future) throws IOException, FormatException {
+    try {
+      return future.get();
+    }
+    catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IOException("Interrupted while reading metadata", e);
+    }
+    catch (ExecutionException e) {
+      if (e.getCause() instanceof IOException) throw (IOException) e.getCause();
+      throw new FormatException(e.getCause());
+    }
+  }
+
+  private static Object readDocument(Store store, String key) throws IOException {
+    try (InputStream is = store.getInputStream(key)) {
+      if (is == null) {
+        return null;
+      }
+      try (BufferedReader reader = new BufferedReader(new InputStreamReader(is, StandardCharsets.UTF_8))) {
+        return ZarrUtils.fromJson(reader, Map.class);
+      }
+    }
+  }
+
+  private static Path write(Path root, Map<String, Object> consolidated) throws IOException {
+    Path target = root.resolve(JZarrServiceImpl.FILENAME_DOT_ZMETADATA);
+    Path temp = Files.createTempFile(root, JZarrServiceImpl.FILENAME_DOT_ZMETADATA, ".tmp");
+    try {
+      try (Writer writer = Files.newBufferedWriter(temp, StandardCharsets.UTF_8)) {
+        writer.write(ZarrUtils.toJson(consolidated, true));
+      }
+      catch (JZarrException e) {
+        throw new IOException("Unable to convert metadata to JSON", e);
+      }
+      try {
+        Files.move(temp, target, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+      }
+      catch (AtomicMoveNotSupportedException e) {
+        Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING);
+      }
+    }
+    finally {
+      Files.deleteIfExists(temp);
+    }
+    return target;
+  }
+
+  private static String normalize(String key) {
+    String normalized = key.replace('\\', '/');
+    while (normalized.startsWith("/")) {
+      normalized = normalized.substring(1);
+    }
+    while (normalized.endsWith("/")) {
+      normalized = normalized.substring(0, normalized.length() - 1);
+    }
+    return normalized;
+  }
+
+  public int getGroupCount() {
+    return groupCount;
+  }
+
+  public int getArrayCount() {
+    return arrayCount;
+  }
+
+  public int getFileCount() {
+    return fileCount;
+  }
+
+  public static void main(String[] args) throws Exception {
+    int threads = Runtime.getRuntime().availableProcessors();
+    String root = null;
+    for (int i = 0; i < args.length; i++) {
+      if (args[i].equals("-threads") && i + 1 < args.length) {
+        threads = Integer.parseInt(args[++i]);
+      }
+      else if (root == null && !args[i].startsWith("-")) {
+        root = args[i];
+      }
+      else {
+        root = null;
+        break;
+      }
+    }
+    if (root == null) {
+      System.err.println("Usage: ZarrConsolidateMetadata [-threads N] path/to/fileset.zarr");
+      System.exit(2);
+    }
+
+    ZarrConsolidateMetadata tool = new ZarrConsolidateMetadata(threads);
+    long start = System.currentTimeMillis();
+    Path target = tool.consolidate(root);
+    long elapsed = System.currentTimeMillis() - start;
+    System.out.println("Wrote " + target + " with " + tool.getFileCount() + " metadata files from "
+        + tool.getGroupCount() + " groups and " + tool.getArrayCount() + " arrays in " + elapsed + " ms");
+  }
+}
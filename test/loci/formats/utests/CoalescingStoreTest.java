@@ -0,0 +1,256 @@
+package test.loci.formats.utests;
+
+/*-
+ * #%L
+ * Implementation of Bio-Formats readers for the next-generation file formats
+ * %%
+ * Copyright (C) 2020 - 2022 Open Microscopy Environment
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Stream;
+
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import com.bc.zarr.storage.FileSystemStore;
+
+import loci.formats.CoalescingStore;
+
+public class CoalescingStoreTest {
+
+  private static final String LOCATION = "s3/bucket/image.zarr/0";
+  private static final int READERS = 8;
+
+  private Path tempDir;
+  private BlockingStore remote;
+  private ExecutorService executor;
+
+  @BeforeMethod
+  public void setup() throws IOException {
+    tempDir = Files.createTempDirectory("coalescingStoreTest");
+    Files.createDirectories(tempDir.resolve("0"));
+    Files.write(tempDir.resolve("0/0"), new byte[] {1, 2, 3});
+    Files.write(tempDir.resolve("0/1"), new byte[] {4, 5});
+    remote = new BlockingStore(tempDir);
+    executor = Executors.newFixedThreadPool(READERS);
+  }
+
+  @AfterMethod
+  public void teardown() throws IOException {
+    executor.shutdownNow();
+    try (Stream<Path> paths = Files.walk(tempDir)) {
+      paths.sorted(Comparator.reverseOrder()).map(Path::toFile).forEach(File::delete);
+    }
+  }
+
+  @Test
+  public void testConcurrentReadsShareOneFetch() throws Exception {
+    List<CoalescingStore> stores = new ArrayList<CoalescingStore>();
+    List<Future<byte[]>> results = new ArrayList<Future<byte[]>>();
+    for (int i = 0; i < READERS; i++) {
+      // Each reader has its own store, as separate readers of the same fileset would
+      CoalescingStore store = new CoalescingStore(remote, LOCATION);
+      stores.add(store);
+      results.add(executor.submit(() -> read(store, "0/0")));
+    }
+    waitForCoalesced(stores, READERS - 1);
+    remote.release.countDown();
+    for (Future<byte[]> result : results) {
+      assertArrayEquals(new byte[] {1, 2, 3}, result.get(10, TimeUnit.SECONDS));
+    }
+    assertEquals(1, remote.reads.get());
+
+    // Once the fetch has completed the next read goes to the store again
+    assertArrayEquals(new byte[] {1, 2, 3}, read(stores.get(0), "0/0"));
+    assertEquals(2, remote.reads.get());
+  }
+
+  @Test
+  public void testBatchJoinsFetchInFlight() throws Exception {
+    CoalescingStore first = new CoalescingStore(remote, LOCATION);
+    CoalescingStore second = new CoalescingStore(remote, LOCATION);
+    Future<byte[]> single = executor.submit(() -> read(first, "0/0"));
+    remote.started.await(10, TimeUnit.SECONDS);
+    Future<Map<String, byte[]>> batch = executor.submit(() -> second.getBytes(Arrays.asList("0/0", "0/1", "0/2")));
+    waitForCoalesced(Arrays.asList(second), 1);
+    remote.release.countDown();
+
+    Map<String, byte[]> bytes = batch.get(10, TimeUnit.SECONDS);
+    assertEquals(2, bytes.size());
+    assertArrayEquals(new byte[] {1, 2, 3}, bytes.get("0/0"));
+    assertArrayEquals(new byte[] {4, 5}, bytes.get("0/1"));
+    assertArrayEquals(new byte[] {1, 2, 3}, single.get(10, TimeUnit.SECONDS));
+    // 0/0 once for both readers, 0/1 and the missing 0/2 for the batch
+    assertEquals(3, remote.reads.get());
+    assertEquals(2, second.getFetchCount());
+  }
+
+  @Test
+  public void testFailureIsShared() throws Exception {
+    remote.fail = true;
+    List<CoalescingStore> stores = new ArrayList<CoalescingStore>();
+    List<Future<byte[]>> results = new ArrayList<Future<byte[]>>();
+    for (int i = 0; i < 2; i++) {
+      CoalescingStore store = new CoalescingStore(remote, LOCATION);
+      stores.add(store);
+      results.add(executor.submit(() -> read(store, "0/0")));
+    }
+    waitForCoalesced(stores, 1);
+    remote.release.countDown();
+    for (Future<byte[]> result : results) {
+      try {
+        result.get(10, TimeUnit.SECONDS);
+        fail("Expected the read to fail");
+      }
+      catch (ExecutionException e) {
+        assertTrue(e.getCause() instanceof IOException);
+      }
+    }
+    assertEquals(1, remote.reads.get());
+  }
+
+  @Test
+  public void testErrorIsShared() throws Exception {
+    remote.error = true;
+    List<CoalescingStore> stores = new ArrayList<CoalescingStore>();
+    List<Future<byte[]>> results = new ArrayList<Future<byte[]>>();
+    for (int i = 0; i < 2; i++) {
+      CoalescingStore store = new CoalescingStore(remote, LOCATION);
+      stores.add(store);
+      results.add(executor.submit(() -> read(store, "0/0")));
+    }
+    waitForCoalesced(stores, 1);
+    remote.release.countDown();
+    // The reader waiting on the failed fetch is released rather than left hanging
+    for (Future<byte[]> result : results) {
+      try {
+        result.get(10, TimeUnit.SECONDS);
+        fail("Expected the read to fail");
+      }
+      catch (ExecutionException e) {
+        assertTrue(e.getCause() instanceof Error);
+      }
+    }
+  }
+
+  @Test
+  public void testScopesAreNotShared() throws Exception {
+    List<CoalescingStore> stores = new ArrayList<CoalescingStore>();
+    List<Future<byte[]>> results = new ArrayList<Future<byte[]>>();
+    for (int i = 0; i < 2; i++) {
+      // As for stores using clients with different credentials
+      CoalescingStore store = new CoalescingStore(remote, LOCATION, new Object());
+      stores.add(store);
+      results.add(executor.submit(() -> read(store, "0/0")));
+    }
+    long deadline = System.currentTimeMillis() + 10000;
+    while (remote.reads.get() < 2 && System.currentTimeMillis() < deadline) {
+      Thread.sleep(10);
+    }
+    remote.release.countDown();
+    for (Future<byte[]> result : results) {
+      assertArrayEquals(new byte[] {1, 2, 3}, result.get(10, TimeUnit.SECONDS));
+    }
+    assertEquals(2, remote.reads.get());
+    assertEquals(0, stores.get(0).getCoalescedCount() + stores.get(1).getCoalescedCount());
+  }
+
+  private void waitForCoalesced(List<CoalescingStore> stores, int expected) throws InterruptedException {
+    long deadline = System.currentTimeMillis() + 10000;
+    while (System.currentTimeMillis() < deadline) {
+      long total = 0;
+      for (CoalescingStore store : stores) {
+        total += store.getCoalescedCount();
+      }
+      if (total == expected) {
+        return;
+      }
+      Thread.sleep(10);
+    }
+    fail("Reads were not coalesced");
+  }
+
+  private static byte[] read(CoalescingStore store, String key) throws IOException {
+    try (InputStream is = store.getInputStream(key)) {
+      byte[] buffer = new byte[16];
+      int n = is.read(buffer);
+      return Arrays.copyOf(buffer, Math.max(n, 0));
+    }
+  }
+
+  /**
+   * Holds each read open until released, counting the keys requested
+   */
+  private static class BlockingStore extends FileSystemStore {
+    final AtomicInteger reads = new AtomicInteger();
+    final CountDownLatch started = new CountDownLatch(1);
+    final CountDownLatch release = new CountDownLatch(1);
+    volatile boolean fail = false;
+    volatile boolean error = false;
+
+    BlockingStore(Path root) {
+      super(root);
+    }
+
+    @Override
+    public InputStream getInputStream(String key) throws IOException {
+      reads.incrementAndGet();
+      started.countDown();
+      try {
+        release.await(10, TimeUnit.SECONDS);
+      }
+      catch (InterruptedException e) {
+        throw new IOException(e);
+      }
+      if (fail) {
+        throw new IOException("Unable to read " + key);
+      }
+      if (error) {
+        throw new Error("Unable to read " + key);
+      }
+      return super.getInputStream(key);
+    }
+  }
+}
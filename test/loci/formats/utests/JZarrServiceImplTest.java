@@ -31,8 +31,13 @@ package test.loci.formats.utests;
 
 import static org.junit.Assert.*;
 
+import java.io.File;
 import java.io.IOException;
 import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Map;
@@ -53,6 +58,7 @@ import com.bc.zarr.DataType;
 import com.bc.zarr.ZarrArray;
 import com.bc.zarr.ZarrGroup;
 
+import loci.common.DataTools;
 import loci.formats.FormatException;
 import loci.formats.FormatTools;
 import loci.formats.services.JZarrServiceImpl;
@@ -221,6 +227,70 @@ public class JZarrServiceImplTest {
     }
   }
   
+  @Test
+  public void testConsolidatedMetadata() throws IOException, FormatException {
+    Path root = Files.createTempDirectory("consolidated").resolve("plate.zarr");
+    Files.createDirectories(root);
+    String metadata = "{\"zarr_consolidated_format\": 1, \"metadata\": {"
+        + "\".zgroup\": {\"zarr_format\": 2},"
+        + "\".zattrs\": {\"plate\": {\"name\": \"test\"}},"
+        + "\"A/.zgroup\": {\"zarr_format\": 2},"
+        + "\"A/1/.zgroup\": {\"zarr_format\": 2},"
+        + "\"A/1/.zattrs\": {\"well\": {\"version\": \"0.4\"}},"
+        + "\"A/1/0/0/.zarray\": {\"shape\": [1, 1, 1, 4, 4], \"chunks\": [1, 1, 1, 4, 4], \"dtype\": \"<u2\"},"
+        + "\"A/1/0/0/.zattrs\": {\"key\": \"value\"}"
+        + "}}";
+    Files.write(root.resolve(JZarrServiceImpl.FILENAME_DOT_ZMETADATA), metadata.getBytes(StandardCharsets.UTF_8));
+    jzarrService.setConsolidatedMetadata(true);
+    try {
+      // ZarrGroup and ZarrArray are mocked, so the results below can only come from .zmetadata
+      String path = root.toString();
+      assertTrue(jzarrService.getGroupAttr(path).containsKey("plate"));
+      assertEquals("0.4", ((Map<String, Object>) jzarrService.getGroupAttr(path + File.separator + "A/1").get("well")).get("version"));
+      assertTrue(jzarrService.getGroupAttr(path + File.separator + "A").isEmpty());
+      assertEquals(new HashSet<String>(Arrays.asList("A", "A/1")), jzarrService.getGroupKeys(path));
+      assertEquals(new HashSet<String>(Arrays.asList("1")), jzarrService.getGroupKeys(path + File.separator + "A"));
+      assertEquals(new HashSet<String>(Arrays.asList("A/1/0/0")), jzarrService.getArrayKeys(path));
+      assertEquals(new HashSet<String>(Arrays.asList("A")), jzarrService.getChildKeys(path));
+      assertEquals(new HashSet<String>(Arrays.asList("0")), jzarrService.getChildKeys(path + File.separator + "A/1"));
+      assertEquals("value", jzarrService.getArrayAttr(path + File.separator + "A/1/0/0").get("key"));
+      assertArrayEquals(new int[] {1, 1, 1, 4, 4}, jzarrService.getShape(path + File.separator + "A/1/0/0"));
+      jzarrService.open(path + File.separator + "A/1/0/0");
+      assertEquals(FormatTools.UINT16, jzarrService.getPixelType());
+      assertTrue(jzarrService.isLittleEndian());
+      assertArrayEquals(new int[] {1, 1, 1, 4, 4}, jzarrService.getChunkSize());
+      zarrGroupStatic.verifyNoInteractions();
+      zarrArrayStatic.verifyNoInteractions();
+    }
+    finally {
+      Files.delete(root.resolve(JZarrServiceImpl.FILENAME_DOT_ZMETADATA));
+      Files.delete(root);
+      Files.delete(root.getParent());
+    }
+  }
+
+  @Test
+  public void testAttrJson() throws IOException, FormatException {
+    Path root = Files.createTempDirectory("attributes").resolve("image.zarr");
+    Path array = root.resolve("0");
+    Files.createDirectories(array);
+    String groupJson = "{\"multiscales\": [{\"version\": \"0.4\"}]}";
+    Files.write(root.resolve(".zattrs"), groupJson.getBytes(StandardCharsets.UTF_8));
+    try {
+      // The stored text is returned without opening the group or array
+      assertEquals(groupJson, jzarrService.getGroupAttrJson(root.toString()));
+      assertNull(jzarrService.getArrayAttrJson(array.toString()));
+      zarrGroupStatic.verifyNoInteractions();
+      zarrArrayStatic.verifyNoInteractions();
+    }
+    finally {
+      Files.delete(root.resolve(".zattrs"));
+      Files.delete(array);
+      Files.delete(root);
+      Files.delete(root.getParent());
+    }
+  }
+
   @Test
   public void testGetID() {
     assertEquals(testID, jzarrService.getID());
@@ -239,6 +309,25 @@ public class JZarrServiceImplTest {
     assertEquals(true, nullJzarrService.isOpen());
   }
 
+  @Test
+  public void testArrayCache() {
+    try {
+      jzarrService.open("path");
+      jzarrService.open("path");
+      assertEquals(1, jzarrService.getArrayCacheMisses());
+      assertEquals(1, jzarrService.getArrayCacheHits());
+      zarrArrayStatic.verify(() -> ZarrArray.open("path"), Mockito.times(1));
+
+      jzarrService.setArrayCacheSize(0);
+      jzarrService.open("path");
+      assertEquals(2, jzarrService.getArrayCacheMisses());
+      zarrArrayStatic.verify(() -> ZarrArray.open("path"), Mockito.times(2));
+    } catch (IOException | FormatException e) {
+      fail("Unexpected exception thrown while opening cached arrays");
+      e.printStackTrace();
+    }
+  }
+
   @Test
   public void testReadBytes() {
     int[] expectedBytes = {256, 256, 8, 8, 8};
@@ -259,6 +348,30 @@ public class JZarrServiceImplTest {
     }
   }
 
+  @Test
+  public void testReadBytesIntoBuffer() {
+    short[] pixels = {1, 2, 3, -4};
+    int[] shape = {1, 1, 1, 2, 2};
+    int[] offset = {0, 0, 0, 0, 0};
+    try {
+      when(zarrArray.read(shape, offset)).thenReturn(pixels);
+      byte[] buf = new byte[8];
+      jzarrService.readBytes(buf, shape, offset, true);
+      assertArrayEquals(DataTools.shortsToBytes(pixels, true), buf);
+      jzarrService.readBytes(buf, shape, offset, false);
+      assertArrayEquals(DataTools.shortsToBytes(pixels, false), buf);
+    } catch (IOException e) {
+      fail("Unexpected exception on JZarrServiceImpl readBytes");
+      e.printStackTrace();
+    } catch (InvalidRangeException e) {
+      fail("Unexpected InvalidRangeException on ZarrArray read");
+      e.printStackTrace();
+    } catch (FormatException e) {
+      fail("Unexpected FormatException on JZarrServiceImpl readBytes");
+      e.printStackTrace();
+    }
+  }
+
   @Test
   public void testSaveBytes() {
     int[] data = {256, 256, 8, 8, 8};
@@ -0,0 +1,96 @@
+package test.loci.formats.utests;
+
+/*-
+ * #%L
+ * Implementation of Bio-Formats readers for the next-generation file formats
+ * %%
+ * Copyright (C) 2020 - 2022 Open Microscopy Environment
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+
+import static org.junit.Assert.*;
+
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.Test;
+
+import com.amazonaws.ClientConfiguration;
+import com.amazonaws.services.s3.AmazonS3;
+
+import loci.formats.S3ClientRegistry;
+
+public class S3ClientRegistryTest {
+
+  private static final String ENDPOINT = "https://s3.example.org/";
+
+  @AfterMethod
+  public void tearDown() {
+    S3ClientRegistry.setIdleTimeout(S3ClientRegistry.DEFAULT_IDLE_TIMEOUT);
+  }
+
+  @Test
+  public void testClientsAreShared() {
+    S3ClientRegistry.setIdleTimeout(0);
+    int clients = S3ClientRegistry.getClientCount();
+    ClientConfiguration configuration = S3ClientRegistry.getDefaultConfiguration();
+    AmazonS3 first = S3ClientRegistry.acquire(ENDPOINT, configuration);
+    AmazonS3 second = S3ClientRegistry.acquire(ENDPOINT, S3ClientRegistry.getDefaultConfiguration());
+    assertSame(first, second);
+    assertEquals(2, S3ClientRegistry.getReferenceCount(first));
+
+    // A different configuration gets its own client
+    AmazonS3 other = S3ClientRegistry.acquire(ENDPOINT, S3ClientRegistry.getConfiguration(10, 1000, 2000));
+    assertNotSame(first, other);
+    assertEquals(clients + 2, S3ClientRegistry.getClientCount());
+
+    S3ClientRegistry.release(first);
+    assertEquals(1, S3ClientRegistry.getReferenceCount(first));
+    S3ClientRegistry.release(second);
+    S3ClientRegistry.release(other);
+    assertEquals(0, S3ClientRegistry.getReferenceCount(first));
+    assertEquals(clients, S3ClientRegistry.getClientCount());
+  }
+
+  @Test
+  public void testIdleClientIsReused() throws Exception {
+    S3ClientRegistry.setIdleTimeout(200);
+    ClientConfiguration configuration = S3ClientRegistry.getConfiguration(5, 1000, 0);
+    AmazonS3 first = S3ClientRegistry.acquire(ENDPOINT, configuration);
+    S3ClientRegistry.release(first);
+    AmazonS3 second = S3ClientRegistry.acquire(ENDPOINT, configuration);
+    assertSame(first, second);
+    S3ClientRegistry.release(second);
+
+    // Shut down once the idle timeout has passed without another acquire
+    int clients = S3ClientRegistry.getClientCount();
+    long deadline = System.currentTimeMillis() + 5000;
+    while (S3ClientRegistry.getClientCount() == clients && System.currentTimeMillis() < deadline) {
+      Thread.sleep(50);
+    }
+    assertEquals(clients - 1, S3ClientRegistry.getClientCount());
+    AmazonS3 third = S3ClientRegistry.acquire(ENDPOINT, configuration);
+    assertNotSame(first, third);
+    S3ClientRegistry.setIdleTimeout(0);
+    S3ClientRegistry.release(third);
+  }
+}
@@ -0,0 +1,239 @@
+package test.loci.formats.utests;
+
+/*-
+ * #%L
+ * Implementation of Bio-Formats readers for the next-generation file formats
+ * %%
+ * Copyright (C) 2020 - 2022 Open Microscopy Environment
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.when;
+import org.mockito.Mockito;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.model.AmazonS3Exception;
+import com.amazonaws.services.s3.model.GetObjectRequest;
+import com.amazonaws.services.s3.model.ListObjectsV2Request;
+import com.amazonaws.services.s3.model.ListObjectsV2Result;
+import com.amazonaws.services.s3.model.S3Object;
+import com.amazonaws.services.s3.model.S3ObjectSummary;
+
+import loci.formats.S3FileSystemStore;
+import loci.formats.VersionedStore;
+
+public class S3FileSystemStoreTest {
+
+  private static final String ROOT = "data/plate.zarr/";
+  private static final List<String> OBJECTS = Arrays.asList(
+      ".zgroup", ".zattrs", "OME/METADATA.ome.xml",
+      "A/.zgroup", "A/1/.zgroup", "A/1/.zattrs", "A/1/0/.zgroup", "A/1/0/.zattrs",
+      "A/1/0/0/.zarray", "A/1/0/0/0/0/0/0/0", "A/1/0/0/0/0/0/0/1",
+      "A/1/0/1/.zarray", "A/1/0/1/0.0.0.0.0", "A/1/0/1/0.0.0.0.1", "A/1/0/1/0.0.0.0.2");
+  // A small page size so that listings span several pages
+  private static final int PAGE_SIZE = 2;
+
+  private List<String> listedPrefixes;
+  private List<String> listedPages;
+  private List<Integer> firstPageSizes;
+  private AmazonS3 client;
+  private S3FileSystemStore store;
+  private AtomicInteger inFlight;
+  private AtomicInteger maxInFlight;
+
+  @BeforeMethod
+  public void setUp() {
+    listedPrefixes = Collections.synchronizedList(new ArrayList<String>());
+    listedPages = Collections.synchronizedList(new ArrayList<String>());
+    firstPageSizes = Collections.synchronizedList(new ArrayList<Integer>());
+    client = Mockito.mock(AmazonS3.class);
+    when(client.listObjectsV2(any(ListObjectsV2Request.class))).thenAnswer(
+        invocation -> list(invocation.getArgument(0)));
+    inFlight = new AtomicInteger();
+    maxInFlight = new AtomicInteger();
+    when(client.getObject(anyString(), anyString())).thenAnswer(
+        invocation -> get(invocation.getArgument(0), invocation.getArgument(1)));
+    store = new S3FileSystemStore(Paths.get("https://s3.example.org/bucket/" + ROOT), client);
+  }
+
+  @Test
+  public void testGetGroupKeys() throws Exception {
+    assertEquals(new TreeSet<String>(Arrays.asList("A", "A/1", "A/1/0")), store.getGroupKeys());
+    assertNoChunksListed();
+  }
+
+  @Test
+  public void testGetArrayKeys() throws Exception {
+    assertEquals(new TreeSet<String>(Arrays.asList("A/1/0/0", "A/1/0/1")), store.getArrayKeys());
+    assertNoChunksListed();
+  }
+
+  @Test
+  public void testGetBytes() throws Exception {
+    store.setMaxConcurrentRequests(3);
+    S3FileSystemStore arrayStore = store.forPath("https://s3.example.org/bucket/" + ROOT + "A/1/0/0");
+    List<String> keys = new ArrayList<String>();
+    for (int i = 0; i < 12; i++) {
+      keys.add("0/0/0/0/" + i);
+    }
+    Map<String, byte[]> bytes = arrayStore.getBytes(keys);
+    assertEquals(2, bytes.size());
+    assertEquals(ROOT + "A/1/0/0/0/0/0/0/0", new String(bytes.get("0/0/0/0/0"), StandardCharsets.UTF_8));
+    assertEquals(ROOT + "A/1/0/0/0/0/0/0/1", new String(bytes.get("0/0/0/0/1"), StandardCharsets.UTF_8));
+    assertTrue(maxInFlight.get() > 1);
+    assertTrue(maxInFlight.get() <= 3);
+    assertEquals(0, inFlight.get());
+  }
+
+  @Test
+  public void testGetBytesIfChanged() throws Exception {
+    // The ETag of each object of the fake bucket is derived from its key
+    when(client.getObject(any(GetObjectRequest.class))).thenAnswer(invocation -> {
+      GetObjectRequest request = invocation.getArgument(0);
+      String etag = "etag-" + request.getKey();
+      if (request.getNonmatchingETagConstraints().contains(etag)) {
+        return null;
+      }
+      S3Object object = get(request.getBucketName(), request.getKey());
+      object.getObjectMetadata().setHeader("ETag", etag);
+      return object;
+    });
+    S3FileSystemStore arrayStore = store.forPath("https://s3.example.org/bucket/" + ROOT + "A/1/0/0");
+    Map<String, String> versions = new HashMap<String, String>();
+    versions.put("0/0/0/0/0", "etag-" + ROOT + "A/1/0/0/0/0/0/0/0");
+    versions.put("0/0/0/0/1", "outdated");
+    versions.put("0/0/0/0/2", "deleted");
+    Map<String, VersionedStore.VersionedBytes> bytes = arrayStore.getBytesIfChanged(versions);
+    assertEquals(2, bytes.size());
+    // The current copy is not transferred again
+    assertNull(bytes.get("0/0/0/0/0").bytes);
+    assertEquals(ROOT + "A/1/0/0/0/0/0/0/1", new String(bytes.get("0/0/0/0/1").bytes, StandardCharsets.UTF_8));
+    assertEquals("etag-" + ROOT + "A/1/0/0/0/0/0/0/1", bytes.get("0/0/0/0/1").version);
+  }
+
+  @Test
+  public void testCloseSharedExecutor() throws Exception {
+    S3FileSystemStore arrayStore = store.forPath("https://s3.example.org/bucket/" + ROOT + "A/1/0/0");
+    List<String> keys = Arrays.asList("0/0/0/0/0", "0/0/0/0/1");
+    // Closing a store created with forPath leaves the shared request threads running
+    arrayStore.close();
+    assertEquals(2, store.forPath("https://s3.example.org/bucket/" + ROOT + "A/1/0/0").getBytes(keys).size());
+    store.close();
+    try {
+      arrayStore.getBytes(keys);
+      fail("The request threads should be shut down with the store which created them");
+    }
+    catch (IOException e) {
+      // expected
+    }
+  }
+
+  private void assertNoChunksListed() {
+    for (String prefix : listedPrefixes) {
+      assertFalse(prefix, prefix.startsWith(ROOT + "A/1/0/0/") || prefix.startsWith(ROOT + "A/1/0/1/"));
+    }
+    assertTrue(listedPrefixes.contains(ROOT + "A/1/0/"));
+    // Arrays are classified from a bounded first page, their remaining pages are never requested
+    assertEquals(1, Collections.frequency(listedPages, ROOT + "A/1/0/1/"));
+    assertFalse(firstPageSizes.contains(null));
+  }
+
+  // GET of an object of the fake bucket, whose content is its key
+  private S3Object get(String bucketName, String key) throws InterruptedException {
+    assertEquals("bucket", bucketName);
+    int count = inFlight.incrementAndGet();
+    maxInFlight.accumulateAndGet(count, Math::max);
+    try {
+      // Hold the request open long enough for the others to overlap with it
+      Thread.sleep(50);
+    }
+    finally {
+      inFlight.decrementAndGet();
+    }
+    if (!OBJECTS.contains(key.substring(ROOT.length()))) {
+      AmazonS3Exception e = new AmazonS3Exception("Not Found");
+      e.setStatusCode(404);
+      throw e;
+    }
+    S3Object object = new S3Object();
+    object.setObjectContent(new ByteArrayInputStream(key.getBytes(StandardCharsets.UTF_8)));
+    return object;
+  }
+
+  // Delimited listing of the fake bucket, one page at a time
+  private ListObjectsV2Result list(ListObjectsV2Request request) {
+    assertEquals("bucket", request.getBucketName());
+    assertEquals("/", request.getDelimiter());
+    String prefix = request.getPrefix();
+    int start = request.getContinuationToken() == null ? 0 : Integer.parseInt(request.getContinuationToken());
+    if (start == 0) {
+      listedPrefixes.add(prefix);
+      firstPageSizes.add(request.getMaxKeys());
+    }
+    listedPages.add(prefix);
+    int pageSize = request.getMaxKeys() == null ? PAGE_SIZE : Math.min(request.getMaxKeys(), PAGE_SIZE);
+    TreeSet<String> entries = new TreeSet<String>();
+    for (String object : OBJECTS) {
+      String key = ROOT + object;
+      if (key.startsWith(prefix)) {
+        String rest = key.substring(prefix.length());
+        entries.add(rest.contains("/") ? prefix + rest.substring(0, rest.indexOf('/') + 1) : key);
+      }
+    }
+    List<String> page = new ArrayList<String>(entries).subList(start, Math.min(entries.size(), start + pageSize));
+    ListObjectsV2Result result = new ListObjectsV2Result();
+    for (String entry : page) {
+      if (entry.endsWith("/")) {
+        result.getCommonPrefixes().add(entry);
+      }
+      else {
+        S3ObjectSummary summary = new S3ObjectSummary();
+        summary.setKey(entry);
+        result.getObjectSummaries().add(summary);
+      }
+    }
+    result.setTruncated(start + pageSize < entries.size());
+    result.setNextContinuationToken(result.isTruncated() ? String.valueOf(start + pageSize) : null);
+    return result;
+  }
+}
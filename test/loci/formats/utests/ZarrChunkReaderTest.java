@@ -0,0 +1,438 @@
+package test.loci.formats.utests;
+
+/*-
+ * #%L
+ * Implementation of Bio-Formats readers for the next-generation file formats
+ * %%
+ * Copyright (C) 2020 - 2022 Open Microscopy Environment
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteOrder;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+import java.util.stream.Stream;
+
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.DataProvider;
+import org.testng.annotations.Test;
+
+import com.bc.zarr.ArrayParams;
+import com.bc.zarr.CompressorFactory;
+import com.bc.zarr.DataType;
+import com.bc.zarr.ZarrArray;
+import com.bc.zarr.storage.FileSystemStore;
+
+import loci.common.DataTools;
+import loci.formats.BatchStore;
+import loci.formats.FormatException;
+import loci.formats.services.ZarrChunkCache;
+import loci.formats.services.ZarrChunkReader;
+
+/**
+ * Compares regions read by ZarrChunkReader with those read by JZarr
+ */
+public class ZarrChunkReaderTest {
+
+  private Path tempDir;
+  private int[] shape = {1, 2, 3, 100, 130};
+  private int[] chunks = {1, 1, 2, 32, 64};
+
+  @BeforeMethod
+  public void setup() throws IOException {
+    tempDir = Files.createTempDirectory("chunkReaderTest");
+  }
+
+  @AfterMethod
+  public void teardown() throws IOException {
+    try (Stream<Path> paths = Files.walk(tempDir)) {
+      paths.sorted(Comparator.reverseOrder()).map(Path::toFile).forEach(File::delete);
+    }
+  }
+
+  @DataProvider(name = "arrayTypes")
+  public Object[][] createArrayTypes() {
+    return new Object[][] {
+      {DataType.u1, ByteOrder.BIG_ENDIAN},
+      {DataType.i2, ByteOrder.BIG_ENDIAN},
+      {DataType.u2, ByteOrder.LITTLE_ENDIAN},
+      {DataType.i4, ByteOrder.LITTLE_ENDIAN},
+      {DataType.f4, ByteOrder.BIG_ENDIAN},
+      {DataType.f8, ByteOrder.LITTLE_ENDIAN},
+    };
+  }
+
+  @Test(dataProvider = "arrayTypes")
+  public void testReadMatchesJZarr(DataType dataType, ByteOrder byteOrder) throws Exception {
+    String path = tempDir.resolve("test.zarr").toString();
+    ArrayParams params = new ArrayParams();
+    params.shape(shape);
+    params.chunks(chunks);
+    params.dataType(dataType);
+    params.byteOrder(byteOrder);
+    params.compressor(CompressorFactory.create("zlib", "level", 1));
+    ZarrArray array = ZarrArray.create(path, params);
+
+    // Leave the final T/C plane unwritten so that missing chunks are also covered
+    int[] writeShape = {1, 1, 3, 100, 130};
+    int count = 3 * 100 * 130;
+    array.write(createData(dataType, count), writeShape, new int[] {0, 0, 0, 0, 0});
+
+    ZarrChunkReader reader = new ZarrChunkReader(new FileSystemStore(Paths.get(path)));
+    int[][][] regions = {
+      {{1, 2, 3, 100, 130}, {0, 0, 0, 0, 0}},
+      {{1, 1, 1, 100, 130}, {0, 0, 1, 0, 0}},
+      {{1, 1, 1, 40, 70}, {0, 0, 2, 20, 50}},
+      {{1, 1, 2, 5, 3}, {0, 0, 1, 95, 127}},
+      {{1, 2, 1, 33, 65}, {0, 0, 2, 31, 63}},
+    };
+    for (int[][] region : regions) {
+      for (boolean little : new boolean[] {true, false}) {
+        Object expected = array.read(region[0], region[1]);
+        byte[] expectedBuf = toBytes(expected, little);
+        byte[] buf = new byte[expectedBuf.length];
+        reader.read(buf, region[0], region[1], little);
+        assertArrayEquals(expectedBuf, buf);
+      }
+    }
+  }
+
+  @Test(dataProvider = "arrayTypes")
+  public void testMappedReadMatchesJZarr(DataType dataType, ByteOrder byteOrder) throws Exception {
+    String path = tempDir.resolve("test.zarr").toString();
+    ArrayParams params = new ArrayParams();
+    params.shape(shape);
+    params.chunks(chunks);
+    params.dataType(dataType);
+    params.byteOrder(byteOrder);
+    params.compressor(CompressorFactory.create("null"));
+    ZarrArray array = ZarrArray.create(path, params);
+    array.write(createData(dataType, 3 * 100 * 130), new int[] {1, 1, 3, 100, 130}, new int[] {0, 0, 0, 0, 0});
+
+    ZarrChunkReader streamReader = new ZarrChunkReader(new FileSystemStore(Paths.get(path)));
+    ZarrChunkReader mappedReader = new ZarrChunkReader(new FileSystemStore(Paths.get(path)));
+    mappedReader.setLocalRoot(Paths.get(path));
+    int[] regionShape = {1, 2, 2, 70, 90};
+    int[] offset = {0, 0, 1, 25, 30};
+    for (boolean little : new boolean[] {true, false}) {
+      byte[] expected = toBytes(array.read(regionShape, offset), little);
+      byte[] streamBuf = new byte[expected.length];
+      byte[] mappedBuf = new byte[expected.length];
+      streamReader.read(streamBuf, regionShape, offset, little);
+      mappedReader.read(mappedBuf, regionShape, offset, little);
+      assertArrayEquals(expected, streamBuf);
+      assertArrayEquals(expected, mappedBuf);
+    }
+  }
+
+  @Test
+  public void testMappedChunksAreBounded() throws Exception {
+    String path = tempDir.resolve("test.zarr").toString();
+    ArrayParams params = new ArrayParams();
+    params.shape(shape);
+    params.chunks(chunks);
+    params.dataType(DataType.i2);
+    params.compressor(CompressorFactory.create("null"));
+    ZarrArray array = ZarrArray.create(path, params);
+    array.write(createData(DataType.i2, 3 * 100 * 130), new int[] {1, 1, 3, 100, 130}, new int[] {0, 0, 0, 0, 0});
+
+    // Room for the mappings of three chunks of 2 x 32 x 64 shorts
+    ZarrChunkReader reader = new ZarrChunkReader(new FileSystemStore(Paths.get(path)));
+    reader.setLocalRoot(Paths.get(path), 3 * 2 * 32 * 64 * 2);
+    int[] regionShape = {1, 1, 3, 100, 130};
+    int[] offset = {0, 0, 0, 0, 0};
+    byte[] expected = toBytes(array.read(regionShape, offset), true);
+    byte[] buf = new byte[expected.length];
+    reader.read(buf, regionShape, offset, true);
+    assertArrayEquals(expected, buf);
+    assertEquals(3, reader.getMappedChunkCount());
+
+    // Reading again reuses the kept mappings where possible and stays within the bound
+    reader.read(buf, regionShape, offset, true);
+    assertArrayEquals(expected, buf);
+    assertEquals(3, reader.getMappedChunkCount());
+    reader.clearMappedChunks();
+    assertEquals(0, reader.getMappedChunkCount());
+  }
+
+  @Test(expectedExceptions = FormatException.class)
+  public void testReadOutsideArray() throws Exception {
+    String path = tempDir.resolve("test.zarr").toString();
+    ArrayParams params = new ArrayParams();
+    params.shape(shape);
+    params.chunks(chunks);
+    params.dataType(DataType.u1);
+    ZarrArray.create(path, params);
+
+    ZarrChunkReader reader = new ZarrChunkReader(new FileSystemStore(Paths.get(path)));
+    reader.read(new byte[100 * 130], new int[] {1, 1, 1, 100, 130}, new int[] {0, 0, 0, 1, 0}, true);
+  }
+
+  @Test
+  public void testReadFromChunkCache() throws Exception {
+    String path = tempDir.resolve("test.zarr").toString();
+    ArrayParams params = new ArrayParams();
+    params.shape(shape);
+    params.chunks(chunks);
+    params.dataType(DataType.u2);
+    ZarrArray array = ZarrArray.create(path, params);
+    array.write(createData(DataType.u2, 2 * 3 * 100 * 130), new int[] {1, 2, 3, 100, 130}, new int[] {0, 0, 0, 0, 0});
+
+    ZarrChunkCache cache = new ZarrChunkCache(64 * 1024 * 1024);
+    ZarrChunkReader reader = new ZarrChunkReader(new FileSystemStore(Paths.get(path)));
+    reader.setChunkCache(cache, path);
+
+    // A 40x70 tile at (20, 50) spans 2x2 chunks
+    int[] regionShape = {1, 1, 1, 40, 70};
+    int[] offset = {0, 0, 0, 20, 50};
+    byte[] expected = toBytes(array.read(regionShape, offset), false);
+    byte[] buf = new byte[expected.length];
+    reader.read(buf, regionShape, offset, false);
+    assertArrayEquals(expected, buf);
+    assertEquals(4, cache.getMisses());
+    assertEquals(0, cache.getHits());
+    assertEquals(4, cache.getChunkCount());
+
+    // The tile below shares the two lower chunks
+    offset = new int[] {0, 0, 0, 40, 50};
+    expected = toBytes(array.read(regionShape, offset), false);
+    reader.read(buf, regionShape, offset, false);
+    assertArrayEquals(expected, buf);
+    assertEquals(6, cache.getMisses());
+    assertEquals(2, cache.getHits());
+  }
+
+  @Test
+  public void testParallelRead() throws Exception {
+    String path = tempDir.resolve("test.zarr").toString();
+    ArrayParams params = new ArrayParams();
+    params.shape(shape);
+    params.chunks(chunks);
+    params.dataType(DataType.i4);
+    params.compressor(CompressorFactory.create("zlib", "level", 1));
+    ZarrArray array = ZarrArray.create(path, params);
+    array.write(createData(DataType.i4, 2 * 3 * 100 * 130), new int[] {1, 2, 3, 100, 130}, new int[] {0, 0, 0, 0, 0});
+
+    ZarrChunkReader reader = new ZarrChunkReader(new FileSystemStore(Paths.get(path)));
+    ForkJoinPool pool = new ForkJoinPool(4);
+    try {
+      reader.setExecutor(pool);
+      int[] regionShape = {1, 2, 3, 100, 130};
+      int[] offset = {0, 0, 0, 0, 0};
+      byte[] expected = toBytes(array.read(regionShape, offset), true);
+      byte[] buf = new byte[expected.length];
+      reader.read(buf, regionShape, offset, true);
+      assertArrayEquals(expected, buf);
+    }
+    finally {
+      pool.shutdown();
+    }
+  }
+
+  @Test
+  public void testChunkIndexSkipsMissingChunks() throws Exception {
+    String path = tempDir.resolve("test.zarr").toString();
+    ArrayParams params = new ArrayParams();
+    params.shape(shape);
+    params.chunks(chunks);
+    params.dataType(DataType.u2);
+    params.fillValue(7);
+    ZarrArray array = ZarrArray.create(path, params);
+    // Only the chunks of the first two Z planes of the first channel are written
+    array.write(createData(DataType.u2, 2 * 100 * 130), new int[] {1, 1, 2, 100, 130}, new int[] {0, 0, 0, 0, 0});
+
+    CountingStore store = new CountingStore(Paths.get(path));
+    ZarrChunkReader reader = new ZarrChunkReader(store);
+    reader.setChunkIndex(ZarrChunkReader.listChunkKeys(store));
+    store.reads = 0;
+
+    int[] regionShape = {1, 1, 1, 100, 130};
+    int[] offset = {0, 1, 2, 0, 0};
+    byte[] expected = toBytes(array.read(regionShape, offset), true);
+    byte[] buf = new byte[expected.length];
+    reader.read(buf, regionShape, offset, true);
+    assertArrayEquals(expected, buf);
+    assertEquals(0, store.reads);
+
+    offset = new int[] {0, 0, 0, 0, 0};
+    expected = toBytes(array.read(regionShape, offset), true);
+    reader.read(buf, regionShape, offset, true);
+    assertArrayEquals(expected, buf);
+    assertEquals(12, store.reads);
+  }
+
+  @Test
+  public void testBatchRead() throws Exception {
+    String path = tempDir.resolve("test.zarr").toString();
+    ArrayParams params = new ArrayParams();
+    params.shape(shape);
+    params.chunks(chunks);
+    params.dataType(DataType.u2);
+    params.compressor(CompressorFactory.create("zlib", "level", 1));
+    params.fillValue(7);
+    ZarrArray array = ZarrArray.create(path, params);
+    // Leave the second channel unwritten so that missing chunks are also covered
+    array.write(createData(DataType.u2, 3 * 100 * 130), new int[] {1, 1, 3, 100, 130}, new int[] {0, 0, 0, 0, 0});
+
+    BatchingStore store = new BatchingStore(Paths.get(path));
+    ZarrChunkReader reader = new ZarrChunkReader(store);
+    reader.setChunkCache(new ZarrChunkCache(1024 * 1024), path);
+    int[] regionShape = {1, 2, 3, 100, 130};
+    int[] offset = {0, 0, 0, 0, 0};
+    byte[] expected = toBytes(array.read(regionShape, offset), true);
+    byte[] buf = new byte[expected.length];
+    reader.read(buf, regionShape, offset, true);
+    assertArrayEquals(expected, buf);
+    // All 48 chunks are requested at once rather than one after another
+    assertEquals(1, store.batches);
+    assertEquals(48, store.keys);
+    assertEquals(0, store.reads);
+
+    // Only the missing chunks, which are not cached, are fetched again
+    reader.read(buf, regionShape, offset, true);
+    assertArrayEquals(expected, buf);
+    assertEquals(2, store.batches);
+    assertEquals(72, store.keys);
+  }
+
+  @Test
+  public void testChunkCacheEviction() {
+    ZarrChunkCache cache = new ZarrChunkCache(100);
+    cache.put("a", new byte[40]);
+    cache.put("b", new byte[40]);
+    assertNotNull(cache.get("a"));
+    cache.put("c", new byte[40]);
+    assertEquals(80, cache.getCurrentBytes());
+    assertNotNull(cache.get("a"));
+    assertNull(cache.get("b"));
+    assertNotNull(cache.get("c"));
+    cache.put("d", new byte[200]);
+    assertNull(cache.get("d"));
+    assertEquals(2, cache.getChunkCount());
+  }
+
+  /**
+   * Counts the chunks requested from the store
+   */
+  private static class CountingStore extends FileSystemStore {
+    int reads = 0;
+
+    CountingStore(Path root) {
+      super(root);
+    }
+
+    @Override
+    public InputStream getInputStream(String key) throws IOException {
+      reads++;
+      return super.getInputStream(key);
+    }
+  }
+
+  /**
+   * Fetches batches of chunks, counting the batches and the chunks requested
+   */
+  private static class BatchingStore extends FileSystemStore implements BatchStore {
+    int batches = 0;
+    int keys = 0;
+    int reads = 0;
+
+    BatchingStore(Path root) {
+      super(root);
+    }
+
+    @Override
+    public Map<String, byte[]> getBytes(Collection<String> keys) throws IOException {
+      batches++;
+      this.keys += keys.size();
+      Map<String, byte[]> bytes = new HashMap<String, byte[]>();
+      for (String key : keys) {
+        try (InputStream is = super.getInputStream(key)) {
+          if (is != null) {
+            ByteArrayOutputStream os = new ByteArrayOutputStream();
+            byte[] buffer = new byte[8192];
+            int n;
+            while ((n = is.read(buffer)) != -1) {
+              os.write(buffer, 0, n);
+            }
+            bytes.put(key, os.toByteArray());
+          }
+        }
+      }
+      return bytes;
+    }
+
+    @Override
+    public InputStream getInputStream(String key) throws IOException {
+      reads++;
+      return super.getInputStream(key);
+    }
+  }
+
+  private Object createData(DataType dataType, int count) {
+    switch (dataType) {
+      case u1:
+        byte[] bytes = new byte[count];
+        for (int i = 0; i < count; i++) bytes[i] = (byte) (i * 13);
+        return bytes;
+      case i2:
+      case u2:
+        short[] shorts = new short[count];
+        for (int i = 0; i < count; i++) shorts[i] = (short) (i * 7 - 3000);
+        return shorts;
+      case i4:
+        int[] ints = new int[count];
+        for (int i = 0; i < count; i++) ints[i] = i * 65599 - 50000;
+        return ints;
+      case f4:
+        float[] floats = new float[count];
+        for (int i = 0; i < count; i++) floats[i] = i * 0.5f - 100;
+        return floats;
+      default:
+        double[] doubles = new double[count];
+        for (int i = 0; i < count; i++) doubles[i] = i * 0.25 - 1000;
+        return doubles;
+    }
+  }
+
+  private byte[] toBytes(Object data, boolean little) {
+    if (data instanceof byte[]) return (byte[]) data;
+    if (data instanceof short[]) return DataTools.shortsToBytes((short[]) data, little);
+    if (data instanceof int[]) return DataTools.intsToBytes((int[]) data, little);
+    if (data instanceof float[]) return DataTools.floatsToBytes((float[]) data, little);
+    return DataTools.doublesToBytes((double[]) data, little);
+  }
+}
@@ -0,0 +1,116 @@
+package test.loci.formats.utests;
+
+/*-
+ * #%L
+ * Implementation of Bio-Formats readers for the next-generation file formats
+ * %%
+ * Copyright (C) 2020 - 2022 Open Microscopy Environment
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Map;
+import java.util.stream.Stream;
+
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import com.bc.zarr.ArrayParams;
+import com.bc.zarr.DataType;
+import com.bc.zarr.ZarrArray;
+import com.bc.zarr.ZarrGroup;
+
+import loci.formats.services.JZarrServiceImpl;
+import loci.formats.tools.ZarrConsolidateMetadata;
+
+/**
+ * Tests the generation of consolidated metadata for existing filesets
+ */
+public class ZarrConsolidateMetadataTest {
+
+  private Path tempDir;
+
+  @BeforeMethod
+  public void setup() throws IOException {
+    tempDir = Files.createTempDirectory("consolidateTest");
+  }
+
+  @AfterMethod
+  public void teardown() throws IOException {
+    try (Stream<Path> paths = Files.walk(tempDir)) {
+      paths.sorted(Comparator.reverseOrder()).map(Path::toFile).forEach(File::delete);
+    }
+  }
+
+  @Test
+  public void testConsolidate() throws Exception {
+    Path root = tempDir.resolve("plate.zarr");
+    ZarrGroup plate = ZarrGroup.create(root);
+    plate.writeAttributes(Collections.singletonMap("plate", "test"));
+    ZarrGroup well = plate.createSubGroup("A").createSubGroup("1");
+    well.writeAttributes(Collections.singletonMap("well", "A1"));
+    ArrayParams params = new ArrayParams();
+    params.shape(new int[] {1, 1, 1, 8, 8});
+    params.chunks(new int[] {1, 1, 1, 8, 8});
+    params.dataType(DataType.u1);
+    ZarrArray array = well.createSubGroup("0").createArray("0", params);
+    array.writeAttributes(Collections.singletonMap("key", "value"));
+    // Nothing below an array is walked, so a stray .zgroup among its chunks is not a group
+    Files.createDirectories(root.resolve("A/1/0/0/0"));
+    Files.write(root.resolve("A/1/0/0/0/.zgroup"), "{\"zarr_format\": 2}".getBytes(StandardCharsets.UTF_8));
+
+    ZarrConsolidateMetadata tool = new ZarrConsolidateMetadata(2);
+    Path zmetadata = tool.consolidate(root.toString());
+    assertEquals(root.resolve(JZarrServiceImpl.FILENAME_DOT_ZMETADATA), zmetadata);
+    assertTrue(Files.exists(zmetadata));
+    assertEquals(4, tool.getGroupCount());
+    assertEquals(1, tool.getArrayCount());
+    assertTrue(tool.getFileCount() >= 8);
+    try (Stream<Path> files = Files.list(root)) {
+      assertFalse(files.anyMatch(p -> p.toString().endsWith(".tmp")));
+    }
+
+    // Once consolidated the attributes no longer depend on the individual files
+    Files.delete(root.resolve("A/1/.zattrs"));
+    JZarrServiceImpl service = new JZarrServiceImpl(null);
+    service.setConsolidatedMetadata(true);
+    try {
+      Map<String, Object> attributes = service.getGroupAttr(root.resolve("A/1").toString());
+      assertEquals("A1", attributes.get("well"));
+      assertEquals("value", service.getArrayAttr(root.resolve("A/1/0/0").toString()).get("key"));
+    }
+    finally {
+      service.close();
+    }
+  }
+}
@@ -0,0 +1,270 @@
+package test.loci.formats.utests;
+
+/*-
+ * #%L
+ * Implementation of Bio-Formats readers for the next-generation file formats
+ * %%
+ * Copyright (C) 2020 - 2022 Open Microscopy Environment
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.stream.Stream;
+
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import com.bc.zarr.storage.FileSystemStore;
+
+import loci.formats.DiskCachingStore;
+import loci.formats.VersionedStore;
+import loci.formats.services.ZarrDiskCache;
+
+public class ZarrDiskCacheTest {
+
+  // The magic number and empty version written before the content of each cached object
+  private static final int HEADER = 6;
+
+  private Path tempDir;
+  private Path cacheDir;
+  private Path storeDir;
+
+  @BeforeMethod
+  public void setup() throws IOException {
+    tempDir = Files.createTempDirectory("diskCacheTest");
+    cacheDir = tempDir.resolve("cache");
+    storeDir = tempDir.resolve("store");
+    Files.createDirectories(storeDir.resolve("0"));
+    Files.write(storeDir.resolve(".zarray"), new byte[] {1});
+    Files.write(storeDir.resolve("0/0"), new byte[] {1, 2, 3});
+    Files.write(storeDir.resolve("0/1"), new byte[] {4, 5});
+  }
+
+  @AfterMethod
+  public void teardown() throws IOException {
+    try (Stream<Path> paths = Files.walk(tempDir)) {
+      paths.sorted(Comparator.reverseOrder()).map(Path::toFile).forEach(File::delete);
+    }
+  }
+
+  @Test
+  public void testPersistsAcrossInstances() throws Exception {
+    ZarrDiskCache cache = new ZarrDiskCache(cacheDir, 1000);
+    assertNull(cache.get("s3/bucket/a"));
+    cache.put("s3/bucket/a", new byte[] {1, 2, 3});
+    assertArrayEquals(new byte[] {1, 2, 3}, cache.get("s3/bucket/a"));
+    assertEquals(1, cache.getHits());
+    assertEquals(1, cache.getMisses());
+    assertEquals(3 + HEADER, cache.getCurrentBytes());
+    // Replacing an object only accounts for the difference in size
+    cache.put("s3/bucket/a", new byte[] {1, 2, 3, 4});
+    assertEquals(4 + HEADER, cache.getCurrentBytes());
+    cache.put("s3/bucket/a", new byte[] {1, 2, 3});
+    assertEquals(3 + HEADER, cache.getCurrentBytes());
+
+    ZarrDiskCache reopened = new ZarrDiskCache(cacheDir, 1000);
+    assertEquals(3 + HEADER, reopened.getCurrentBytes());
+    assertArrayEquals(new byte[] {1, 2, 3}, reopened.get("s3/bucket/a"));
+    reopened.remove("s3/bucket/a");
+    assertNull(cache.get("s3/bucket/a"));
+    assertEquals(0, reopened.getCurrentBytes());
+  }
+
+  @Test
+  public void testEvictsLeastRecentlyUsed() throws Exception {
+    ZarrDiskCache cache = new ZarrDiskCache(cacheDir, 100 + 2 * HEADER);
+    cache.put("a", new byte[40]);
+    cache.put("b", new byte[40]);
+    // Make b the least recently used, with times far enough apart for coarse file system timestamps
+    Files.setLastModifiedTime(cache.getFile("a"), FileTime.fromMillis(System.currentTimeMillis() - 10000));
+    Files.setLastModifiedTime(cache.getFile("b"), FileTime.fromMillis(System.currentTimeMillis() - 20000));
+    cache.put("c", new byte[40]);
+    assertEquals(80 + 2 * HEADER, cache.getCurrentBytes());
+    assertNotNull(cache.get("a"));
+    assertNull(cache.get("b"));
+    assertNotNull(cache.get("c"));
+
+    cache.put("d", new byte[200]);
+    assertNull(cache.get("d"));
+  }
+
+  @Test
+  public void testCachingStore() throws Exception {
+    ZarrDiskCache cache = new ZarrDiskCache(cacheDir, 1000);
+    CountingStore remote = new CountingStore(storeDir);
+    DiskCachingStore store = new DiskCachingStore(remote, "s3/bucket/image.zarr/0", cache);
+
+    assertArrayEquals(new byte[] {1, 2, 3}, read(store, "0/0"));
+    assertArrayEquals(new byte[] {1, 2, 3}, read(store, "0/0"));
+    assertEquals(1, remote.reads);
+    assertNull(store.getInputStream("0/2"));
+    assertNull(store.getInputStream("0/2"));
+    assertEquals(3, remote.reads);
+    // Metadata is always read from the remote store
+    read(store, ".zarray");
+    read(store, ".zarray");
+    assertEquals(5, remote.reads);
+
+    // A new store over the same cache, as after a restart, reads only the uncached chunk
+    remote = new CountingStore(storeDir);
+    store = new DiskCachingStore(remote, "s3/bucket/image.zarr/0", new ZarrDiskCache(cacheDir, 1000));
+    Map<String, byte[]> bytes = store.getBytes(Arrays.asList("0/0", "0/1", "0/2"));
+    assertEquals(2, bytes.size());
+    assertArrayEquals(new byte[] {1, 2, 3}, bytes.get("0/0"));
+    assertArrayEquals(new byte[] {4, 5}, bytes.get("0/1"));
+    assertEquals(2, remote.reads);
+    assertEquals(1, store.getCache().getHits());
+  }
+
+  @Test
+  public void testValidatesCachedChunks() throws Exception {
+    VersionedFileStore remote = new VersionedFileStore(storeDir);
+    DiskCachingStore store = new DiskCachingStore(remote, "s3/bucket/image.zarr/0", new ZarrDiskCache(cacheDir, 1000));
+    assertArrayEquals(new byte[] {1, 2, 3}, read(store, "0/0"));
+    assertArrayEquals(new byte[] {1, 2, 3}, read(store, "0/0"));
+    // The cached copy is validated on every read but only transferred once
+    assertEquals(2, remote.requests);
+    assertEquals(1, remote.transfers);
+
+    // A chunk rewritten since it was cached is not served from the cache
+    Files.write(storeDir.resolve("0/0"), new byte[] {7, 8});
+    remote.versions.put("0/0", "2");
+    assertArrayEquals(new byte[] {7, 8}, read(store, "0/0"));
+    assertArrayEquals(new byte[] {7, 8}, read(store, "0/0"));
+    assertEquals(2, remote.transfers);
+    // Only copies which were still current count as hits
+    assertEquals(2, store.getCache().getHits());
+    assertEquals(2, store.getCache().getMisses());
+    assertEquals(1, store.getCache().getStale());
+    // The rewritten chunk replaced the cached copy, with a one character version
+    assertEquals(2 + HEADER + 1, store.getCache().getCurrentBytes());
+
+    // A chunk deleted since it was cached is removed from the cache
+    Files.delete(storeDir.resolve("0/0"));
+    assertNull(store.getInputStream("0/0"));
+    assertEquals(2, store.getCache().getStale());
+    assertNull(store.getCache().get("s3/bucket/image.zarr/0/0/0"));
+  }
+
+  @Test
+  public void testDeletesStaleTemporaryFiles() throws Exception {
+    Path subdirectory = cacheDir.resolve("ab");
+    Files.createDirectories(subdirectory);
+    Path stale = Files.write(subdirectory.resolve("ab01.chunk123.tmp"), new byte[50]);
+    Path recent = Files.write(subdirectory.resolve("ab02.chunk456.tmp"), new byte[50]);
+    Files.setLastModifiedTime(stale, FileTime.fromMillis(System.currentTimeMillis() - 2 * 60 * 60 * 1000));
+    ZarrDiskCache cache = new ZarrDiskCache(cacheDir, 1000);
+    // Left by a process which stopped while writing, recent files may still be being written
+    assertFalse(Files.exists(stale));
+    assertTrue(Files.exists(recent));
+    assertEquals(0, cache.getCurrentBytes());
+  }
+
+  private byte[] read(DiskCachingStore store, String key) throws IOException {
+    try (InputStream is = store.getInputStream(key)) {
+      byte[] buffer = new byte[16];
+      int n = is.read(buffer);
+      return Arrays.copyOf(buffer, Math.max(n, 0));
+    }
+  }
+
+  /**
+   * Counts the keys requested from the store
+   */
+  private static class CountingStore extends FileSystemStore {
+    int reads = 0;
+
+    CountingStore(Path root) {
+      super(root);
+    }
+
+    @Override
+    public InputStream getInputStream(String key) throws IOException {
+      reads++;
+      return super.getInputStream(key);
+    }
+  }
+
+  /**
+   * Reports a version for each key, "1" unless set, and counts the keys requested and transferred
+   */
+  private static class VersionedFileStore extends FileSystemStore implements VersionedStore {
+    final Map<String, String> versions = new HashMap<String, String>();
+    final Path root;
+    int requests = 0;
+    int transfers = 0;
+
+    VersionedFileStore(Path root) {
+      super(root);
+      this.root = root;
+    }
+
+    @Override
+    public Map<String, byte[]> getBytes(Collection<String> keys) throws IOException {
+      Map<String, String> unversioned = new HashMap<String, String>();
+      for (String key : keys) {
+        unversioned.put(key, null);
+      }
+      Map<String, byte[]> bytes = new HashMap<String, byte[]>();
+      for (Map.Entry<String, VersionedBytes> entry : getBytesIfChanged(unversioned).entrySet()) {
+        bytes.put(entry.getKey(), entry.getValue().bytes);
+      }
+      return bytes;
+    }
+
+    @Override
+    public Map<String, VersionedBytes> getBytesIfChanged(Map<String, String> keys) throws IOException {
+      Map<String, VersionedBytes> result = new HashMap<String, VersionedBytes>();
+      for (Map.Entry<String, String> entry : keys.entrySet()) {
+        requests++;
+        Path file = root.resolve(entry.getKey());
+        if (!Files.exists(file)) {
+          continue;
+        }
+        String version = versions.getOrDefault(entry.getKey(), "1");
+        if (version.equals(entry.getValue())) {
+          result.put(entry.getKey(), new VersionedBytes(null, version));
+        }
+        else {
+          transfers++;
+          result.put(entry.getKey(), new VersionedBytes(Files.readAllBytes(file), version));
+        }
+      }
+      return result;
+    }
+  }
+}
@@ -0,0 +1,287 @@
+package test.loci.formats.utests;
+
+/*-
+ * #%L
+ * Implementation of Bio-Formats readers for the next-generation file formats
+ * %%
+ * Copyright (C) 2020 - 2022 Open Microscopy Environment
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+import org.mockito.Mockito;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import loci.formats.CoreMetadata;
+import loci.formats.MetadataTools;
+import loci.formats.in.DynamicMetadataOptions;
+import loci.formats.in.ZarrReader;
+import loci.formats.meta.IMetadata;
+import loci.formats.services.ZarrMetadataIndex;
+import loci.formats.services.ZarrService;
+
+public class ZarrMetadataIndexTest {
+
+  private File file;
+  private File indexDir;
+
+  @BeforeMethod
+  public void setUp() throws Exception {
+    file = File.createTempFile("indexed", ".zarr");
+    indexDir = Files.createTempDirectory("zarr-index").toFile();
+  }
+
+  @AfterMethod
+  public void tearDown() throws Exception {
+    for (File index : indexDir.listFiles()) {
+      index.delete();
+    }
+    indexDir.delete();
+    file.delete();
+  }
+
+  @Test
+  public void testWriteRead() throws Exception {
+    ZarrMetadataIndex index = new ZarrMetadataIndex();
+    index.fileVersions.put(".zattrs", "1:100");
+    index.fileVersions.put(".zgroup", "");
+    index.options = "flattened=true";
+    index.arrayPaths.addAll(Arrays.asList("A/1/0/0", "A/1/0/1"));
+    CoreMetadata ms = new CoreMetadata();
+    ms.sizeX = 512;
+    ms.sizeY = 256;
+    ms.sizeZ = 3;
+    ms.sizeC = 2;
+    ms.sizeT = 1;
+    ms.pixelType = 3;
+    ms.imageCount = 6;
+    ms.dimensionOrder = "XYZCT";
+    ms.littleEndian = true;
+    ms.resolutionCount = 2;
+    index.core.add(ms);
+    index.globalMetadata.put("Axis 0", "t");
+    index.globalMetadata.put("Field count", 4);
+    index.globalMetadata.put("Physical size", 0.5d);
+    index.globalMetadata.put("Coordinate Transformation scale", new ArrayList<Object>(Arrays.asList(1.0d, 0.5d)));
+    index.wellCount = 96;
+    index.pendingShapes.add(0);
+    index.wellSamplesCount = 1;
+    char[] annotation = new char[100000];
+    Arrays.fill(annotation, 'x');
+    index.omeXml = new String(annotation);
+
+    File indexFile = new File(indexDir, "test.index");
+    index.write(indexFile);
+    ZarrMetadataIndex read = ZarrMetadataIndex.read(indexFile);
+
+    assertEquals(index.fileVersions, read.fileVersions);
+    assertEquals(index.options, read.options);
+    assertEquals(index.arrayPaths, read.arrayPaths);
+    assertEquals(1, read.core.size());
+    CoreMetadata readMs = read.core.get(0);
+    assertEquals(512, readMs.sizeX);
+    assertEquals(256, readMs.sizeY);
+    assertEquals(3, readMs.sizeZ);
+    assertEquals(2, readMs.sizeC);
+    assertEquals(6, readMs.imageCount);
+    assertEquals(3, readMs.pixelType);
+    assertEquals("XYZCT", readMs.dimensionOrder);
+    assertTrue(readMs.littleEndian);
+    assertEquals(2, readMs.resolutionCount);
+    assertEquals("t", read.globalMetadata.get("Axis 0"));
+    // Values keep their type rather than being restored as strings
+    assertEquals(4, read.globalMetadata.get("Field count"));
+    assertEquals(0.5d, read.globalMetadata.get("Physical size"));
+    assertEquals(Arrays.asList(1.0d, 0.5d), read.globalMetadata.get("Coordinate Transformation scale"));
+    assertEquals(96, read.wellCount);
+    assertEquals(index.pendingShapes, read.pendingShapes);
+    assertEquals(index.omeXml, read.omeXml);
+    assertNull(ZarrMetadataIndex.read(new File(indexDir, "missing.index")));
+  }
+
+  @Test
+  public void testReaderUsesValidIndex() throws Exception {
+    ZarrService firstService = mockService("1");
+    ZarrReaderMock first = createReader(firstService);
+    first.setId(file.getAbsolutePath());
+    assertEquals(2, first.getSeriesCount());
+    first.close();
+    assertEquals(1, indexDir.listFiles().length);
+
+    // The hierarchy is not read again while the root metadata is unchanged
+    ZarrService secondService = mockService("1");
+    ZarrReaderMock second = createReader(secondService);
+    IMetadata metadata = (IMetadata) second.getMetadataStore();
+    second.setId(file.getAbsolutePath());
+    verify(secondService, never()).getGroupAttr(anyString());
+    verify(secondService, never()).getArrayKeys(anyString());
+    assertEquals(2, second.getSeriesCount());
+    assertEquals(64, second.getSizeX());
+    assertEquals(32, second.getSizeY());
+    assertEquals(4, second.getSizeZ());
+    assertEquals("z", second.getMetadataValue(MetadataTools.createLSID("Axis", 0, 2)));
+    assertEquals(2, metadata.getImageCount());
+    assertEquals("0", metadata.getImageName(0));
+    second.close();
+
+    // A changed .zattrs invalidates the index
+    ZarrService thirdService = mockService("2");
+    ZarrReaderMock third = createReader(thirdService);
+    third.setId(file.getAbsolutePath());
+    verify(thirdService).getGroupAttr(anyString());
+    assertEquals(2, third.getSeriesCount());
+    third.close();
+  }
+
+  @Test
+  public void testIndexKeepsLazyShapes() throws Exception {
+    ZarrService firstService = mockService("1");
+    ZarrReaderMock first = createLazyReader(firstService);
+    first.setId(file.getAbsolutePath());
+    // Writing the index does not read the deferred shape
+    verify(firstService, never()).getShape(anyString());
+    first.close();
+
+    ZarrService secondService = mockService("1");
+    when(secondService.getShape(anyString())).thenReturn(new int[] {1, 1, 2, 16, 32});
+    ZarrReaderMock second = createLazyReader(secondService);
+    second.setId(file.getAbsolutePath());
+    verify(secondService, never()).getGroupAttr(anyString());
+    verify(secondService, never()).getShape(anyString());
+    assertEquals(1, second.getSeriesCount());
+    assertEquals(2, second.getResolutionCount());
+    second.setResolution(1);
+    assertEquals(32, second.getSizeX());
+    assertEquals(16, second.getSizeY());
+    assertEquals(2, second.getSizeZ());
+    second.close();
+
+    // An index written with deferred shapes is not used without them
+    ZarrService thirdService = mockService("1");
+    ZarrReaderMock third = createReader(thirdService);
+    third.setFlattenedResolutions(false);
+    third.setId(file.getAbsolutePath());
+    verify(thirdService).getGroupAttr(anyString());
+    third.close();
+  }
+
+  @Test
+  public void testCorruptIndex() throws Exception {
+    ZarrMetadataIndex index = new ZarrMetadataIndex();
+    index.omeXml = "<OME/>";
+    File indexFile = new File(indexDir, "test.index");
+    index.write(indexFile);
+    corrupt(indexFile);
+    try {
+      ZarrMetadataIndex.read(indexFile);
+      fail("A corrupt length should not be allocated");
+    }
+    catch (IOException e) {
+      // expected
+    }
+  }
+
+  @Test
+  public void testReaderIgnoresCorruptIndex() throws Exception {
+    ZarrReaderMock first = createReader(mockService("1"));
+    first.setId(file.getAbsolutePath());
+    first.close();
+    corrupt(indexDir.listFiles()[0]);
+
+    ZarrService secondService = mockService("1");
+    ZarrReaderMock second = createReader(secondService);
+    second.setId(file.getAbsolutePath());
+    verify(secondService).getGroupAttr(anyString());
+    assertEquals(2, second.getSeriesCount());
+    second.close();
+  }
+
+  /** Keeps the header of the index and replaces the rest with a negative count */
+  private static void corrupt(File indexFile) throws IOException {
+    byte[] bytes = Files.readAllBytes(indexFile.toPath());
+    ByteBuffer corrupted = ByteBuffer.allocate(12);
+    corrupted.put(bytes, 0, 8);
+    corrupted.putInt(-1);
+    Files.write(indexFile.toPath(), corrupted.array());
+  }
+
+  private ZarrReaderMock createReader(ZarrService service) {
+    ZarrReaderMock reader = new ZarrReaderMock(service);
+    DynamicMetadataOptions options = new DynamicMetadataOptions();
+    options.setBoolean(ZarrReader.METADATA_INDEX_KEY, true);
+    options.set(ZarrReader.METADATA_INDEX_DIR_KEY, indexDir.getAbsolutePath());
+    reader.setMetadataOptions(options);
+    reader.setMetadataStore(MetadataTools.createOMEXMLMetadata());
+    return reader;
+  }
+
+  private ZarrReaderMock createLazyReader(ZarrService service) {
+    ZarrReaderMock reader = createReader(service);
+    ((DynamicMetadataOptions) reader.getMetadataOptions()).setBoolean(ZarrReader.LAZY_SHAPES_KEY, true);
+    reader.setFlattenedResolutions(false);
+    return reader;
+  }
+
+  private ZarrService mockService(String attrsVersion) throws Exception {
+    ZarrService service = Mockito.mock(ZarrService.class);
+    ArrayList<Object> datasets = new ArrayList<Object>();
+    datasets.add(Collections.singletonMap("path", "0"));
+    datasets.add(Collections.singletonMap("path", "1"));
+    Map<String, Object> multiscale = new HashMap<String, Object>();
+    multiscale.put("datasets", datasets);
+    multiscale.put("axes", new ArrayList<Object>(Arrays.asList("t", "c", "z", "y", "x")));
+    ArrayList<Object> multiscales = new ArrayList<Object>();
+    multiscales.add(multiscale);
+    Map<String, Object> attributes = new HashMap<String, Object>();
+    attributes.put("multiscales", multiscales);
+
+    when(service.getGroupAttr(anyString())).thenReturn(attributes);
+    when(service.getGroupKeys(anyString())).thenReturn(new HashSet<String>());
+    when(service.getArrayKeys(anyString())).thenReturn(new HashSet<String>(Arrays.asList("0", "1")));
+    when(service.getShape()).thenReturn(new int[] {1, 1, 4, 32, 64});
+    when(service.getPixelType()).thenReturn(1);
+    when(service.getVersion(anyString(), anyString())).thenReturn(null);
+    when(service.getVersion(anyString(), eq(".zattrs"))).thenReturn(attrsVersion);
+    return service;
+  }
+}
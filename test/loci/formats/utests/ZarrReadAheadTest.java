@@ -0,0 +1,126 @@
+package test.loci.formats.utests;
+
+/*-
+ * #%L
+ * Implementation of Bio-Formats readers for the next-generation file formats
+ * %%
+ * Copyright (C) 2020 - 2022 Open Microscopy Environment
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+
+import static org.junit.Assert.*;
+
+import org.testng.annotations.Test;
+
+import loci.formats.services.ZarrReadAhead;
+import loci.formats.services.ZarrReadAhead.Region;
+
+/**
+ * Tests the prediction and accounting of ZarrReadAhead
+ */
+public class ZarrReadAheadTest {
+
+  private Region tile(int no, int x, int y, int w, int h) {
+    return new Region(0, 0, no, x, y, w, h, 100, 60, 3, 1);
+  }
+
+  private void fill(Region region, byte[] buf) {
+    for (int i = 0; i < region.getBytes(); i++) {
+      buf[i] = (byte) (region.no * 31 + region.x + region.y + i);
+    }
+  }
+
+  private ZarrReadAhead createReadAhead(long maxBytes) {
+    return new ZarrReadAhead((region, buf) -> fill(region, buf), maxBytes);
+  }
+
+  @Test
+  public void testSequentialTiles() {
+    ZarrReadAhead readAhead = createReadAhead(40 * 40);
+    try {
+      byte[] buf = new byte[40 * 40];
+      assertFalse(readAhead.read(tile(0, 0, 0, 40, 40), buf));
+      assertFalse(readAhead.read(tile(0, 40, 0, 40, 40), buf));
+      // The edge tile and the first tile of the next row fit within the budget
+      assertEquals(2, readAhead.getIssued());
+      assertEquals(40 * 40, readAhead.getPendingBytes());
+
+      Region edge = tile(0, 80, 0, 20, 40);
+      byte[] expected = new byte[20 * 40];
+      fill(edge, expected);
+      buf = new byte[20 * 40];
+      assertTrue(readAhead.read(edge, buf));
+      assertArrayEquals(expected, buf);
+
+      Region nextRow = tile(0, 0, 40, 40, 20);
+      expected = new byte[40 * 20];
+      fill(nextRow, expected);
+      buf = new byte[40 * 20];
+      assertTrue(readAhead.read(nextRow, buf));
+      assertArrayEquals(expected, buf);
+      assertEquals(2, readAhead.getHits());
+      assertEquals(0, readAhead.getWasted());
+      // The remaining tiles of the second row were scheduled as budget was freed
+      assertEquals(4, readAhead.getIssued());
+    }
+    finally {
+      readAhead.close();
+    }
+  }
+
+  @Test
+  public void testSequentialPlanes() {
+    ZarrReadAhead readAhead = createReadAhead(10 * 100 * 60);
+    try {
+      byte[] buf = new byte[20 * 20];
+      assertFalse(readAhead.read(tile(0, 10, 10, 20, 20), buf));
+      assertFalse(readAhead.read(tile(1, 10, 10, 20, 20), buf));
+      // Only the one remaining plane can be read ahead
+      assertEquals(1, readAhead.getIssued());
+      assertTrue(readAhead.read(tile(2, 10, 10, 20, 20), buf));
+      assertEquals(1, readAhead.getHits());
+    }
+    finally {
+      readAhead.close();
+    }
+  }
+
+  @Test
+  public void testRandomAccessIsWasted() {
+    ZarrReadAhead readAhead = createReadAhead(10 * 100 * 60);
+    try {
+      byte[] buf = new byte[100 * 60];
+      assertFalse(readAhead.read(tile(0, 0, 0, 100, 60), buf));
+      assertFalse(readAhead.read(tile(1, 0, 0, 100, 60), buf));
+      assertEquals(1, readAhead.getIssued());
+      assertFalse(readAhead.read(tile(0, 0, 0, 100, 60), buf));
+      assertEquals(0, readAhead.getHits());
+      assertEquals(1, readAhead.getWasted());
+      assertEquals(0, readAhead.getPendingBytes());
+    }
+    finally {
+      readAhead.close();
+    }
+  }
+}
@@ -0,0 +1,322 @@
+package test.loci.formats.utests;
+
+/*-
+ * #%L
+ * Implementation of Bio-Formats readers for the next-generation file formats
+ * %%
+ * Copyright (C) 2020 - 2022 Open Microscopy Environment
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.lang.reflect.Field;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+import org.mockito.Mockito;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import loci.formats.meta.IMetadata;
+import loci.formats.MetadataTools;
+import loci.formats.in.ZarrReader;
+import loci.formats.services.ZarrService;
+
+/**
+ * Initializes a synthetic plate with many wells and fields to check that
+ * building the series layout scales linearly with the number of arrays
+ */
+public class ZarrReaderLargePlateTest {
+
+  private static final int ROWS = 32;
+  private static final int COLUMNS = 48;
+  private static final int FIELDS = 4;
+
+  private File file;
+  private ZarrService zarrService;
+  private ZarrReaderMock reader;
+  private Set<String> groupKeys;
+  private Set<String> arrayKeys;
+  private ArrayList<Object> wells;
+
+  @BeforeMethod
+  public void setUp() throws Exception {
+    file = File.createTempFile("largePlate", ".zarr");
+    zarrService = mockPlate(ROWS);
+    reader = new ZarrReaderMock(zarrService);
+  }
+
+  /**
+   * Mocks a plate with the given number of rows, its keys and wells are kept so that tests can remove some
+   */
+  private ZarrService mockPlate(int rowCount) throws Exception {
+    ZarrService service = Mockito.mock(ZarrService.class);
+    ArrayList<Object> rows = new ArrayList<Object>();
+    ArrayList<Object> columns = new ArrayList<Object>();
+    wells = new ArrayList<Object>();
+    groupKeys = new LinkedHashSet<String>();
+    arrayKeys = new LinkedHashSet<String>();
+    for (int r = 0; r < rowCount; r++) {
+      rows.add(name("R" + r));
+      groupKeys.add("R" + r);
+    }
+    for (int c = 0; c < COLUMNS; c++) {
+      columns.add(name("" + c));
+    }
+    for (int r = 0; r < rowCount; r++) {
+      for (int c = 0; c < COLUMNS; c++) {
+        String wellPath = "R" + r + "/" + c;
+        Map<String, Object> well = new HashMap<String, Object>();
+        well.put("path", wellPath);
+        well.put("rowIndex", r);
+        well.put("columnIndex", c);
+        wells.add(well);
+        groupKeys.add(wellPath);
+        for (int f = 0; f < FIELDS; f++) {
+          groupKeys.add(wellPath + "/" + f);
+          arrayKeys.add(wellPath + "/" + f + "/0");
+        }
+      }
+    }
+    Map<String, Object> plate = new HashMap<String, Object>();
+    plate.put("name", "large plate");
+    plate.put("rows", rows);
+    plate.put("columns", columns);
+    plate.put("wells", wells);
+    plate.put("field_count", FIELDS);
+    Map<String, Object> rootAttributes = new HashMap<String, Object>();
+    rootAttributes.put("plate", plate);
+
+    ArrayList<Object> images = new ArrayList<Object>();
+    for (int f = 0; f < FIELDS; f++) {
+      images.add(Collections.singletonMap("path", "" + f));
+    }
+    Map<String, Object> wellAttributes = new HashMap<String, Object>();
+    wellAttributes.put("well", Collections.singletonMap("images", images));
+
+    ArrayList<Object> datasets = new ArrayList<Object>();
+    datasets.add(Collections.singletonMap("path", "0"));
+    Map<String, Object> multiscale = new HashMap<String, Object>();
+    multiscale.put("datasets", datasets);
+    multiscale.put("axes", new ArrayList<Object>(Arrays.asList("t", "c", "z", "y", "x")));
+    ArrayList<Object> multiscales = new ArrayList<Object>();
+    multiscales.add(multiscale);
+    Map<String, Object> fieldAttributes = new HashMap<String, Object>();
+    fieldAttributes.put("multiscales", multiscales);
+
+    when(service.getGroupAttr(anyString())).thenAnswer(invocation -> {
+      String path = invocation.getArgument(0);
+      String key = path.substring(path.indexOf(".zarr") + 5).replace(File.separatorChar, '/');
+      int depth = key.isEmpty() ? 0 : key.substring(1).split("/").length;
+      switch (depth) {
+        case 0: return rootAttributes;
+        case 2: return wellAttributes;
+        case 3: return fieldAttributes;
+        default: return new HashMap<String, Object>();
+      }
+    });
+    when(service.getGroupKeys(anyString())).thenReturn(groupKeys);
+    when(service.getArrayKeys(anyString())).thenReturn(arrayKeys);
+    Set<String> plateGroupKeys = groupKeys;
+    Set<String> plateArrayKeys = arrayKeys;
+    Map<String, Set<String>> children = new HashMap<String, Set<String>>();
+    when(service.getChildKeys(anyString())).thenAnswer(invocation -> {
+      String path = invocation.getArgument(0);
+      String key = path.substring(path.indexOf(".zarr") + 5).replace(File.separatorChar, '/');
+      synchronized (children) {
+        // Indexed on first use, after a test has removed keys, so that a listing does not scan every key
+        if (children.isEmpty()) {
+          for (Set<String> keys : Arrays.asList(plateGroupKeys, plateArrayKeys)) {
+            for (String child : keys) {
+              String parent = "";
+              for (String part : child.split("/")) {
+                children.computeIfAbsent(parent, k -> new LinkedHashSet<String>()).add(part);
+                parent = parent.isEmpty() ? part : parent + "/" + part;
+              }
+            }
+          }
+        }
+        return new LinkedHashSet<String>(children.getOrDefault(key.isEmpty() ? "" : key.substring(1), Collections.<String>emptySet()));
+      }
+    });
+    when(service.getShape()).thenReturn(new int[] {1, 1, 1, 16, 16});
+    when(service.getPixelType()).thenReturn(1);
+    return service;
+  }
+
+  @AfterMethod
+  public void tearDown() throws Exception {
+    reader.close();
+    file.delete();
+  }
+
+  @Test(timeOut = 120000)
+  public void testInitializeLargePlate() throws Exception {
+    IMetadata metadata = MetadataTools.createOMEXMLMetadata();
+    reader.setMetadataStore(metadata);
+    reader.setId(file.getAbsolutePath());
+
+    assertEquals(ROWS * COLUMNS * FIELDS, reader.getSeriesCount());
+    assertEquals(ROWS * COLUMNS, metadata.getWellCount(0));
+    // The last field of the last well refers to the last image
+    int lastWell = ROWS * COLUMNS - 1;
+    assertEquals("Image:" + (ROWS * COLUMNS * FIELDS - 1), metadata.getWellSampleImageRef(0, lastWell, FIELDS - 1));
+    assertEquals("Image:" + FIELDS, metadata.getWellSampleImageRef(0, 1, 0));
+  }
+
+  @Test(timeOut = 300000)
+  public void testInitializationScalesLinearly() throws Exception {
+    // The first run is not timed, so that the smaller plate is not measured while classes load and compile
+    timeInitialization(ROWS / 4);
+    long small = Long.MAX_VALUE;
+    long large = Long.MAX_VALUE;
+    for (int i = 0; i < 3; i++) {
+      small = Math.min(small, timeInitialization(ROWS / 4));
+      large = Math.min(large, timeInitialization(ROWS));
+    }
+    // Four times as many arrays, a quadratic layout takes around sixteen times as long
+    assertTrue("Initialization took " + small + " ms for " + (ROWS / 4) + " rows and " + large + " ms for " + ROWS + " rows",
+        large < 8 * Math.max(small, 20));
+  }
+
+  @Test(timeOut = 120000)
+  public void testInitializationStateReleased() throws Exception {
+    reader.setId(file.getAbsolutePath());
+
+    // Only the array paths outlive initialization
+    for (String field : new String[] {"groupKeys", "resSeries", "resCounts", "uniqueResCounts",
+        "resIndexes", "pathArrayDimensions", "arrayPathIndexes", "axisDescriptors", "childKeys", "sharedPaths"}) {
+      assertTrue(field + " should be empty", asMap(getField(field)).isEmpty());
+    }
+    assertEquals(ROWS * COLUMNS * FIELDS, ((List<?>) getField("arrayPaths")).size());
+
+    int lastSeries = reader.getSeriesCount() - 1;
+    Mockito.clearInvocations(zarrService);
+    reader.setSeries(lastSeries);
+    String lastPath = "R" + (ROWS - 1) + File.separator + (COLUMNS - 1) + File.separator + (FIELDS - 1) + File.separator + "0";
+    verify(zarrService).open(new File(file, lastPath).getCanonicalPath());
+  }
+
+  @Test(timeOut = 120000)
+  public void testArrayPathsShared() throws Exception {
+    // Shapes are read once the series layout is built, while every lookup still holds its paths
+    List<Object> paths = new ArrayList<Object>();
+    when(zarrService.getShape()).thenAnswer(invocation -> {
+      if (paths.isEmpty()) {
+        paths.addAll((List<?>) getField("arrayPaths"));
+        for (String field : new String[] {"resCounts", "resIndexes", "pathArrayDimensions", "arrayPathIndexes"}) {
+          paths.addAll(((Map<?, ?>) getField(field)).keySet());
+        }
+        for (Object seriesPaths : ((Map<?, ?>) getField("resSeries")).values()) {
+          paths.addAll((List<?>) seriesPaths);
+        }
+      }
+      return new int[] {1, 1, 1, 16, 16};
+    });
+    reader.setId(file.getAbsolutePath());
+
+    assertTrue(paths.size() > ROWS * COLUMNS * FIELDS);
+    Set<Object> instances = Collections.newSetFromMap(new IdentityHashMap<Object, Boolean>());
+    instances.addAll(paths);
+    // Every distinct path is held by a single string
+    assertEquals(ROWS * COLUMNS * FIELDS, new HashSet<Object>(paths).size());
+    assertEquals(ROWS * COLUMNS * FIELDS, instances.size());
+  }
+
+  @Test(timeOut = 120000)
+  public void testSparsePlateFromListing() throws Exception {
+    // Remove the first well from the store, it is still covered by the plate rows and columns
+    wells.remove(0);
+    groupKeys.removeIf(key -> key.equals("R0/0") || key.startsWith("R0/0/"));
+    arrayKeys.removeIf(key -> key.startsWith("R0/0/"));
+    reader.setId(file.getAbsolutePath());
+
+    assertEquals((ROWS * COLUMNS - 1) * FIELDS, reader.getSeriesCount());
+    String rootPath = file.getCanonicalPath();
+    // Each level is listed once, the whole store is never listed
+    verify(zarrService).getChildKeys(rootPath);
+    verify(zarrService).getChildKeys(new File(file, "R0").getCanonicalPath());
+    verify(zarrService, never()).getChildKeys(new File(file, "R0" + File.separator + "0").getCanonicalPath());
+    verify(zarrService, never()).getGroupKeys(anyString());
+    verify(zarrService, never()).getArrayKeys(anyString());
+  }
+
+  /**
+   * @return the time in milliseconds taken to initialize a plate with the given number of rows
+   */
+  private long timeInitialization(int rowCount) throws Exception {
+    File plate = File.createTempFile("scaling", ".zarr");
+    ZarrService service = mockPlate(rowCount);
+    ZarrReaderMock plateReader = new ZarrReaderMock(service);
+    try {
+      long start = System.nanoTime();
+      plateReader.setId(plate.getAbsolutePath());
+      long elapsed = (System.nanoTime() - start) / 1000000;
+      assertEquals(rowCount * COLUMNS * FIELDS, plateReader.getSeriesCount());
+      return elapsed;
+    }
+    finally {
+      plateReader.close();
+      plate.delete();
+    }
+  }
+
+  private Object getField(String name) throws Exception {
+    Field field = ZarrReader.class.getDeclaredField(name);
+    field.setAccessible(true);
+    return field.get(reader);
+  }
+
+  private static Map<?, ?> asMap(Object value) {
+    if (value instanceof Map) {
+      return (Map<?, ?>) value;
+    }
+    Map<Object, Object> map = new HashMap<Object, Object>();
+    for (Object entry : (Iterable<?>) value) {
+      map.put(entry, entry);
+    }
+    return map;
+  }
+
+  private static Map<String, Object> name(String name) {
+    Map<String, Object> entry = new HashMap<String, Object>();
+    entry.put("name", name);
+    return entry;
+  }
+}
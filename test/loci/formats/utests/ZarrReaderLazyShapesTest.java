@@ -0,0 +1,213 @@
+package test.loci.formats.utests;
+
+/*-
+ * #%L
+ * Implementation of Bio-Formats readers for the next-generation file formats
+ * %%
+ * Copyright (C) 2020 - 2022 Open Microscopy Environment
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+import org.mockito.Mockito;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import loci.formats.CoreMetadata;
+import loci.formats.FormatException;
+import loci.formats.in.DynamicMetadataOptions;
+import loci.formats.in.ZarrReader;
+import loci.formats.services.ZarrService;
+
+/**
+ * A plate whose two fields have different shapes, with two resolutions each
+ */
+public class ZarrReaderLazyShapesTest {
+
+  private File file;
+  private ZarrService zarrService;
+  private ZarrReaderMock reader;
+  private String openPath;
+
+  @BeforeMethod
+  public void setUp() throws Exception {
+    file = File.createTempFile("lazyShapes", ".zarr");
+    zarrService = Mockito.mock(ZarrService.class);
+    reader = new ZarrReaderMock(zarrService);
+    DynamicMetadataOptions options = new DynamicMetadataOptions();
+    options.setBoolean(ZarrReader.LAZY_SHAPES_KEY, true);
+    reader.setMetadataOptions(options);
+    reader.setFlattenedResolutions(false);
+
+    ArrayList<Object> wells = new ArrayList<Object>();
+    Map<String, Object> well = new HashMap<String, Object>();
+    well.put("path", "A/1");
+    well.put("rowIndex", 0);
+    well.put("columnIndex", 0);
+    wells.add(well);
+    Map<String, Object> plate = new HashMap<String, Object>();
+    plate.put("rows", new ArrayList<Object>(Arrays.asList(Collections.singletonMap("name", "A"))));
+    plate.put("columns", new ArrayList<Object>(Arrays.asList(Collections.singletonMap("name", "1"))));
+    plate.put("wells", wells);
+    plate.put("field_count", 2);
+    Map<String, Object> rootAttributes = new HashMap<String, Object>();
+    rootAttributes.put("plate", plate);
+
+    ArrayList<Object> images = new ArrayList<Object>();
+    images.add(Collections.singletonMap("path", "0"));
+    images.add(Collections.singletonMap("path", "1"));
+    Map<String, Object> wellAttributes = new HashMap<String, Object>();
+    wellAttributes.put("well", Collections.singletonMap("images", images));
+
+    ArrayList<Object> datasets = new ArrayList<Object>();
+    datasets.add(Collections.singletonMap("path", "0"));
+    datasets.add(Collections.singletonMap("path", "1"));
+    Map<String, Object> multiscale = new HashMap<String, Object>();
+    multiscale.put("datasets", datasets);
+    multiscale.put("axes", new ArrayList<Object>(Arrays.asList("t", "c", "z", "y", "x")));
+    ArrayList<Object> multiscales = new ArrayList<Object>();
+    multiscales.add(multiscale);
+    Map<String, Object> fieldAttributes = new HashMap<String, Object>();
+    fieldAttributes.put("multiscales", multiscales);
+
+    when(zarrService.getGroupAttr(anyString())).thenAnswer(invocation -> {
+      String key = getKey(invocation.getArgument(0));
+      if (key.isEmpty()) return rootAttributes;
+      if (key.equals("A/1")) return wellAttributes;
+      if (key.startsWith("A/1/")) return fieldAttributes;
+      return new HashMap<String, Object>();
+    });
+    when(zarrService.getGroupKeys(anyString())).thenReturn(
+        new HashSet<String>(Arrays.asList("A", "A/1", "A/1/0", "A/1/1")));
+    when(zarrService.getArrayKeys(anyString())).thenReturn(
+        new HashSet<String>(Arrays.asList("A/1/0/0", "A/1/0/1", "A/1/1/0", "A/1/1/1")));
+    Map<String, List<String>> children = new HashMap<String, List<String>>();
+    children.put("", Arrays.asList("A"));
+    children.put("A", Arrays.asList("1"));
+    children.put("A/1", Arrays.asList("0", "1"));
+    children.put("A/1/0", Arrays.asList("0", "1"));
+    children.put("A/1/1", Arrays.asList("0", "1"));
+    when(zarrService.getChildKeys(anyString())).thenAnswer(invocation -> new HashSet<String>(
+        children.getOrDefault(getKey(invocation.getArgument(0)), Collections.<String>emptyList())));
+    doAnswer(invocation -> {
+      openPath = invocation.getArgument(0);
+      return null;
+    }).when(zarrService).open(anyString());
+    when(zarrService.getShape()).thenAnswer(invocation -> getShape(openPath));
+    when(zarrService.getShape(anyString())).thenAnswer(invocation -> getShape(invocation.getArgument(0)));
+    when(zarrService.getPixelType()).thenReturn(3);
+  }
+
+  @AfterMethod
+  public void tearDown() throws Exception {
+    reader.close();
+    file.delete();
+  }
+
+  @Test
+  public void testLowerResolutionsReadOnAccess() throws Exception {
+    reader.setId(file.getAbsolutePath());
+    String field1Resolution1 = new File(file, "A/1/1/1").getCanonicalPath();
+    verify(zarrService, never()).open(field1Resolution1);
+    verify(zarrService, never()).getShape(field1Resolution1);
+
+    assertEquals(2, reader.getSeriesCount());
+    reader.setSeries(0);
+    assertEquals(2, reader.getResolutionCount());
+    assertEquals(64, reader.getSizeX());
+    assertEquals(32, reader.getSizeY());
+    reader.setSeries(1);
+    assertEquals(128, reader.getSizeX());
+    assertEquals(96, reader.getSizeY());
+    assertEquals(3, reader.getSizeZ());
+
+    reader.setResolution(1);
+    assertEquals(64, reader.getSizeX());
+    assertEquals(48, reader.getSizeY());
+    assertEquals(3, reader.getSizeZ());
+    assertEquals(3, reader.getImageCount());
+    assertEquals(3, reader.getPixelType());
+    reader.setResolution(0);
+    reader.setResolution(1);
+    verify(zarrService, times(1)).getShape(field1Resolution1);
+  }
+
+  @Test
+  public void testCoreMetadataListIsComplete() throws Exception {
+    reader.setId(file.getAbsolutePath());
+    List<CoreMetadata> core = reader.getCoreMetadataList();
+    assertEquals(4, core.size());
+    assertEquals(64, core.get(0).sizeX);
+    assertEquals(32, core.get(1).sizeX);
+    assertEquals(16, core.get(1).sizeY);
+    assertEquals(128, core.get(2).sizeX);
+    assertEquals(64, core.get(3).sizeX);
+  }
+
+  @Test
+  public void testOpenBytesForLowerResolution() throws Exception {
+    reader.setId(file.getAbsolutePath());
+    // The full resolution shape would allow this tile, the lower resolution does not
+    byte[] buf = new byte[64 * 32 * 2];
+    try {
+      reader.openBytes(0, 1, 0, buf, 0, 0, 64, 32);
+      fail("Expected the tile to exceed the lower resolution");
+    }
+    catch (FormatException e) {
+      // expected
+    }
+    reader.openBytes(0, 1, 0, buf, 0, 0, 32, 16);
+  }
+
+  private static String getKey(String path) {
+    return path.substring(path.indexOf(".zarr") + 5).replace(File.separatorChar, '/').replaceAll("^/", "");
+  }
+
+  // Field 1 is twice the size of field 0 and has 3 z sections, each resolution halves X and Y
+  private static int[] getShape(String path) {
+    String[] parts = getKey(path).split("/");
+    int field = Integer.parseInt(parts[2]);
+    int resolution = Integer.parseInt(parts[3]);
+    int sizeX = (field == 0 ? 64 : 128) >> resolution;
+    int sizeY = (field == 0 ? 32 : 96) >> resolution;
+    return new int[] {1, 1, field == 0 ? 1 : 3, sizeY, sizeX};
+  }
+}
@@ -0,0 +1,151 @@
+package test.loci.formats.utests;
+
+/*-
+ * #%L
+ * Implementation of Bio-Formats readers for the next-generation file formats
+ * %%
+ * Copyright (C) 2020 - 2022 Open Microscopy Environment
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Set;
+
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.when;
+import org.mockito.MockedStatic;
+import org.mockito.Mockito;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import loci.common.services.ServiceFactory;
+import loci.common.xml.XMLTools;
+import loci.formats.MetadataTools;
+import loci.formats.meta.IMetadata;
+import loci.formats.services.OMEXMLService;
+import loci.formats.services.ZarrService;
+import ome.xml.model.enums.DimensionOrder;
+import ome.xml.model.enums.PixelType;
+import ome.xml.model.primitives.PositiveInteger;
+import org.w3c.dom.Document;
+
+/**
+ * Initializes a fileset with a large OME/METADATA.ome.xml
+ */
+public class ZarrReaderOMEXMLTest {
+
+  private static final int IMAGES = 2000;
+
+  private File root;
+  private File zarr;
+  private String xml;
+  private ZarrReaderMock reader;
+
+  @BeforeMethod
+  public void setUp() throws Exception {
+    root = Files.createTempDirectory("omexml").toFile();
+    zarr = new File(root, "images.zarr");
+    File omeDir = new File(zarr, "OME");
+    omeDir.mkdirs();
+
+    IMetadata omexml = MetadataTools.createOMEXMLMetadata();
+    for (int i = 0; i < IMAGES; i++) {
+      omexml.setImageID(MetadataTools.createLSID("Image", i), i);
+      omexml.setImageName("image " + i, i);
+      omexml.setPixelsID(MetadataTools.createLSID("Pixels", i), i);
+      omexml.setPixelsDimensionOrder(DimensionOrder.XYZCT, i);
+      omexml.setPixelsType(PixelType.UINT8, i);
+      omexml.setPixelsBigEndian(true, i);
+      omexml.setPixelsSizeX(new PositiveInteger(8), i);
+      omexml.setPixelsSizeY(new PositiveInteger(8), i);
+      omexml.setPixelsSizeZ(new PositiveInteger(1), i);
+      omexml.setPixelsSizeC(new PositiveInteger(1), i);
+      omexml.setPixelsSizeT(new PositiveInteger(1), i);
+      omexml.setChannelID(MetadataTools.createLSID("Channel", i, 0), i, 0);
+      omexml.setChannelName("channel " + i, i, 0);
+    }
+    xml = new ServiceFactory().getInstance(OMEXMLService.class).getOMEXML(omexml);
+    Files.write(new File(omeDir, "METADATA.ome.xml").toPath(), xml.getBytes(StandardCharsets.UTF_8));
+
+    ZarrService zarrService = Mockito.mock(ZarrService.class);
+    Set<String> arrayKeys = new HashSet<String>();
+    for (int i = 0; i < IMAGES; i++) {
+      arrayKeys.add(i + "/0");
+    }
+    when(zarrService.getGroupAttr(anyString())).thenReturn(new HashMap<String, Object>());
+    when(zarrService.getGroupKeys(anyString())).thenReturn(new HashSet<String>());
+    when(zarrService.getArrayKeys(anyString())).thenReturn(arrayKeys);
+    when(zarrService.getShape()).thenReturn(new int[] {1, 1, 1, 8, 8});
+    when(zarrService.getPixelType()).thenReturn(1);
+    reader = new ZarrReaderMock(zarrService);
+  }
+
+  @AfterMethod
+  public void tearDown() throws Exception {
+    reader.close();
+    Files.walk(root.toPath()).map(path -> path.toFile()).sorted((a, b) -> b.compareTo(a)).forEach(File::delete);
+  }
+
+  @Test
+  public void testParseLargeOMEXML() throws Exception {
+    IMetadata metadata = MetadataTools.createOMEXMLMetadata();
+    reader.setMetadataStore(metadata);
+    try (MockedStatic<XMLTools> xmlTools = Mockito.mockStatic(XMLTools.class, Mockito.CALLS_REAL_METHODS)) {
+      reader.setId(zarr.getAbsolutePath());
+      // The document is parsed once from the file and never serialized to be parsed again
+      xmlTools.verify(() -> XMLTools.parseDOM(any(InputStream.class)), times(1));
+      xmlTools.verify(() -> XMLTools.getXML(any(Document.class)), never());
+    }
+
+    assertEquals(IMAGES, reader.getSeriesCount());
+    assertEquals(IMAGES, metadata.getImageCount());
+    assertEquals("channel 0", metadata.getChannelName(0, 0));
+    assertEquals("channel " + (IMAGES - 1), metadata.getChannelName(IMAGES - 1, 0));
+  }
+
+  @Test
+  public void testParseOMEXMLEncoding() throws Exception {
+    // The encoding is taken from the XML declaration rather than assumed to be UTF-8
+    String utf16 = xml.replaceFirst("encoding=\"UTF-8\"", "encoding=\"UTF-16\"")
+        .replace("\"channel 0\"", "\"\u00e9chantillon 0\"");
+    Files.write(new File(zarr, "OME" + File.separator + "METADATA.ome.xml").toPath(), utf16.getBytes(StandardCharsets.UTF_16));
+    IMetadata metadata = MetadataTools.createOMEXMLMetadata();
+    reader.setMetadataStore(metadata);
+    reader.setId(zarr.getAbsolutePath());
+
+    assertEquals(IMAGES, metadata.getImageCount());
+    assertEquals("\u00e9chantillon 0", metadata.getChannelName(0, 0));
+  }
+}
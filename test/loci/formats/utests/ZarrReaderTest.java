@@ -40,16 +40,28 @@ import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
 
+import org.mockito.ArgumentCaptor;
 import org.mockito.InjectMocks;
 import org.mockito.Mock;
 import org.mockito.Mockito;
 
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyBoolean;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.doCallRealMethod;
+import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 import org.testng.annotations.AfterClass;
 import org.testng.annotations.BeforeClass;
+import org.testng.annotations.DataProvider;
 import org.testng.annotations.Test;
 
 import loci.common.DataTools;
@@ -103,6 +115,7 @@ public class ZarrReaderTest {
     when(zarrService.getGroupAttr(canonicalPath)).thenReturn(topLevelAttributes);
     when(zarrService.getShape()).thenReturn(shape);
     when(zarrService.getPixelType()).thenReturn(0);
+    doCallRealMethod().when(zarrService).readBytes(any(byte[].class), any(int[].class), any(int[].class), anyBoolean());
     reader.setId(file.getAbsolutePath());
   }
   
@@ -171,6 +184,156 @@ public class ZarrReaderTest {
       } 
   }
   
+  @DataProvider(name = "pixelTypes")
+  public Object[][] createPixelTypes() {
+    return new Object[][] {
+      {FormatTools.INT8, false}, {FormatTools.INT8, true},
+      {FormatTools.UINT8, false}, {FormatTools.UINT8, true},
+      {FormatTools.INT16, false}, {FormatTools.INT16, true},
+      {FormatTools.UINT16, false}, {FormatTools.UINT16, true},
+      {FormatTools.INT32, false}, {FormatTools.INT32, true},
+      {FormatTools.UINT32, false}, {FormatTools.UINT32, true},
+      {FormatTools.FLOAT, false}, {FormatTools.FLOAT, true},
+      {FormatTools.DOUBLE, false}, {FormatTools.DOUBLE, true},
+    };
+  }
+
+  @Test(dataProvider = "pixelTypes")
+  public void testOpenBytesPixelTypes(int pixelType, boolean little) {
+    int[] readerShape = {1, 1, 1, shape[3], shape[4]};
+    int[] readerOffset = {0, 0, 0, 0, 0};
+    int pixelCount = shape[3] * shape[4];
+    int bpp = FormatTools.getBytesPerPixel(pixelType);
+    Object pixels = null;
+    byte[] expectedBuf = new byte[pixelCount * bpp];
+
+    // Build the expected buffer one pixel at a time, as openBytes previously did
+    switch (bpp) {
+      case 1:
+        byte[] bytes = new byte[pixelCount];
+        for (int i = 0; i < pixelCount; i++) {
+          bytes[i] = (byte) (i * 7);
+          DataTools.unpackBytes(bytes[i], expectedBuf, i, 1, little);
+        }
+        pixels = bytes;
+        break;
+      case 2:
+        short[] shorts = new short[pixelCount];
+        for (int i = 0; i < pixelCount; i++) {
+          shorts[i] = (short) (i * 31 - 5000);
+          DataTools.unpackBytes(shorts[i], expectedBuf, i * 2, 2, little);
+        }
+        pixels = shorts;
+        break;
+      case 4:
+        if (pixelType == FormatTools.FLOAT) {
+          float[] floats = new float[pixelCount];
+          for (int i = 0; i < pixelCount; i++) {
+            floats[i] = i * -0.25f;
+            DataTools.unpackBytes(Float.floatToIntBits(floats[i]), expectedBuf, i * 4, 4, little);
+          }
+          pixels = floats;
+        }
+        else {
+          int[] ints = new int[pixelCount];
+          for (int i = 0; i < pixelCount; i++) {
+            ints[i] = i * 65537 - 1000000;
+            DataTools.unpackBytes(ints[i], expectedBuf, i * 4, 4, little);
+          }
+          pixels = ints;
+        }
+        break;
+      case 8:
+        double[] doubles = new double[pixelCount];
+        for (int i = 0; i < pixelCount; i++) {
+          doubles[i] = i * 1.5 - 12345.678;
+          DataTools.unpackBytes(Double.doubleToLongBits(doubles[i]), expectedBuf, i * 8, 8, little);
+        }
+        pixels = doubles;
+        break;
+    }
+
+    try {
+      when(zarrService.readBytes(readerShape, readerOffset)).thenReturn(pixels);
+      when(zarrService.getPixelType()).thenReturn(pixelType);
+      when(zarrService.isLittleEndian()).thenReturn(little);
+      byte[] buf = reader.openBytes(0, new byte[pixelCount * bpp]);
+      assertArrayEquals(expectedBuf, buf);
+    } catch (FormatException | IOException e) {
+      fail("Unexpected exception thrown while reading bytes");
+    } finally {
+      when(zarrService.isLittleEndian()).thenReturn(false);
+      when(zarrService.getPixelType()).thenReturn(0);
+    }
+  }
+
+  @Test
+  public void testOpenPlanes() throws FormatException, IOException {
+    int[] readerShape = {1, 1, 4, 8, 16};
+    int[] readerOffset = {0, 0, 2, 8, 32};
+    byte[] expectedBuf = new byte[4 * 8 * 16];
+    for (int i = 0; i < expectedBuf.length; i++) {
+      expectedBuf[i] = (byte) i;
+    }
+    when(zarrService.readBytes(readerShape, readerOffset)).thenReturn(expectedBuf);
+    int no = reader.getIndex(2, 0, 0);
+    byte[] buf = reader.openPlanes(no, "Z", 4, new byte[expectedBuf.length], 32, 8, 16, 8);
+    assertArrayEquals(expectedBuf, buf);
+  }
+
+  @Test(expectedExceptions = FormatException.class)
+  public void testOpenPlanesBeyondSizeZ() throws FormatException, IOException {
+    int no = reader.getIndex(shape[2] - 2, 0, 0);
+    reader.openPlanes(no, "Z", 4, new byte[4 * 8 * 16], 0, 0, 16, 8);
+  }
+
+  @Test
+  public void testOpenBytesForSeries() throws FormatException, IOException {
+    int series = reader.getSeries();
+    int[] tileShape = {1, 1, 1, 32, 64};
+    int[] tileOffset = {0, 0, 0, 8, 16};
+    when(zarrService.getShape(any(String.class))).thenReturn(shape);
+    byte[] buf = new byte[64 * 32];
+    assertSame(buf, reader.openBytes(0, 0, 0, buf, 16, 8, 64, 32));
+
+    ArgumentCaptor<String> path = ArgumentCaptor.forClass(String.class);
+    verify(zarrService).readBytes(path.capture(), eq(buf), eq(tileShape), eq(tileOffset), eq(false));
+    assertTrue(path.getValue().endsWith("0"));
+    assertEquals(series, reader.getSeries());
+  }
+
+  @Test
+  public void testOpenBytesForSeriesConcurrently() throws Exception {
+    when(zarrService.getShape(any(String.class))).thenReturn(shape);
+    int planes = 64;
+    ExecutorService executor = Executors.newFixedThreadPool(8);
+    try {
+      List<Future<byte[]>> results = new ArrayList<Future<byte[]>>();
+      for (int i = 0; i < planes; i++) {
+        final int no = i * 37 % reader.getImageCount();
+        results.add(executor.submit(() -> reader.openBytes(0, 0, no, new byte[16 * 8], 32, 8, 16, 8)));
+      }
+      for (Future<byte[]> result : results) {
+        result.get(10, TimeUnit.SECONDS);
+      }
+    }
+    finally {
+      executor.shutdownNow();
+    }
+    // Each plane is read at the Z, C and T offsets of the series, whichever thread requested it
+    for (int i = 0; i < planes; i++) {
+      int[] zct = reader.getZCTCoords(i * 37 % reader.getImageCount());
+      int[] tileOffset = {zct[2], zct[1], zct[0], 8, 32};
+      verify(zarrService).readBytes(any(String.class), any(byte[].class), eq(new int[] {1, 1, 1, 8, 16}),
+          eq(tileOffset), eq(false));
+    }
+  }
+
+  @Test(expectedExceptions = FormatException.class)
+  public void testOpenBytesForSeriesOutsideImage() throws FormatException, IOException {
+    reader.openBytes(0, 0, 0, new byte[64 * 32], shape[4] - 32, 0, 64, 32);
+  }
+
   @Test
   public void testGetDomains() {
     assertEquals(FormatTools.NON_SPECIAL_DOMAINS, reader.getDomains());